@@ -85,6 +85,11 @@ class LocalProcess extends XPMProcess {
         return super.isRunning();
     }
 
+    @Override
+    public boolean checksJobFiles() {
+        return process == null;
+    }
+
     @Override
     public int exitValue() {
         // Try the easy way
@@ -82,6 +82,11 @@ class OARProcess extends XPMProcess {
         return "running".equalsIgnoreCase(state);
     }
 
+    @Override
+    public boolean checksJobFiles() {
+        return false;
+    }
+
     @Override
     public int exitValue() {
         final Document document = oarstat(true);
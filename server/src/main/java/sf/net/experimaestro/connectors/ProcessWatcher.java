@@ -0,0 +1,431 @@
+package sf.net.experimaestro.connectors;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import sf.net.experimaestro.scheduler.Job;
+import sf.net.experimaestro.scheduler.Resource;
+import sf.net.experimaestro.utils.log.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches running processes to detect their completion.
+ * <p>
+ * When the job directory is on the local file system, a {@linkplain WatchService} is used to
+ * get notified when the lock, done or code files change; otherwise (and as a fallback), processes
+ * are polled with a delay that grows while they keep running. Processes that are due for a check
+ * are grouped by connector, and each connector checks its group at once (see
+ * {@linkplain SingleHostConnector#checkProcesses(java.util.Collection)}).
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class ProcessWatcher extends Thread {
+    final static private Logger LOGGER = Logger.getLogger();
+
+    /**
+     * Minimum delay between two checks (ms)
+     */
+    static final long MIN_DELAY = 5_000;
+
+    /**
+     * Maximum delay between two checks (ms) when no file system event can be received
+     * (the former polling period: hosts check all their processes at once, so longer
+     * delays would only delay the detection of finished jobs)
+     */
+    static final long MAX_DELAY = 15_000;
+
+    /**
+     * Maximum delay between two checks (ms) when the job directory is watched
+     */
+    static final long MAX_WATCHED_DELAY = 300_000;
+
+    /**
+     * Number of threads used to check processes
+     */
+    static final int CHECKER_THREADS = 4;
+
+    /**
+     * A watched process
+     */
+    static private class Watched {
+        final XPMProcess process;
+
+        /**
+         * The watched directory (or null if not watched)
+         */
+        Path directory;
+
+        /**
+         * The names of the files whose change triggers a check
+         */
+        final HashSet<Path> files = new HashSet<>();
+
+        /**
+         * Delay before the next check
+         */
+        long delay = MIN_DELAY;
+
+        /**
+         * Time of the next check
+         */
+        long nextCheck;
+
+        /**
+         * Whether the process is being checked
+         */
+        boolean checking = false;
+
+        /**
+         * Whether the process should be checked again as soon as possible
+         */
+        boolean pending = false;
+
+        Watched(XPMProcess process) {
+            this.process = process;
+        }
+    }
+
+    /**
+     * The watched processes (indexed by process ID)
+     */
+    private final Long2ObjectOpenHashMap<Watched> processes = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * The watched directories
+     */
+    private final HashMap<Path, HashSet<Watched>> directories = new HashMap<>();
+
+    /**
+     * The watch keys of the watched directories
+     */
+    private final HashMap<WatchKey, Path> keys = new HashMap<>();
+
+    /**
+     * Threads used to check processes
+     */
+    private final ExecutorService checkers = Executors.newFixedThreadPool(CHECKER_THREADS,
+            new ThreadFactoryBuilder().setNameFormat("ProcessChecker-%d").setDaemon(true).build());
+
+    /**
+     * The watch service (null if not available)
+     */
+    private final WatchService watchService;
+
+    /**
+     * Used to wait when there is no watch service
+     */
+    private final Object monitor = new Object();
+
+    private volatile boolean stopping = false;
+
+    public ProcessWatcher() {
+        super("ProcessWatcher");
+        setDaemon(true);
+
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.warn("Could not create a watch service - only polling processes: %s", e);
+        }
+        watchService = service;
+    }
+
+    /**
+     * Watch a process until it ends. The process is checked as soon as possible.
+     *
+     * @param process The process to watch
+     */
+    public void watch(XPMProcess process) {
+        final Job job = process.getJob();
+        final Watched watched = new Watched(process);
+        watched.nextCheck = System.currentTimeMillis();
+
+        // Try to watch the job directory
+        if (watchService != null && process.getConnector() instanceof LocalhostConnector) {
+            final Path path = job.getPath();
+            if (path.getFileSystem() == FileSystems.getDefault() && path.getParent() != null) {
+                watched.directory = path.getParent();
+                watched.files.add(Resource.LOCK_EXTENSION.transform(path).getFileName());
+                watched.files.add(Resource.DONE_EXTENSION.transform(path).getFileName());
+                watched.files.add(Resource.CODE_EXTENSION.transform(path).getFileName());
+            }
+        }
+
+        synchronized (processes) {
+            if (processes.containsKey(process.getId())) {
+                return;
+            }
+
+            if (watched.directory != null) {
+                HashSet<Watched> set = directories.get(watched.directory);
+                if (set == null) {
+                    try {
+                        final WatchKey key = watched.directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                        keys.put(key, watched.directory);
+                        directories.put(watched.directory, set = new HashSet<>());
+                    } catch (IOException e) {
+                        LOGGER.warn("Could not watch directory %s: %s", watched.directory, e);
+                        watched.directory = null;
+                    }
+                }
+                if (set != null) {
+                    set.add(watched);
+                }
+            }
+
+            LOGGER.debug("Watching %s (directory %s)", process, watched.directory);
+            processes.put(process.getId(), watched);
+        }
+
+        wakeUp();
+    }
+
+    /**
+     * Stop watching a process
+     *
+     * @param process The process
+     */
+    public void unwatch(XPMProcess process) {
+        synchronized (processes) {
+            final Watched watched = processes.remove(process.getId());
+            if (watched == null || watched.directory == null) {
+                return;
+            }
+
+            final HashSet<Watched> set = directories.get(watched.directory);
+            set.remove(watched);
+            if (set.isEmpty()) {
+                directories.remove(watched.directory);
+                for (Map.Entry<WatchKey, Path> entry : keys.entrySet()) {
+                    if (entry.getValue().equals(watched.directory)) {
+                        entry.getKey().cancel();
+                        keys.remove(entry.getKey());
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Check a process as soon as possible
+     *
+     * @param process The process
+     */
+    public void checkNow(XPMProcess process) {
+        synchronized (processes) {
+            final Watched watched = processes.get(process.getId());
+            if (watched == null) {
+                return;
+            }
+            signal(watched, System.currentTimeMillis());
+        }
+        wakeUp();
+    }
+
+    /**
+     * @return The number of watched processes
+     */
+    public int size() {
+        synchronized (processes) {
+            return processes.size();
+        }
+    }
+
+    private void wakeUp() {
+        synchronized (monitor) {
+            monitor.notify();
+        }
+        // Wakes up the thread when it waits for file system events
+        interrupt();
+    }
+
+    /**
+     * Stop watching
+     */
+    public void close() {
+        stopping = true;
+        checkers.shutdownNow();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOGGER.warn("Error while closing the watch service: %s", e);
+            }
+        }
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        LOGGER.info("Starting process watcher");
+
+        while (!stopping) {
+            try {
+                // Wait until the next check or a file system event
+                final long wait = Math.max(nextCheck() - System.currentTimeMillis(), 1);
+                if (watchService != null) {
+                    final WatchKey key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        processEvents(key);
+                    }
+                } else {
+                    synchronized (monitor) {
+                        monitor.wait(wait);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Either stopping or a new process to check
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+
+            if (!stopping) {
+                dispatch();
+            }
+        }
+
+        LOGGER.info("Stopping process watcher");
+    }
+
+    /**
+     * @return The time of the next check
+     */
+    private long nextCheck() {
+        long next = Long.MAX_VALUE;
+        synchronized (processes) {
+            for (Watched watched : processes.values()) {
+                if (!watched.checking) {
+                    next = Math.min(next, watched.nextCheck);
+                }
+            }
+        }
+        // Look at least at regular intervals
+        return Math.min(next, System.currentTimeMillis() + MAX_WATCHED_DELAY);
+    }
+
+    /**
+     * Process the events of all signalled keys: processes whose files changed are checked now
+     */
+    private void processEvents(WatchKey key) {
+        final long now = System.currentTimeMillis();
+        do {
+            synchronized (processes) {
+                final Path directory = keys.get(key);
+                final HashSet<Watched> set = directory != null ? directories.get(directory) : null;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (set == null) {
+                        continue;
+                    }
+
+                    for (Watched watched : set) {
+                        if (event.kind() == OVERFLOW || watched.files.contains(event.context())) {
+                            LOGGER.debug("File system event %s for %s", event.kind(), watched.process);
+                            signal(watched, now);
+                        }
+                    }
+                }
+            }
+            key.reset();
+        } while ((key = watchService.poll()) != null);
+    }
+
+    /**
+     * Ask for a check as soon as possible (should be called while holding the lock on processes)
+     */
+    private void signal(Watched watched, long now) {
+        watched.delay = MIN_DELAY;
+        watched.nextCheck = now;
+        if (watched.checking) {
+            watched.pending = true;
+        }
+    }
+
+    /**
+     * Check the processes that are due, grouped by connector
+     */
+    private void dispatch() {
+        final long now = System.currentTimeMillis();
+        final HashMap<SingleHostConnector, ArrayList<Watched>> groups = new HashMap<>();
+
+        synchronized (processes) {
+            for (Watched watched : processes.values()) {
+                if (!watched.checking && watched.nextCheck <= now) {
+                    watched.checking = true;
+                    watched.pending = false;
+                    groups.computeIfAbsent(watched.process.getConnector(), c -> new ArrayList<>()).add(watched);
+                }
+            }
+        }
+
+        for (Map.Entry<SingleHostConnector, ArrayList<Watched>> entry : groups.entrySet()) {
+            checkers.execute(() -> check(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * Check a group of processes running on the same connector
+     */
+    private void check(SingleHostConnector connector, ArrayList<Watched> group) {
+        final ArrayList<XPMProcess> list = new ArrayList<>(group.size());
+        for (Watched watched : group) {
+            list.add(watched.process);
+        }
+
+        LOGGER.debug("Checking %d processes on %s", list.size(), connector);
+        try {
+            connector.checkProcesses(list);
+        } catch (Throwable e) {
+            LOGGER.error(e, "Error while checking processes on %s", connector);
+        }
+
+        // Reschedule the processes that are still running, backing off
+        final long now = System.currentTimeMillis();
+        synchronized (processes) {
+            for (Watched watched : group) {
+                watched.checking = false;
+                if (watched.pending) {
+                    watched.nextCheck = now;
+                } else {
+                    watched.delay = Math.min(2 * watched.delay, watched.directory != null ? MAX_WATCHED_DELAY : MAX_DELAY);
+                    watched.nextCheck = now + watched.delay;
+                }
+            }
+        }
+        wakeUp();
+    }
+}
@@ -34,14 +34,21 @@ import sf.net.experimaestro.utils.log.Logger;
 
 import javax.persistence.Convert;
 import javax.persistence.Entity;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
+import static java.lang.String.format;
+import static sf.net.experimaestro.connectors.UnixScriptProcessBuilder.QUOTED_SPECIAL;
 import static sf.net.experimaestro.connectors.UnixScriptProcessBuilder.protect;
 
 /**
@@ -56,6 +63,18 @@ public class SSHConnector extends SingleHostConnector {
     /** Temporary path on host */
     public String temporaryPath = "/tmp";
 
+    /**
+     * Shell function used to probe jobs: outputs "ID R" if the job is running,
+     * and "ID E CODE TIME" (time in seconds) otherwise
+     */
+    static private final String PROBE_FUNCTION = "xpm_probe() {\n"
+            + "  if test -e \"$2.lock\"; then echo \"$1 R\"; return; fi\n"
+            + "  c=-1; t=-1\n"
+            + "  if test -e \"$2.code\"; then c=$(head -n 1 \"$2.code\"); t=$(date -r \"$2.code\" +%s 2> /dev/null); fi\n"
+            + "  if test -e \"$2.done\"; then c=0; fi\n"
+            + "  echo \"$1 E ${c:--1} ${t:--1}\"\n"
+            + "}\n";
+
     /**
      * Static map to sessions
      * This is necessary since the SSHConnector object can be serialized (within a resource)
@@ -179,6 +198,77 @@ public class SSHConnector extends SingleHostConnector {
         return new UnixScriptProcessBuilder(scriptFile, this);
     }
 
+    /**
+     * Checks all the processes with one remote command, rather than with
+     * one round-trip per job file
+     */
+    @Override
+    public void checkProcesses(Collection<XPMProcess> processes) {
+        // Processes that cannot be checked through the job files are checked one by one
+        final ArrayList<XPMProcess> others = new ArrayList<>();
+        final ArrayList<XPMProcess> batch = new ArrayList<>();
+        final StringBuilder script = new StringBuilder(PROBE_FUNCTION);
+        for (XPMProcess process : processes) {
+            if (!process.checksJobFiles()) {
+                others.add(process);
+                continue;
+            }
+
+            try {
+                final String path = resolve(process.getJob().getPath());
+                script.append(format("xpm_probe %d \"%s\"%n", batch.size(), protect(path, QUOTED_SPECIAL + "`\\")));
+                batch.add(process);
+            } catch (IOException e) {
+                LOGGER.warn("Cannot resolve the path of %s on %s: %s", process.getJob(), this, e);
+                others.add(process);
+            }
+        }
+
+        super.checkProcesses(others);
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        LOGGER.debug("Probing %d jobs on %s", batch.size(), this);
+        final boolean[] seen = new boolean[batch.size()];
+        try {
+            final ChannelExec channel = newExecChannel();
+            channel.setCommand("sh");
+            channel.setInputStream(new ByteArrayInputStream(script.toString().getBytes()));
+            channel.setErrStream(System.err, true);
+
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(channel.getInputStream()))) {
+                channel.connect();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.trim().split("\\s+");
+                    try {
+                        final int index = Integer.parseInt(fields[0]);
+                        seen[index] = true;
+                        if (fields[1].equals("E")) {
+                            final long time = Long.parseLong(fields[3]);
+                            batch.get(index).ended(Integer.parseInt(fields[2]), time < 0 ? -1 : time * 1000);
+                        }
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Could not parse probe output [%s] from %s", line, this);
+                    }
+                }
+            } finally {
+                channel.disconnect();
+            }
+        } catch (JSchException | IOException e) {
+            LOGGER.warn("Could not probe jobs on %s [%s]: checking them one by one", this, e);
+            super.checkProcesses(batch);
+            return;
+        }
+
+        for (int i = 0; i < seen.length; i++) {
+            if (!seen[i]) {
+                LOGGER.warn("No probe output for %s on %s", batch.get(i).getJob(), this);
+            }
+        }
+    }
+
     ChannelSftp newSftpChannel() throws JSchException, IOException {
         return (ChannelSftp) getSession().openChannel("sftp");
     }
@@ -103,4 +103,9 @@ public class SSHProcess extends XPMProcess {
     public boolean isRunning() {
         return channel.isConnected();
     }
+
+    @Override
+    public boolean checksJobFiles() {
+        return channel == null;
+    }
 }
@@ -22,6 +22,7 @@ import sf.net.experimaestro.exceptions.LockException;
 import sf.net.experimaestro.fs.XPMPath;
 import sf.net.experimaestro.locks.Lock;
 import sf.net.experimaestro.scheduler.Transaction;
+import sf.net.experimaestro.utils.log.Logger;
 
 import javax.persistence.DiscriminatorColumn;
 import javax.persistence.Entity;
@@ -30,6 +31,7 @@ import java.nio.file.FileSystem;
 import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
 
 import static java.lang.String.format;
 import static sf.net.experimaestro.utils.Functional.propagate;
@@ -45,6 +47,8 @@ import static sf.net.experimaestro.utils.Functional.propagateFunction;
 @Entity
 @DiscriminatorColumn(name = "type")
 abstract public class SingleHostConnector extends Connector {
+    final static private Logger LOGGER = Logger.getLogger();
+
     /**
      * Underlying filesystem
      */
@@ -158,6 +162,24 @@ abstract public class SingleHostConnector extends Connector {
         return getFileSystem().getPath(path);
     }
 
+    /**
+     * Check a set of processes running on this host, sending an end of job message for each
+     * process that has ended.
+     * <p/>
+     * The default implementation checks the processes one by one.
+     *
+     * @param processes The processes to check
+     */
+    public void checkProcesses(Collection<XPMProcess> processes) {
+        for (XPMProcess process : processes) {
+            try {
+                process.check();
+            } catch (Exception e) {
+                LOGGER.error(e, "Error while checking job [%s]", process.getJob());
+            }
+        }
+    }
+
     /**
      * Creates a script builder
      * @param scriptFile The path to the script file to createSSHAgentIdentityRepository
@@ -31,8 +31,6 @@ import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 /**
  * A process monitor.
@@ -52,11 +50,6 @@ import java.util.concurrent.TimeUnit;
 public abstract class XPMProcess {
     static private Logger LOGGER = Logger.getLogger();
 
-    /**
-     * The checker
-     */
-    protected transient ScheduledFuture<?> checker = null;
-
     @Id
     @GeneratedValue(strategy = GenerationType.AUTO)
     private long id;
@@ -141,11 +134,10 @@ public abstract class XPMProcess {
     /**
      * Initialization of the job monitor (when restoring from database)
      * <p/>
-     * The method also sets up a status checker at regular intervals.
+     * The method also registers the process to the process watcher.
      */
     public void init(Job job)  {
-        // TODO: use connector & job dependent times for checking
-        checker = Scheduler.get().schedule(this, 15, TimeUnit.SECONDS);
+        Scheduler.get().getProcessWatcher().watch(this);
     }
 
     @Override
@@ -153,6 +145,13 @@ public abstract class XPMProcess {
         return String.format("[Process of %s]", job);
     }
 
+    /**
+     * Get the process ID (in the database)
+     */
+    public long getId() {
+        return id;
+    }
+
     /**
      * Get the underlying job
      *
@@ -203,13 +202,10 @@ public abstract class XPMProcess {
      * Close this job monitor
      */
     void close() {
-        if (checker != null) {
-            LOGGER.info("Cancelling the checker for %s", this);
-            if (!checker.cancel(true)) {
-                checker = null;
-            } else
-                LOGGER.warn("Could not cancel the checker");
-
+        final Scheduler scheduler = Scheduler.get();
+        if (scheduler != null) {
+            LOGGER.debug("Stop watching %s", this);
+            scheduler.getProcessWatcher().unwatch(this);
         }
     }
 
@@ -269,14 +265,32 @@ public abstract class XPMProcess {
     public void check() throws Exception {
         if (!isRunning()) {
             // We are not running: send a message
-            LOGGER.debug("End of job [%s]", job);
             final Path file = Resource.CODE_EXTENSION.transform(job.getPath());
             final long time = Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : -1;
-            Scheduler.get().sendMessage(job, new EndOfJobMessage(exitValue(), time));
-            dispose();
+            ended(exitValue(), time);
         }
     }
 
+    /**
+     * Called when the process has ended: notifies the job and disposes of this monitor
+     *
+     * @param code The exit code
+     * @param timestamp The time when the process ended (or -1 if unknown)
+     */
+    void ended(int code, long timestamp) {
+        LOGGER.debug("End of job [%s]", job);
+        Scheduler.get().sendMessage(job, new EndOfJobMessage(code, timestamp));
+        dispose();
+    }
+
+    /**
+     * Whether the state of the process is only given by the job files (lock, done and code files),
+     * which is the case when the process is restored from the database
+     */
+    public boolean checksJobFiles() {
+        return true;
+    }
+
     /**
      * @see {@linkplain Process#getOutputStream()}
      */
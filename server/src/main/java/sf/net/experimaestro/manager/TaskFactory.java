@@ -21,7 +21,10 @@ package sf.net.experimaestro.manager;
 import sf.net.experimaestro.manager.json.JsonObject;
 import sf.net.experimaestro.scheduler.Commands;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Set;
 
 import static java.lang.String.format;
 
@@ -135,6 +138,46 @@ public abstract class TaskFactory {
         module.addFactory(this);
     }
 
+    /**
+     * Whether tasks created by this factory can be run concurrently (in different threads)
+     * when a plan is run with a parallelism greater than one
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Whether tasks created by this factory, and the tasks they run to compute their inputs
+     * (task and alternative inputs), can all be run concurrently
+     */
+    public boolean isThreadSafeTree() {
+        return isThreadSafeTree(Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    private boolean isThreadSafeTree(Set<TaskFactory> visited) {
+        if (!visited.add(this)) {
+            return true;
+        }
+        if (!isThreadSafe()) {
+            return false;
+        }
+
+        for (Input input : getInputs().values()) {
+            if (input instanceof TaskInput) {
+                if (!((TaskInput) input).factory.isThreadSafeTree(visited)) {
+                    return false;
+                }
+            } else if (input.getType() instanceof AlternativeType) {
+                for (TaskFactory factory : ((AlternativeType) input.getType()).factories.values()) {
+                    if (!factory.isThreadSafeTree(visited)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
     public Commands commands(JsonObject json, boolean simulate) {
         throw new IllegalAccessError(format("This task factory [%s] cannot generate a command", this.getClass()));
     }
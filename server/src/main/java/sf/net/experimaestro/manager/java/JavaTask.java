@@ -18,6 +18,7 @@ package sf.net.experimaestro.manager.java;
  * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import com.google.common.util.concurrent.Striped;
 import org.apache.log4j.Level;
 import sf.net.experimaestro.exceptions.ExperimaestroCannotOverwrite;
 import sf.net.experimaestro.exceptions.XPMRuntimeException;
@@ -35,6 +36,7 @@ import sf.net.experimaestro.utils.log.Logger;
 import java.io.PrintWriter;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
 /**
  * A task which is backed up main a Java class
@@ -42,6 +44,12 @@ import java.util.Map;
 public class JavaTask extends Task {
 //    final static private Logger LOGGER = Logger.getLogger();
 
+    /**
+     * Serializes the check and the storage of jobs with the same locator, since
+     * tasks can be run concurrently (see {@linkplain JavaTaskFactory#isThreadSafe()})
+     */
+    private static final Striped<Lock> LOCATOR_LOCKS = Striped.lock(64);
+
     private final JavaTaskFactory javaFactory;
 
     public JavaTask(JavaTaskFactory factory) {
@@ -86,6 +94,10 @@ public class JavaTask extends Task {
 
         final Logger taskLogger = taskContext.getLogger("JavaTask");
 
+        final BulkSubmission bulkSubmission = taskContext.simulate() ? null : taskContext.getBulkSubmission();
+
+        final Lock locatorLock = LOCATOR_LOCKS.get(_path);
+        locatorLock.lock();
         try (Transaction transaction = Transaction.create()) {
             final Resource old = Resource.getByLocator(transaction.em(), _path);
             if (old != null && !old.canBeReplaced()) {
@@ -94,7 +106,7 @@ public class JavaTask extends Task {
                         Level.DEBUG : Level.INFO, "Cannot overwrite task %s [%d]", old.getLocator(), old.getId());
             } else {
                 // --- Build the command
-                Commands commands = javaFactory.commands(json, taskContext.simulate());
+                Commands commands = javaFactory.commands(json, taskContext.simulate(), bulkSubmission);
 
                 CommandLineTask task = new CommandLineTask(commands);
 
@@ -108,6 +120,10 @@ public class JavaTask extends Task {
                     pw.format("Command: %s%n", task.getCommands().toString());
                     pw.format("Path: %s", path);
                     pw.flush();
+                } else if (bulkSubmission != null) {
+                    // The job is stored (or not, if it cannot be replaced anymore) when the submission ends
+                    job.setJobRunner(task);
+                    bulkSubmission.add(job, (t, resource) -> taskContext.startedJob((Job) resource));
                 } else {
                     job.setJobRunner(task);
 
@@ -131,7 +147,9 @@ public class JavaTask extends Task {
                     transaction.commit();
                 }
 
-                taskContext.startedJob(job);
+                if (bulkSubmission == null) {
+                    taskContext.startedJob(job);
+                }
             }
         } catch(XPMRuntimeException e) {
             e.addContext("while storing task %s", path);
@@ -140,6 +158,8 @@ public class JavaTask extends Task {
             final XPMRuntimeException e2 = new XPMRuntimeException(e);
             e2.addContext("while storing task %s", path);
             throw e2;
+        } finally {
+            locatorLock.unlock();
         }
 
         // --- Fill some fields in returned json
@@ -150,8 +150,27 @@ public class JavaTaskFactory extends TaskFactory {
         return task;
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        // Tasks only compute a command line and store a job
+        return true;
+    }
+
     @Override
     public Commands commands(JsonObject json, boolean simulate) {
+        return commands(json, simulate, null);
+    }
+
+    /**
+     * Builds the command line of a task
+     *
+     * @param json           The task parameters
+     * @param simulate       If true, dependencies are not resolved
+     * @param bulkSubmission The current bulk submission (or null): the jobs it holds are not stored yet,
+     *                       and are looked at before the database when resolving dependencies
+     * @return The commands
+     */
+    public Commands commands(JsonObject json, boolean simulate, BulkSubmission bulkSubmission) {
         final Command command = new Command();
 
         Command classpath = new Command();
@@ -201,7 +220,10 @@ public class JavaTaskFactory extends TaskFactory {
                         if (o instanceof Resource) {
                             resource = (Resource) o;
                         } else {
-                            resource = Resource.getByLocator(em, o.toString());
+                            resource = bulkSubmission == null ? null : bulkSubmission.getJob(o.toString());
+                            if (resource == null) {
+                                resource = Resource.getByLocator(em, o.toString());
+                            }
                             if (resource == null) {
                                 throw new XPMRuntimeException("Cannot find the resource %s the task %s depends upon",
                                         o.toString(), getId());
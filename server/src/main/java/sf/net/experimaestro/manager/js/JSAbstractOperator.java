@@ -141,7 +141,7 @@ public abstract class JSAbstractOperator extends JSBaseObject {
         PrintStream ps = new PrintStream(baos);
         Operator operator = getOperator().prepare();
         if (simplify)
-            operator = Operator.simplify(operator);
+            operator = Optimizer.optimize(Operator.simplify(operator));
         operator.printDOT(ps);
         return baos.toString();
     }
@@ -173,7 +173,7 @@ public abstract class JSAbstractOperator extends JSBaseObject {
 
         operator = operator.prepare();
         if (simplify)
-            operator = Operator.simplify(operator);
+            operator = Optimizer.optimize(Operator.simplify(operator));
         if (initialize)
             operator.init();
 
@@ -195,6 +195,12 @@ public abstract class JSAbstractOperator extends JSBaseObject {
         return doRun(true, details);
     }
 
+    @Expose
+    @Help("Simulates the plan and returns its graph (DOT format) with the estimated (e) and actual (#) number of values of each operator")
+    public String explain() throws XPathExpressionException, ExperimaestroCannotOverwrite {
+        return doRun(true, true, new ArrayList<>());
+    }
+
     @Expose
     @Help("Wrap each output into an array")
     public JSOperator arrays() {
@@ -204,8 +210,26 @@ public abstract class JSAbstractOperator extends JSBaseObject {
     }
 
     private Object doRun(boolean simulate, boolean details) throws XPathExpressionException, ExperimaestroCannotOverwrite {
+        ArrayList<JSJson> result = new ArrayList<>();
+        final String dot = doRun(simulate, details, result);
+
+        if (!details)
+            return result.toArray(new JSJson[result.size()]);
+
+        return new NativeArray(new Object[]{result, dot});
+    }
+
+    /**
+     * Runs the plan
+     *
+     * @param result The list where the output values are stored
+     * @return The graph of the plan (with counts) if details is true, null otherwise
+     */
+    private String doRun(boolean simulate, boolean details, List<JSJson> result) throws XPathExpressionException, ExperimaestroCannotOverwrite {
         try(ScriptContext scriptContext = xpm().getScriptContext().copy()) {
             scriptContext.counts(details);
+            if (simulate)
+                scriptContext.simulate(true);
 
             // If we have an experimentId, get the task reference and store them
             Long experimentId = xpm().getScriptContext().getExperimentId();
@@ -220,7 +244,6 @@ public abstract class JSAbstractOperator extends JSBaseObject {
             }
 
 
-            ArrayList<JSJson> result = new ArrayList<>();
             Operator operator = getOperator(true, true);
 
             final Iterator<Value> nodes = operator.iterator(scriptContext);
@@ -229,14 +252,14 @@ public abstract class JSAbstractOperator extends JSBaseObject {
             }
 
             if (!details)
-                return result.toArray(new JSJson[result.size()]);
+                return null;
 
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             PrintStream ps = new PrintStream(baos);
             operator.printDOT(ps, scriptContext.counts());
             ps.flush();
 
-            return new NativeArray(new Object[]{result, baos.toString()});
+            return baos.toString();
         }
     }
 
@@ -60,6 +60,8 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
 
 /**
  * Global context when executing a javascript
@@ -69,6 +71,11 @@ public class XPMContext implements AutoCloseable {
 
     static private final Logger LOGGER = Logger.getLogger();
 
+    /**
+     * Number of instructions between two checks of the cancellation flag
+     */
+    static private final int CANCELLATION_CHECK_INSTRUCTIONS = 10000;
+
     /**
      * The global functions
      */
@@ -166,11 +173,27 @@ public class XPMContext implements AutoCloseable {
     }
 
     public XPMContext(Map<String, String> environment, Repositories repositories, Scheduler scheduler, Hierarchy loggerRepository, Integer debugPort) throws Exception {
+        this(environment, repositories, scheduler, loggerRepository, debugPort, null);
+    }
+
+    /**
+     * @param cancelled If not null, checked regularly while running scripts: the script is stopped
+     *                  (with a {@linkplain CancellationException}) once it returns true
+     */
+    public XPMContext(Map<String, String> environment, Repositories repositories, Scheduler scheduler, Hierarchy loggerRepository, Integer debugPort,
+                      BooleanSupplier cancelled) throws Exception {
         this.repositories = repositories;
         this.staticContext = new StaticContext(scheduler, loggerRepository).repository(repositories);
         // --- Debugging via JSDT
         // http://wiki.eclipse.org/JSDT/Debug/Rhino/Embedding_Rhino_Debugger#Example_Code
-        ContextFactory factory = new ContextFactory();
+        ContextFactory factory = cancelled == null ? new ContextFactory() : new ContextFactory() {
+            @Override
+            protected void observeInstructionCount(Context cx, int instructionCount) {
+                if (cancelled.getAsBoolean()) {
+                    throw new CancellationException("Script cancelled");
+                }
+            }
+        };
 
         if (debugPort != null) {
             debugger = new RhinoDebugger("transport=socket,suspend=y,address=" + debugPort);
@@ -180,6 +203,9 @@ public class XPMContext implements AutoCloseable {
             debugger = null;
         }
         context = factory.enterContext();
+        if (cancelled != null) {
+            context.setInstructionObserverThreshold(CANCELLATION_CHECK_INSTRUCTIONS);
+        }
 
         this.environment = environment;
 
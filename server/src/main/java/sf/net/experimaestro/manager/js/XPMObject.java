@@ -846,7 +846,14 @@ public class XPMObject {
                                 resource = (Resource) depObject;
                             } else {
                                 final String rsrcPath = Context.toString(depObject);
-                                resource = Resource.getByLocator(em, rsrcPath);
+                                final BulkSubmission bulkSubmission = getScriptContext().getBulkSubmission();
+                                if (bulkSubmission != null) {
+                                    // The job might be part of the current bulk submission (and not stored yet)
+                                    resource = bulkSubmission.getJob(rsrcPath);
+                                }
+                                if (resource == null) {
+                                    resource = Resource.getByLocator(em, rsrcPath);
+                                }
                                 if (resource == null)
                                     if (simulate()) {
                                         if (!submittedJobs.containsKey(rsrcPath))
@@ -896,27 +903,40 @@ public class XPMObject {
                 dependencies.forEach(job::addDependency);
 
                 // Register within an experimentId
-                if (getScriptContext().getExperimentId() != null) {
-                    TaskReference reference = taskContext.getTaskReference();
+                final TaskReference reference = getScriptContext().getExperimentId() != null ?
+                        taskContext.getTaskReference() : null;
+
+                final Resource old = Resource.getByLocator(transaction.em(), job.getLocator());
+                if (old != null && !old.canBeReplaced()) {
+                    taskLogger.log(old.getState() == ResourceState.DONE ? Level.DEBUG : Level.INFO,
+                            "Cannot overwrite task %s [%d]", old.getLocator(), old.getId());
+                    return old;
+                }
+
+                // Bulk submission: the job is stored (or not, if it cannot be replaced anymore)
+                // when the submission ends
+                final BulkSubmission bulkSubmission = getScriptContext().getBulkSubmission();
+                if (bulkSubmission != null) {
+                    bulkSubmission.add(job, reference == null ? null : (t, resource) -> {
+                        reference.add(resource);
+                        t.em().persist(reference);
+                    });
+                    this.submittedJobs.put(job.getLocator(), job);
+                    return job;
+                }
+
+                if (reference != null) {
                     reference.add(job);
                     em.persist(reference);
                 }
 
-                final Resource old = Resource.getByLocator(transaction.em(), job.getLocator());
-
                 // Replace old if necessary
                 if (old != null) {
-                    if (!old.canBeReplaced()) {
-                        taskLogger.log(old.getState() == ResourceState.DONE ? Level.DEBUG : Level.INFO,
-                                "Cannot overwrite task %s [%d]", old.getLocator(), old.getId());
-                        return old;
-                    } else {
-                        taskLogger.info("Replacing resource %s [%d]", old.getLocator(), old.getId());
-                        old.lock(transaction, true);
-                        em.refresh(old);
-                        old.replaceBy(job);
-                        job = (Job) old;
-                    }
+                    taskLogger.info("Replacing resource %s [%d]", old.getLocator(), old.getId());
+                    old.lock(transaction, true);
+                    em.refresh(old);
+                    old.replaceBy(job);
+                    job = (Job) old;
                 }
 
                 // Store in scheduler
@@ -77,6 +77,11 @@ public class Constant extends Operator {
         return String.format("JSON (#=%d)", values.size());
     }
 
+    @Override
+    public long estimatedCardinality() {
+        return values.size();
+    }
+
     public void add(Constant source) {
         values.addAll(source.values);
     }
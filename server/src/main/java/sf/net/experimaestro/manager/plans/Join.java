@@ -18,8 +18,11 @@ package sf.net.experimaestro.manager.plans;
  * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import org.apache.commons.lang.mutable.MutableInt;
 import sf.net.experimaestro.manager.scripting.ScriptContext;
@@ -29,27 +32,114 @@ import sf.net.experimaestro.utils.log.Logger;
 import java.io.PrintStream;
 import java.util.*;
 
-import static java.lang.StrictMath.max;
 import static java.lang.System.identityHashCode;
 
 /**
  * Join various inputs together on a common subset of operators
+ * <p>
+ * Values are joined on positions (the contexts of the joined operators) shared by all the
+ * inputs. A value whose context is -1 for a joined operator (a joker) matches any position:
+ * it is joined with the values of the other inputs at each position where all inputs have a
+ * value that is not a joker, and its -1 contexts are replaced by this position. Both strategies
+ * produce the same values (possibly in a different order).
  *
  * @author B. Piwowarski <benjamin@bpiwowar.net>
  */
 public class Join extends Product {
     final static private Logger LOGGER = Logger.getLogger();
 
+    /**
+     * Maximum estimated number of values stored in the hash tables of a hash join
+     */
+    static final long MAX_HASH_JOIN_SIZE = 100_000;
+
+    /**
+     * How inputs are joined
+     */
+    public enum Strategy {
+        /**
+         * Streaming merge of inputs ordered on the joined streams (parents are {@linkplain OrderBy} operators)
+         */
+        MERGE,
+
+        /**
+         * All the inputs but the largest one are stored in hash tables, which are probed
+         * by the values of the largest input (inputs need not be ordered)
+         */
+        HASH
+    }
+
     /**
      * The list of streams on which we join
      */
     ArrayList<JoinReference> joins = new ArrayList<>();
 
+    /**
+     * The join strategy
+     */
+    Strategy strategy = Strategy.MERGE;
+
+    public Join() {
+    }
+
+    public Join(Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Chooses the join strategy given the (estimated) cardinalities of the inputs: a
+     * hash join is used when the inputs that are not the largest one are small enough
+     * to be held in memory
+     *
+     * @param inputs The inputs to join
+     */
+    static Strategy strategy(List<Operator> inputs) {
+        final long[] cardinalities = new long[inputs.size()];
+        int largest = -1;
+        for (int i = 0; i < cardinalities.length; i++) {
+            cardinalities[i] = inputs.get(i).estimatedCardinality();
+            if (largest < 0 || cardinalities[i] > cardinalities[largest])
+                largest = i;
+        }
+
+        // Size of the hash tables (all the inputs but the largest one)
+        long total = 0;
+        for (int i = 0; i < cardinalities.length; i++) {
+            if (i != largest)
+                total = add(total, cardinalities[i]);
+        }
+
+        return total <= MAX_HASH_JOIN_SIZE ? Strategy.HASH : Strategy.MERGE;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
     @Override
     protected Iterator<ReturnValue> _iterator(ScriptContext scriptContext) {
+        if (strategy == Strategy.HASH)
+            return new HashJoinIterator(scriptContext);
         return new JoinIterator(scriptContext);
     }
 
+    @Override
+    int iterations(int parentIndex) {
+        // Inputs are read once
+        return 1;
+    }
+
+    @Override
+    public long estimatedCardinality() {
+        // Values are joined on common ancestors: assumes each value of the largest
+        // input is joined with one value of the other inputs
+        long cardinality = 0;
+        for (Operator parent : parents) {
+            cardinality = Math.max(cardinality, parent.estimatedCardinality());
+        }
+        return cardinality;
+    }
+
     @Override
     protected void ensureConnections(Map<Operator, Operator> map) {
         for (JoinReference reference : joins)
@@ -64,7 +154,7 @@ public class Join extends Product {
 
     @Override
     protected String getName() {
-        return "join";
+        return strategy == Strategy.HASH ? "hash join" : "join";
     }
 
     @Override
@@ -81,17 +171,19 @@ public class Join extends Product {
     protected void doPostInit(List<Map<Operator, Integer>> parentStreams) {
         super.doPostInit(parentStreams);
 
-        // Order the joins in function of the orders of streams
-        // We can pick any parent since they share the same order
-        Order<Operator> order = ((OrderBy) parents.get(0)).order;
-        order.flatten();
-        int rank = 0;
-        final Object2IntOpenHashMap<Operator> rankMap = new Object2IntOpenHashMap<>();
-        for (Operator operator : order.items()) {
-            rankMap.put(operator, rank++);
-        }
+        if (strategy == Strategy.MERGE) {
+            // Order the joins in function of the orders of streams
+            // We can pick any parent since they share the same order
+            Order<Operator> order = ((OrderBy) parents.get(0)).order;
+            order.flatten();
+            int rank = 0;
+            final Object2IntOpenHashMap<Operator> rankMap = new Object2IntOpenHashMap<>();
+            for (Operator operator : order.items()) {
+                rankMap.put(operator, rank++);
+            }
 
-        Collections.sort(joins, (o1, o2) -> Integer.compare(rankMap.get(o1.operator), rankMap.get(o2.operator)));
+            Collections.sort(joins, (o1, o2) -> Integer.compare(rankMap.get(o1.operator), rankMap.get(o2.operator)));
+        }
 
 
         // Get the context index for each join & stream
@@ -137,6 +229,261 @@ public class Join extends Product {
         }
     }
 
+    /**
+     * Returns the joined positions of a value of a given stream
+     */
+    private long[] key(int streamIndex, Value value) {
+        final long[] key = new long[joins.size()];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = value.context[joins.get(i).contextIndices[streamIndex]];
+        }
+        return key;
+    }
+
+    /**
+     * Checks whether a value is compatible with joined positions (-1 matches any position)
+     */
+    private boolean compatible(int streamIndex, Value value, long[] key) {
+        for (int i = 0; i < key.length; i++) {
+            final long position = value.context[joins.get(i).contextIndices[streamIndex]];
+            if (position != -1 && key[i] != -1 && position != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean hasJoker(long[] key) {
+        for (long position : key) {
+            if (position == -1)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns a value whose -1 joined positions are replaced by the given positions
+     */
+    private Value resolve(int streamIndex, Value value, long[] positions) {
+        long[] context = value.context;
+        for (int i = 0; i < positions.length; i++) {
+            final int contextIndex = joins.get(i).contextIndices[streamIndex];
+            if (context[contextIndex] == -1) {
+                if (context == value.context)
+                    context = context.clone();
+                context[contextIndex] = positions[i];
+            }
+        }
+
+        if (context == value.context)
+            return value;
+
+        final Value resolved = new Value(context, value.nodes);
+        resolved.id = value.id;
+        return resolved;
+    }
+
+    /**
+     * Hash of joined positions (the positions themselves for a single join)
+     */
+    private static long hash(long[] key) {
+        if (key.length == 1)
+            return key[0];
+        long hash = 0;
+        for (long position : key) {
+            hash = 31 * hash + position;
+        }
+        return hash;
+    }
+
+    /**
+     * The values of an input, indexed by joined positions
+     */
+    private class HashTable {
+        final int streamIndex;
+
+        /**
+         * Values with no -1 joined position, indexed by the hash of the positions
+         */
+        final Long2ObjectOpenHashMap<ArrayList<Value>> values = new Long2ObjectOpenHashMap<>();
+
+        /**
+         * Values with at least one -1 joined position
+         */
+        final ArrayList<Value> jokers = new ArrayList<>();
+
+        HashTable(int streamIndex) {
+            this.streamIndex = streamIndex;
+        }
+
+        void add(Value value) {
+            final long[] key = key(streamIndex, value);
+            if (hasJoker(key)) {
+                jokers.add(value);
+                return;
+            }
+
+            final long hash = hash(key);
+            ArrayList<Value> list = values.get(hash);
+            if (list == null) {
+                values.put(hash, list = new ArrayList<>(1));
+            }
+            list.add(value);
+        }
+
+        /**
+         * Returns the values joined at the given positions (which have no -1 position):
+         * the values at these positions followed by the compatible jokers (resolved), or
+         * an empty list if no value (but jokers) is at these positions
+         */
+        List<Value> get(long[] key) {
+            final ArrayList<Value> matches = new ArrayList<>();
+            final ArrayList<Value> list = values.get(hash(key));
+            if (list != null) {
+                for (Value value : list) {
+                    // Checks the positions (hash collisions)
+                    if (compatible(streamIndex, value, key))
+                        matches.add(value);
+                }
+            }
+
+            if (!matches.isEmpty()) {
+                for (Value value : jokers) {
+                    if (compatible(streamIndex, value, key))
+                        matches.add(resolve(streamIndex, value, key));
+                }
+            }
+            return matches;
+        }
+    }
+
+    /**
+     * Hash join: all the inputs but the largest one (in estimated cardinality) are read
+     * into hash tables, and the values of the largest input are then joined in order.
+     * <p>
+     * The jokers of the largest input are joined at the end, with the joined positions
+     * of the other values of the largest input.
+     */
+    private class HashJoinIterator extends AbstractIterator<ReturnValue> {
+        final ScriptContext scriptContext;
+
+        /**
+         * The probing input and its iterator
+         */
+        int probe = -1;
+        Iterator<Value> probeIterator;
+
+        HashTable[] tables;
+
+        /**
+         * The jokers of the probing input
+         */
+        final ArrayList<Value> probeJokers = new ArrayList<>();
+
+        /**
+         * The joined positions of the probing input where all the inputs have values
+         */
+        final LinkedHashSet<LongArrayList> joinedKeys = new LinkedHashSet<>();
+
+        /**
+         * Iterates over the joker and joined positions pairs (once the probing input has been read)
+         */
+        Iterator<Value> jokerIterator;
+        Value joker;
+        Iterator<LongArrayList> keyIterator = Collections.emptyIterator();
+
+        Iterator<Value[]> productIterator = ImmutableList.<Value[]>of().iterator();
+
+        HashJoinIterator(ScriptContext scriptContext) {
+            this.scriptContext = scriptContext;
+        }
+
+        private void build() {
+            long max = -1;
+            for (int i = 0; i < parents.size(); i++) {
+                final long cardinality = parents.get(i).estimatedCardinality();
+                if (cardinality > max) {
+                    max = cardinality;
+                    probe = i;
+                }
+            }
+
+            tables = new HashTable[parents.size()];
+            for (int i = 0; i < parents.size(); i++) {
+                if (i != probe) {
+                    tables[i] = new HashTable(i);
+                    final Iterator<Value> iterator = parents.get(i).iterator(scriptContext);
+                    while (iterator.hasNext()) {
+                        tables[i].add(iterator.next());
+                    }
+                }
+            }
+
+            LOGGER.debug("[%s] Hash join: probing with stream %d", identityHashCode(Join.this), probe);
+            probeIterator = parents.get(probe).iterator(scriptContext);
+        }
+
+        @Override
+        protected ReturnValue computeNext() {
+            if (probeIterator == null) {
+                build();
+            }
+
+            while (true) {
+                if (productIterator.hasNext()) {
+                    return getReturnValue(productIterator.next());
+                }
+
+                if (probeIterator.hasNext()) {
+                    final Value value = probeIterator.next();
+                    final long[] key = key(probe, value);
+                    if (hasJoker(key)) {
+                        probeJokers.add(value);
+                    } else if (product(value, key)) {
+                        joinedKeys.add(LongArrayList.wrap(key));
+                    }
+                    continue;
+                }
+
+                // Joins the jokers of the probing input
+                if (jokerIterator == null) {
+                    jokerIterator = probeJokers.iterator();
+                }
+
+                if (keyIterator.hasNext()) {
+                    final long[] key = keyIterator.next().elements();
+                    if (compatible(probe, joker, key)) {
+                        product(resolve(probe, joker, key), key);
+                    }
+                    continue;
+                }
+
+                if (!jokerIterator.hasNext())
+                    return endOfData();
+
+                joker = jokerIterator.next();
+                keyIterator = joinedKeys.iterator();
+            }
+        }
+
+        /**
+         * Sets the product of a value of the probing input with the values of the other
+         * inputs at the given joined positions
+         *
+         * @return True if all the other inputs have values at these positions
+         */
+        private boolean product(Value value, long[] key) {
+            List<Value> lists[] = new List[parents.size()];
+            for (int i = 0; i < parents.size(); i++) {
+                lists[i] = i == probe ? ImmutableList.of(value) : tables[i].get(key);
+                if (lists[i].isEmpty())
+                    return false;
+            }
+
+            productIterator = CartesianProduct.of(Value.class, lists).iterator();
+            return true;
+        }
+    }
+
     private class JoinIterator extends Product.AbstractProductIterator {
         // An iterator
         Iterator<Value[]> productIterator = ImmutableList.<Value[]>of().iterator();
@@ -165,22 +512,19 @@ public class Join extends Product {
         }
 
 
+        /**
+         * Reads the next value of a stream that is not a joker; jokers are stored
+         * until the joined positions they are compatible with have been processed
+         */
         @Override
         boolean next(int i) {
-            if (!super.next(i))
-                return false;
-
-
-            // Add the value to the set
-            final Value value = current[i];
-            for (long c : value.context) {
-                if (c == -1) {
-                    stored[i].add(value);
-                    break;
-                }
+            while (super.next(i)) {
+                final Value value = current[i];
+                if (!hasJoker(key(i, value)))
+                    return true;
+                stored[i].add(value);
             }
-
-            return true;
+            return false;
         }
 
         private Iterable<Value> jokers(final int streamIndex) {
@@ -196,28 +540,29 @@ public class Join extends Product {
 
             set.headSet(new Value(streamPositions), true).clear();
 
-            return Iterables.filter(set, input -> {
-                for (JoinReference reference : joins) {
-                    long pos = input.context[reference.contextIndices[streamIndex]];
-                    if (pos != -1 && pos != positions[reference.rank])
-                        return false;
-                }
-                return true;
-            });
+            return Iterables.transform(
+                    Iterables.filter(set, input -> compatible(streamIndex, input, positions)),
+                    input -> resolve(streamIndex, input, positions));
+        }
+
+        /**
+         * Compares the joined positions of the current value of a stream with the given positions
+         */
+        private int compare(int streamIndex, long[] positions) {
+            final long[] context = current[streamIndex].context;
+            for (int i = 0; i < positions.length; i++) {
+                final int z = Long.compare(context[joins.get(i).contextIndices[streamIndex]], positions[i]);
+                if (z != 0)
+                    return z;
+            }
+            return 0;
         }
 
         @Override
         protected ReturnValue computeNext() {
             // First loop
-
             if (first) {
                 if (!computeFirst()) return endOfData();
-                positions = new long[joins.size()];
-                for (int i = positions.length; --i >= 0; ) {
-                    positions[i] = -1;
-                    for (int j = parents.size(); --j >= 0; )
-                        positions[i] = max(positions[i], current[j].context[joins.get(i).contextIndices[j]]);
-                }
             }
 
             // Loop until we have a not empty cartesian product with joined values
@@ -230,81 +575,46 @@ public class Join extends Product {
                 if (last)
                     return endOfData();
 
-                // Loop until joins are satisfied
+                // Loop until all the streams are at the same joined positions (inputs
+                // are ordered on the joined positions, in the order of the joins)
+                positions = key(0, current[0]);
                 joinLoop:
-                for (int joinIndex = 0; joinIndex < joins.size(); ) {
-                    JoinReference join = joins.get(joinIndex);
-
+                while (true) {
                     for (int streamIndex = 0; streamIndex < parents.size(); streamIndex++) {
-                        int contextIndex = join.contextIndices[streamIndex];
-                        LOGGER.debug("[%s] Context %d of stream %d is %d (position = %d)",
-                                identityHashCode(Join.this),
-                                contextIndex, streamIndex, current[streamIndex].context[contextIndex],
-                                positions[joinIndex]);
-
-                        if (current[streamIndex].context[contextIndex] > positions[joinIndex]) {
-                            int minRank = checkChanges(streamIndex, positions, joinIndex + 1);
-                            assert minRank >= 0;
-                            joinIndex = minRank;
-                            LOGGER.trace("[%s] Restarting the join with context: ",
-                                    identityHashCode(Join.this),
-                                    Arrays.toString(positions));
-                            continue joinLoop;
-                        }
-
-                        while (current[streamIndex].context[contextIndex] < positions[joinIndex]) {
+                        while (compare(streamIndex, positions) < 0) {
                             if (!next(streamIndex))
                                 return endOfData();
-
-                            int minRank = checkChanges(streamIndex, positions, joinIndex + 1);
-
-                            // A join current index changed: go back to the main loop on joins
-                            if (minRank != -1) {
-                                joinIndex = minRank;
-                                if (LOGGER.isTraceEnabled())
-                                    LOGGER.trace("[%s] Restarting the join with context: ",
-                                            identityHashCode(Join.this),
-                                            Arrays.toString(positions));
-                                continue joinLoop;
-                            }
-
-                            LOGGER.debug("[%s] Context[a] %d of stream %d is %d (position = %d)",
-                                    identityHashCode(Join.this),
-                                    contextIndex, streamIndex, current[streamIndex].context[contextIndex],
-                                    positions[joinIndex]);
                         }
 
-
-                        // Asserts that we arrived at the right position
-                        assert current[streamIndex].context[contextIndex] == positions[joinIndex];
+                        if (compare(streamIndex, positions) > 0) {
+                            positions = key(streamIndex, current[streamIndex]);
+                            LOGGER.trace("[%s] Restarting the join with context: %s",
+                                    identityHashCode(Join.this), Arrays.toString(positions));
+                            continue joinLoop;
+                        }
                     }
-
-                    // A join is complete, now we can process next joinIndex
-                    joinIndex++;
+                    break;
                 }
 
                 // Fill the cartesian product
                 List<Value> lists[] = new List[parents.size()];
-                long newPositions[] = new long[joins.size()];
-
-                last = true;
                 for (int streamIndex = 0; streamIndex < parents.size(); streamIndex++) {
                     lists[streamIndex] = new ArrayList<>();
                     lists[streamIndex].add(current[streamIndex]);
                     while (true) {
                         if (!next(streamIndex)) {
+                            last = true;
                             break;
                         }
-                        if (checkChanges(streamIndex, newPositions, joins.size()) >= 0) {
-                            last = false;
+                        if (compare(streamIndex, positions) != 0) {
                             break;
                         }
                         lists[streamIndex].add(current[streamIndex]);
+                    }
 
-                        // Add all compatible joker
-                        for (Value value : jokers(streamIndex)) {
-                            lists[streamIndex].add(new Value(positions, value.nodes));
-                        }
+                    // Add all compatible jokers
+                    for (Value value : jokers(streamIndex)) {
+                        lists[streamIndex].add(value);
                     }
                 }
 
@@ -319,43 +629,12 @@ public class Join extends Product {
                     }
                 }
 
-                // Set the current position
-                positions = newPositions;
                 productIterator = CartesianProduct.of(Value.class, lists).iterator();
-
             }
 
         }
 
 
-        /**
-         * Check the changes in joins
-         *
-         * @param streamIndex
-         * @param newPositions
-         * @param maxRank      Check until this rank
-         * @return
-         */
-        private int checkChanges(int streamIndex, long[] newPositions, int maxRank) {
-            int minRank = -1;
-            final Value value = current[streamIndex];
-
-            for (int i = maxRank; --i >= 0; ) {
-                JoinReference join = joins.get(i);
-                long resultId = value.context[join.contextIndices[streamIndex]];
-                if (this.positions[i] < resultId) {
-                    newPositions[i] = resultId;
-                    minRank = i;
-                } else {
-                    // Fails if the input stream is not properly ordered
-                    // TODO: check is not correct (fails when properly ordered)
-//                    assert this.positions[i] == resultId;
-                }
-            }
-            return minRank;
-        }
-
-
         private class ContextComparator implements Comparator<Value> {
             private final int stream;
 
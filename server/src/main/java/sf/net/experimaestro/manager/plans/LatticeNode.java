@@ -86,8 +86,10 @@ final public class LatticeNode implements HeapElement<LatticeNode> {
             return product;
         }
 
-        // Need a join
-        Join join = new Join();
+        // Need a join: use a hash join if the inputs are small enough, since
+        // the merge join needs all its inputs to be sorted
+        final Join.Strategy strategy = Join.strategy(operators);
+        Join join = new Join(strategy);
         // This will hold the common order between the OrderBy operators
         Order<Operator> order = new Order();
 
@@ -104,6 +106,13 @@ final public class LatticeNode implements HeapElement<LatticeNode> {
             order.add(op);
         }
 
+        if (strategy == Join.Strategy.HASH) {
+            for (Operator parent : operators) {
+                join.addParent(parent);
+            }
+            return join;
+        }
+
         for (Operator parent : operators) {
             // Order the results first
             OrderBy orderBy = new OrderBy(order, null);
@@ -63,6 +63,12 @@ public abstract class Operator {
      */
     int outputSize = 1;
 
+    /**
+     * Number of iterators that will be requested over the output of this operator
+     * (computed by {@linkplain #init()}, 0 if not known)
+     */
+    int readers;
+
     /**
      * List of mappings for context
      */
@@ -207,6 +213,46 @@ public abstract class Operator {
         return outputSize;
     }
 
+    /**
+     * Cardinality of operators whose output is not known
+     */
+    static final long UNKNOWN_CARDINALITY = Long.MAX_VALUE;
+
+    /**
+     * Returns an estimate of the number of values output by this operator
+     * (by default, the product of the estimates of the parents, or
+     * {@linkplain #UNKNOWN_CARDINALITY} if there is no parent)
+     */
+    public long estimatedCardinality() {
+        final List<Operator> parents = getParents();
+        if (parents.isEmpty()) {
+            // Assumes the output is large when unknown
+            return UNKNOWN_CARDINALITY;
+        }
+
+        long cardinality = 1;
+        for (Operator parent : parents) {
+            cardinality = multiply(cardinality, parent.estimatedCardinality());
+        }
+        return cardinality;
+    }
+
+    /**
+     * Multiplies two cardinalities (saturates at {@linkplain Long#MAX_VALUE})
+     */
+    static long multiply(long a, long b) {
+        if (a != 0 && b > Long.MAX_VALUE / a)
+            return Long.MAX_VALUE;
+        return a * b;
+    }
+
+    /**
+     * Adds two cardinalities (saturates at {@linkplain Long#MAX_VALUE})
+     */
+    static long add(long a, long b) {
+        return a > Long.MAX_VALUE - b ? Long.MAX_VALUE : a + b;
+    }
+
     /**
      * Copy the operator
      *
@@ -264,9 +310,20 @@ public abstract class Operator {
         CachedIterable<Value> cachedIterable = scriptContext.getCachedIterable(this);
 
         if (cachedIterable == null) {
-            LOGGER.debug("Setting up a cached iterator");
-            cachedIterable = new CachedIterable<>(new OperatorIterator(scriptContext));
-            scriptContext.setCachedIterable(this, cachedIterable);
+            LOGGER.debug("Setting up a cached iterator (%d readers)", readers);
+            final CachedIterable<Value> cache = new CachedIterable<>(new OperatorIterator(scriptContext),
+                    readers > 0 ? readers : CachedIterable.UNBOUNDED, scriptContext.getCacheBufferSize(),
+                    new ValueSerializer());
+            scriptContext.setCachedIterable(this, cache);
+
+            // Values are released once read by all readers
+            scriptContext.getCleaner().register(cache);
+            cache.onRelease(() -> {
+                LOGGER.debug("Releasing the cached values of %s", this);
+                scriptContext.removeCachedIterable(this);
+                scriptContext.getCleaner().unregister(cache);
+            });
+            cachedIterable = cache;
         } else {
             // Use the cached values
             LOGGER.debug("Using cached iterator");
@@ -282,6 +339,16 @@ public abstract class Operator {
         return false;
     }
 
+    /**
+     * Returns the number of times the iterator over a parent is requested for each
+     * iterator over this operator ({@linkplain CachedIterable#UNBOUNDED} if not known)
+     *
+     * @param parentIndex The index of the parent
+     */
+    int iterations(int parentIndex) {
+        return 1;
+    }
+
     /**
      * Initialize the node (called before the initialization of parents)
      *
@@ -386,9 +453,45 @@ public abstract class Operator {
         for (Operator root : roots)
             root.computeOrder(childrenMap, orders);
 
+        // Compute the number of readers of each operator
+        HashSet<Operator> ancestors = new HashSet<>();
+        getAncestors(ancestors);
+        HashMap<Operator, Integer> readers = new HashMap<>();
+        for (Operator operator : ancestors)
+            operator.readers = operator.computeReaders(this, childrenMap, readers);
+
         init(new HashMap<Operator, Map<Operator, Integer>>(), needed);
     }
 
+    /**
+     * Computes the number of iterators that will be requested over the output of this operator
+     *
+     * @param sink        The operator whose output is read (once)
+     * @param childrenMap The children of each operator
+     * @param readers     The already computed number of readers
+     */
+    private int computeReaders(Operator sink, Multimap<Operator, Operator> childrenMap, Map<Operator, Integer> readers) {
+        Integer cached = readers.get(this);
+        if (cached != null)
+            return cached;
+
+        long count = this == sink ? 1 : 0;
+        for (Operator child : childrenMap.get(this)) {
+            // A cached operator only reads its parents once
+            final long childIterators = child.cacheIterator() ? 1 : child.computeReaders(sink, childrenMap, readers);
+            final List<Operator> parents = child.getParents();
+            for (int i = 0; i < parents.size(); i++) {
+                if (parents.get(i) == this) {
+                    count = add(count, multiply(childIterators, child.iterations(i)));
+                }
+            }
+        }
+
+        final int result = (int) Math.min(count, CachedIterable.UNBOUNDED);
+        readers.put(this, result);
+        return result;
+    }
+
     private void computeChildren(HashSet<Operator> roots, Multimap<Operator, Operator> childrenMap) {
         if (getParents().size() == 0)
             roots.add(this);
@@ -563,6 +666,7 @@ public abstract class Operator {
             }
         }
 
+        label.append("\\n e=" + estimatedCardinality());
         label.append("\\n s=" + outputSize());
         label.append("\\n" + System.identityHashCode(this));
 
@@ -0,0 +1,280 @@
+package sf.net.experimaestro.manager.plans;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.collect.Sets;
+import sf.net.experimaestro.utils.log.Logger;
+
+import java.util.*;
+
+/**
+ * Rewrites a (simplified) operator graph before its initialisation, using the
+ * estimated cardinalities of the operators:
+ * <ol>
+ * <li>order-by operators whose input is already sorted by an upstream order-by are removed</li>
+ * <li>identical operators sharing the same input are merged, so that their output is computed once</li>
+ * <li>merge joins whose non-largest inputs are small enough become hash joins, which
+ * do not need their inputs to be sorted</li>
+ * </ol>
+ *
+ * Operators that are referenced as streams (by joins, order-by or group-by operators)
+ * are never removed nor merged.
+ */
+public class Optimizer {
+    final static private Logger LOGGER = Logger.getLogger();
+
+    /**
+     * The current root of the graph
+     */
+    private Operator root;
+
+    /**
+     * The children of each operator (with one entry per parent index)
+     */
+    private IdentityHashMap<Operator, List<Operator>> children;
+
+    /**
+     * Operators that are referenced as streams
+     */
+    private Set<Operator> referenced;
+
+    private Optimizer(Operator root) {
+        this.root = root;
+    }
+
+    /**
+     * Optimize the graph whose sink is given
+     *
+     * @param operator The sink of the graph
+     * @return The new sink of the graph
+     */
+    static public Operator optimize(Operator operator) {
+        return new Optimizer(operator).run();
+    }
+
+    private Operator run() {
+        boolean changed = true;
+        while (changed) {
+            analyze();
+            changed = removeSorts() || mergeDuplicates() || useHashJoins();
+        }
+        return root;
+    }
+
+    /**
+     * Computes the children and the referenced operators
+     */
+    private void analyze() {
+        children = new IdentityHashMap<>();
+        referenced = Sets.newIdentityHashSet();
+
+        ArrayDeque<Operator> queue = new ArrayDeque<>();
+        queue.add(root);
+        children.put(root, new ArrayList<>());
+        while (!queue.isEmpty()) {
+            Operator operator = queue.pop();
+
+            if (operator instanceof Join) {
+                for (Join.JoinReference reference : ((Join) operator).joins)
+                    referenced.add(reference.operator);
+            } else if (operator instanceof OrderBy) {
+                final OrderBy orderBy = (OrderBy) operator;
+                for (Operator item : orderBy.order.items())
+                    referenced.add(item);
+                if (orderBy.operators != null)
+                    referenced.addAll(orderBy.operators);
+            } else if (operator instanceof GroupBy) {
+                referenced.addAll(((GroupBy) operator).operators);
+            }
+
+            for (Operator parent : operator.getParents()) {
+                List<Operator> list = children.get(parent);
+                if (list == null) {
+                    children.put(parent, list = new ArrayList<>());
+                    queue.add(parent);
+                }
+                list.add(operator);
+            }
+        }
+    }
+
+    /**
+     * Replace an operator by another one in the graph
+     */
+    private void replace(Operator operator, Operator by) {
+        for (Operator child : children.get(operator)) {
+            final List<Operator> parents = child.getParents();
+            for (int i = 0; i < parents.size(); i++) {
+                if (parents.get(i) == operator)
+                    parents.set(i, by);
+            }
+        }
+
+        if (operator == root)
+            root = by;
+    }
+
+    /**
+     * Removes order-by operators whose input is already sorted. The order-by
+     * should only be read by group-by operators, which only need equal keys to
+     * be contiguous.
+     */
+    private boolean removeSorts() {
+        for (Operator operator : children.keySet()) {
+            if (!(operator instanceof OrderBy) || referenced.contains(operator) || !groupedOnly(operator))
+                continue;
+
+            final OrderBy orderBy = (OrderBy) operator;
+            final List<Set<Operator>> keys = keys(orderBy);
+
+            // Go up through the operators that preserve the order
+            Operator ancestor = orderBy.getParent(0);
+            while (ancestor instanceof FunctionOperator || ancestor instanceof TaskOperator
+                    || ancestor instanceof ReorderNodes || ancestor instanceof GroupBy) {
+                ancestor = ancestor.getParent(0);
+            }
+
+            if (ancestor instanceof OrderBy && isPrefix(keys, keys((OrderBy) ancestor))) {
+                LOGGER.debug("Removing order-by %s (input already sorted by %s)",
+                        System.identityHashCode(orderBy), System.identityHashCode(ancestor));
+                replace(orderBy, orderBy.getParent(0));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merges identical operators having the same input
+     */
+    private boolean mergeDuplicates() {
+        for (List<Operator> list : children.values()) {
+            for (int i = 0; i < list.size(); i++) {
+                final Operator a = list.get(i);
+                for (int j = i + 1; j < list.size(); j++) {
+                    final Operator b = list.get(j);
+                    if (a != b && !referenced.contains(a) && !referenced.contains(b) && same(a, b)) {
+                        LOGGER.debug("Merging %s into %s", System.identityHashCode(b), System.identityHashCode(a));
+                        replace(b, a);
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Transforms merge joins into hash joins when the estimated cardinalities of the inputs allow it
+     */
+    private boolean useHashJoins() {
+        for (Operator operator : children.keySet()) {
+            if (!(operator instanceof Join) || ((Join) operator).strategy != Join.Strategy.MERGE)
+                continue;
+
+            final Join join = (Join) operator;
+            final List<Operator> parents = join.getParents();
+            final ArrayList<Operator> inputs = new ArrayList<>();
+            for (Operator parent : parents) {
+                if (!(parent instanceof OrderBy) || referenced.contains(parent) || !onlyChild(parent, join))
+                    break;
+                inputs.add(parent.getParent(0));
+            }
+
+            if (inputs.size() == parents.size() && Join.strategy(inputs) == Join.Strategy.HASH) {
+                LOGGER.debug("Using a hash join for %s", System.identityHashCode(join));
+                join.strategy = Join.Strategy.HASH;
+                for (int i = 0; i < parents.size(); i++) {
+                    parents.set(i, inputs.get(i));
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether two operators with the same inputs compute the same output
+     */
+    private boolean same(Operator a, Operator b) {
+        if (a.getClass() != b.getClass() || !identical(a.getParents(), b.getParents()))
+            return false;
+
+        if (a instanceof FunctionOperator)
+            return ((FunctionOperator) a).function == ((FunctionOperator) b).function;
+
+        if (a instanceof OrderBy)
+            return groupedOnly(a) && groupedOnly(b) && keys((OrderBy) a).equals(keys((OrderBy) b));
+
+        return false;
+    }
+
+    /**
+     * Returns true if the operator is only read by group-by operators
+     */
+    private boolean groupedOnly(Operator operator) {
+        final List<Operator> list = children.get(operator);
+        if (list.isEmpty())
+            return false;
+        for (Operator child : list) {
+            if (!(child instanceof GroupBy))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean onlyChild(Operator operator, Operator child) {
+        for (Operator other : children.get(operator)) {
+            if (other != child)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The sort keys of an order-by operator
+     */
+    static private List<Set<Operator>> keys(OrderBy orderBy) {
+        ArrayList<Set<Operator>> keys = new ArrayList<>();
+        for (Set<Operator> set : orderBy.order.list) {
+            Set<Operator> key = Sets.newIdentityHashSet();
+            for (Operator operator : set) {
+                if (orderBy.operators == null || orderBy.operators.contains(operator))
+                    key.add(operator);
+            }
+            if (!key.isEmpty())
+                keys.add(key);
+        }
+        return keys;
+    }
+
+    static private boolean isPrefix(List<Set<Operator>> prefix, List<Set<Operator>> keys) {
+        return prefix.size() <= keys.size() && prefix.equals(keys.subList(0, prefix.size()));
+    }
+
+    static private boolean identical(List<Operator> a, List<Operator> b) {
+        if (a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i))
+                return false;
+        }
+        return true;
+    }
+}
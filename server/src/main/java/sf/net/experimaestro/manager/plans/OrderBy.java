@@ -24,10 +24,10 @@ import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.mutable.MutableInt;
 import sf.net.experimaestro.manager.scripting.ScriptContext;
+import sf.net.experimaestro.utils.log.Logger;
 
 import java.io.PrintStream;
 import java.util.*;
@@ -39,6 +39,8 @@ import java.util.*;
  * @date 21/2/13
  */
 public class OrderBy extends UnaryOperator {
+    final static private Logger LOGGER = Logger.getLogger();
+
     /**
      * The order over streams (might be shared by different order-by before a join
      */
@@ -90,32 +92,41 @@ public class OrderBy extends UnaryOperator {
         return new AbstractIterator<ReturnValue>() {
             public Iterator<Value> iterator;
 
+            /**
+             * The sorter (spills sorted runs to disk if the input is too large)
+             */
+            ValueSorter sorter;
+
             @Override
             protected ReturnValue computeNext() {
                 if (iterator == null) {
-                    ObjectArrayList<Value> list = new ObjectArrayList<>(new Value[0]);
-                    {
-                        Iterator<Value> iterator = input.iterator(scriptContext);
-                        while (iterator.hasNext()) {
-                            list.add(iterator.next());
-                        }
-                    }
-
-                    Value values[] = list.toArray(new Value[list.size()]);
-                    Arrays.sort(values, (o1, o2) -> {
+                    sorter = new ValueSorter((o1, o2) -> {
                         for (int index : contextOrder) {
                             int z = Long.compare(o1.context[index], o2.context[index]);
                             if (z != 0)
                                 return z;
                         }
                         return 0;
-                    });
-                    iterator = Arrays.asList(values).iterator();
+                    }, scriptContext.getSortBufferSize());
+                    scriptContext.getCleaner().register(sorter);
+
+                    Iterator<Value> iterator = input.iterator(scriptContext);
+                    while (iterator.hasNext()) {
+                        sorter.add(iterator.next());
+                    }
+
+                    if (sorter.getRunCount() > 0) {
+                        LOGGER.debug("Merging %d sorted runs", sorter.getRunCount());
+                    }
+                    this.iterator = sorter.iterator();
                 }
                 if (iterator.hasNext()) {
                     Value value = iterator.next();
                     return new ReturnValue(new DefaultContexts(value.context), value.nodes);
                 }
+
+                sorter.close();
+                scriptContext.getCleaner().unregister(sorter);
                 return endOfData();
             }
         };
@@ -143,6 +143,13 @@ public class Plan extends Operator {
                     out.println("After simplification");
                     operator.printDOT(out);
                 }
+
+            operator = Optimizer.optimize(operator);
+            if (LOGGER.isTraceEnabled())
+                try (LoggerPrintStream out = new LoggerPrintStream(LOGGER, Level.TRACE)) {
+                    out.println("After optimisation");
+                    operator.printDOT(out);
+                }
         }
 
         if (initialize) {
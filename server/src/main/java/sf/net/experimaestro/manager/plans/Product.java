@@ -21,6 +21,7 @@ package sf.net.experimaestro.manager.plans;
 import com.google.common.collect.AbstractIterator;
 import sf.net.experimaestro.manager.json.Json;
 import sf.net.experimaestro.manager.scripting.ScriptContext;
+import sf.net.experimaestro.utils.CachedIterable;
 import sf.net.experimaestro.utils.log.Logger;
 
 import java.util.Arrays;
@@ -53,6 +54,12 @@ public class Product extends NAryOperator {
         return "product";
     }
 
+    @Override
+    int iterations(int parentIndex) {
+        // Iterators over all the parents but the last one are restarted
+        return parentIndex < parents.size() - 1 ? CachedIterable.UNBOUNDED : 1;
+    }
+
     @Override
     protected void doPostInit(List<Map<Operator, Integer>> parentStreams) {
         super.doPostInit(parentStreams);
@@ -103,21 +110,28 @@ public class Product extends NAryOperator {
          * Compute the next value to return
          */
         ReturnValue getReturnValue(Value[] current) {
-            Json[] nodes = new Json[Product.this.outputSize()];
-            final long[][] contexts = new long[parents.size()][];
-            int offset = 0;
-            for (int j = 0; j < contexts.length; j++) {
-                contexts[j] = current[j].context;
-                for (int k = 0, n = current[j].nodes.length; k < n; k++) {
-                    nodes[offset] = current[j].nodes[k];
-                    assert nodes[offset] != null;
-                    offset++;
-                }
+            return Product.this.getReturnValue(current);
+        }
+    }
 
+    /**
+     * Compute the value to return from one value of each input
+     */
+    ReturnValue getReturnValue(Value[] current) {
+        Json[] nodes = new Json[outputSize()];
+        final long[][] contexts = new long[parents.size()][];
+        int offset = 0;
+        for (int j = 0; j < contexts.length; j++) {
+            contexts[j] = current[j].context;
+            for (int k = 0, n = current[j].nodes.length; k < n; k++) {
+                nodes[offset] = current[j].nodes[k];
+                assert nodes[offset] != null;
+                offset++;
             }
 
-            return new ReturnValue(new DefaultContexts(contexts), nodes);
         }
+
+        return new ReturnValue(new DefaultContexts(contexts), nodes);
     }
 
     class ProductIterator extends AbstractProductIterator {
@@ -21,6 +21,7 @@ package sf.net.experimaestro.manager.plans;
 import bpiwowar.argparser.utils.Output;
 import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import sf.net.experimaestro.exceptions.NoSuchParameter;
 import sf.net.experimaestro.exceptions.ValueMismatchException;
 import sf.net.experimaestro.exceptions.XPMRuntimeException;
@@ -29,9 +30,16 @@ import sf.net.experimaestro.manager.Task;
 import sf.net.experimaestro.manager.json.Json;
 import sf.net.experimaestro.manager.scripting.ScriptContext;
 
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.lang.String.format;
 
 /**
  * An operator associated to a task
@@ -65,6 +73,12 @@ public class TaskOperator extends UnaryOperator {
         return super.copy(deep, map, copy);
     }
 
+    @Override
+    public long estimatedCardinality() {
+        // Without input, the task is run once
+        return input == null ? 1 : super.estimatedCardinality();
+    }
+
     @Override
     boolean cacheIterator() {
         // We want values to be cached
@@ -78,42 +92,148 @@ public class TaskOperator extends UnaryOperator {
      */
     @Override
     protected Iterator<ReturnValue> _iterator(final ScriptContext scriptContext) {
-        return new AbstractIterator<ReturnValue>() {
-            // Parent values
-            final Iterator<Value> iterator = input != null ?
-                    input.iterator(scriptContext) : ImmutableList.of(new Value(new Json[0])).iterator();
+        // Parent values
+        final Iterator<Value> iterator = input != null ?
+                input.iterator(scriptContext) : ImmutableList.of(new Value(new Json[0])).iterator();
 
+        final int parallelism = scriptContext.getParallelism();
+        if (parallelism > 1 && plan.getFactory().isThreadSafeTree()) {
+            return new ParallelIterator(scriptContext, iterator, parallelism);
+        }
+
+        return new AbstractIterator<ReturnValue>() {
             @Override
             protected ReturnValue computeNext() {
                 if (!iterator.hasNext())
                     return endOfData();
 
                 Value value = iterator.next();
+                return run(scriptContext, value, createTask(value));
+            }
+        };
+
+    }
+
+    /**
+     * Creates a task and sets its parameters from the input value
+     */
+    private Task createTask(Value value) {
+        Task task = plan.createTask();
+        for (Map.Entry<DotName, Integer> entry : mappings.entrySet()) {
+            try {
+                task.setParameter(entry.getKey(), value.nodes[entry.getValue()]);
+            } catch (NoSuchParameter noSuchParameter) {
+                throw new XPMRuntimeException(noSuchParameter);
+            }
+        }
+        return task;
+    }
+
+    /**
+     * Runs a task
+     */
+    private ReturnValue run(ScriptContext scriptContext, Value value, Task task) {
+        try {
+            scriptContext.setTaskOperator(TaskOperator.this);
+            final Json result = task.run(scriptContext);
+            return new ReturnValue(new DefaultContexts(value.context), result);
+        } catch (NoSuchParameter | ValueMismatchException e) {
+            throw new XPMRuntimeException(e);
+        } catch (XPMRuntimeException e) {
+            e.addContext("While running task %s", plan.getFactory().getId());
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the tasks in a pool of threads.
+     * <p>
+     * Input values are read and tasks are created by the script thread; at most
+     * twice the parallelism tasks are run ahead, and results are returned in the
+     * order of the input so that contexts are preserved.
+     */
+    private class ParallelIterator extends AbstractIterator<ReturnValue> implements AutoCloseable {
+        private final ScriptContext scriptContext;
+
+        private final Iterator<Value> iterator;
 
-                Task task = plan.createTask();
-                for (Map.Entry<DotName, Integer> entry : mappings.entrySet()) {
-                    try {
-                        task.setParameter(entry.getKey(), value.nodes[entry.getValue()]);
-                    } catch (NoSuchParameter noSuchParameter) {
-                        throw new XPMRuntimeException(noSuchParameter);
-                    }
+        private final ExecutorService executor;
+
+        /**
+         * Maximum number of submitted tasks
+         */
+        private final int window;
+
+        /**
+         * Submitted tasks, in input order
+         */
+        private final ArrayDeque<Future<ReturnValue>> pending = new ArrayDeque<>();
+
+        ParallelIterator(ScriptContext scriptContext, Iterator<Value> iterator, int parallelism) {
+            this.scriptContext = scriptContext;
+            this.iterator = iterator;
+            this.window = 2 * parallelism;
+            this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                    .setNameFormat(format("task-%s-%%d", plan.getFactory().getId().getLocalPart()))
+                    .setDaemon(true)
+                    .build());
+
+            // Ensures the threads are stopped if the iterator is not fully consumed
+            scriptContext.getCleaner().register(this);
+        }
+
+        @Override
+        protected ReturnValue computeNext() {
+            try {
+                while (pending.size() < window && iterator.hasNext()) {
+                    final Value value = iterator.next();
+                    final Task task = createTask(value);
+                    pending.add(executor.submit(() -> {
+                        // Each worker thread has its own context
+                        try (ScriptContext workerContext = scriptContext.copy()) {
+                            return run(workerContext, value, task);
+                        }
+                    }));
                 }
 
-                try {
-                    scriptContext.setTaskOperator(TaskOperator.this);
-                    final Json result = task.run(scriptContext);
-                    return new ReturnValue(new DefaultContexts(value.context), result);
-                } catch (NoSuchParameter | ValueMismatchException e) {
-                    throw new XPMRuntimeException(e);
-                } catch (XPMRuntimeException e) {
-                    e.addContext("While running task %s", plan.getFactory().getId());
-                    throw e;
+                if (pending.isEmpty()) {
+                    finish();
+                    return endOfData();
                 }
+
+                return pending.removeFirst().get();
+            } catch (InterruptedException e) {
+                finish();
+                Thread.currentThread().interrupt();
+                throw new XPMRuntimeException(e, "Interrupted while running task %s", plan.getFactory().getId());
+            } catch (ExecutionException e) {
+                finish();
+                if (e.getCause() instanceof XPMRuntimeException)
+                    throw (XPMRuntimeException) e.getCause();
+                throw new XPMRuntimeException(e.getCause());
+            } catch (RuntimeException e) {
+                finish();
+                throw e;
             }
-        };
+        }
 
-    }
+        /**
+         * Stops the threads and unregisters from the cleaner
+         */
+        private void finish() {
+            close();
+            scriptContext.getCleaner().unregister(this);
+        }
 
+        @Override
+        public void close() {
+            for (Future<ReturnValue> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+            executor.shutdownNow();
+        }
+    }
 
     @Override
     public boolean equals(Object obj) {
@@ -67,6 +67,15 @@ public class Union extends NAryOperator {
         return "Union";
     }
 
+    @Override
+    public long estimatedCardinality() {
+        long cardinality = 0;
+        for (Operator parent : parents) {
+            cardinality = add(cardinality, parent.estimatedCardinality());
+        }
+        return cardinality;
+    }
+
     @Override
     protected void doPostInit(List<Map<Operator, Integer>> parentStreams) {
     }
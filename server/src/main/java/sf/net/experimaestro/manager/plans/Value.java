@@ -54,6 +54,19 @@ public class Value {
         this.nodes = nodes;
     }
 
+    public Value(long id, long[] context, Json... nodes) {
+        this(context, nodes);
+        this.id = id;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long[] getContext() {
+        return context;
+    }
+
     public Json[] getNodes() {
         return nodes;
     }
@@ -0,0 +1,203 @@
+package sf.net.experimaestro.manager.plans;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import sf.net.experimaestro.manager.json.*;
+import sf.net.experimaestro.utils.CachedIterable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Compact binary serialization of values (context and JSON nodes), used to
+ * spill values to disk.
+ * <p>
+ * JSON nodes that cannot be serialized (resources, paths that are not on the
+ * default file system, other implementations) are kept in memory and only their
+ * index is written.
+ */
+public class ValueSerializer implements CachedIterable.Serializer<Value> {
+    private static final byte NULL = 0;
+    private static final byte JSON_NULL = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte INTEGER = 3;
+    private static final byte REAL = 4;
+    private static final byte STRING = 5;
+    private static final byte PATH = 6;
+    private static final byte ARRAY = 7;
+    private static final byte OBJECT = 8;
+    private static final byte PINNED = 9;
+
+    /**
+     * Nodes that are kept in memory
+     */
+    private final ArrayList<Json> pinned = new ArrayList<>();
+
+    /**
+     * Writes a value (its ID, context and nodes)
+     */
+    @Override
+    public void write(DataOutput out, Value value) throws IOException {
+        out.writeLong(value.id);
+        if (value.context == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.context.length);
+            for (long c : value.context) {
+                out.writeLong(c);
+            }
+        }
+
+        out.writeInt(value.nodes.length);
+        for (Json node : value.nodes) {
+            write(out, node);
+        }
+    }
+
+    /**
+     * Reads a value written by {@linkplain #write(DataOutput, Value)}
+     */
+    @Override
+    public Value read(DataInput in) throws IOException {
+        final long id = in.readLong();
+        final int contextLength = in.readInt();
+        long[] context = null;
+        if (contextLength >= 0) {
+            context = new long[contextLength];
+            for (int i = 0; i < contextLength; i++) {
+                context[i] = in.readLong();
+            }
+        }
+
+        final Json[] nodes = new Json[in.readInt()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = read(in);
+        }
+        return new Value(id, context, nodes);
+    }
+
+    private void write(DataOutput out, Json json) throws IOException {
+        if (json == null) {
+            out.writeByte(NULL);
+            return;
+        }
+
+        final Class<? extends Json> aClass = json.getClass();
+        if (aClass == JsonNull.class) {
+            out.writeByte(JSON_NULL);
+        } else if (aClass == JsonBoolean.class) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) json.get());
+        } else if (aClass == JsonInteger.class) {
+            out.writeByte(INTEGER);
+            out.writeLong((Long) json.get());
+        } else if (aClass == JsonReal.class) {
+            out.writeByte(REAL);
+            out.writeDouble((Double) json.get());
+        } else if (aClass == JsonString.class && json.get() != null) {
+            out.writeByte(STRING);
+            writeString(out, json.get().toString());
+        } else if (aClass == JsonPath.class && ((JsonPath) json).get().getFileSystem() == FileSystems.getDefault()) {
+            out.writeByte(PATH);
+            writeString(out, ((JsonPath) json).get().toString());
+        } else if (aClass == JsonArray.class) {
+            final JsonArray array = (JsonArray) json;
+            out.writeByte(ARRAY);
+            out.writeInt(array.size());
+            for (Json element : array) {
+                write(out, element);
+            }
+        } else if (aClass == JsonObject.class) {
+            final JsonObject object = (JsonObject) json;
+            out.writeByte(OBJECT);
+            out.writeInt(object.size());
+            for (Map.Entry<String, Json> entry : object.entrySet()) {
+                writeString(out, entry.getKey());
+                write(out, entry.getValue());
+            }
+        } else {
+            out.writeByte(PINNED);
+            out.writeInt(pinned.size());
+            pinned.add(json);
+        }
+    }
+
+    private Json read(DataInput in) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case JSON_NULL:
+                return JsonNull.getSingleton();
+            case BOOLEAN:
+                return new JsonBoolean(in.readBoolean());
+            case INTEGER:
+                return new JsonInteger(in.readLong());
+            case REAL:
+                return new JsonReal(in.readDouble());
+            case STRING:
+                return new JsonString(readString(in));
+            case PATH:
+                return new JsonPath(Paths.get(readString(in)));
+            case ARRAY: {
+                final int size = in.readInt();
+                final JsonArray array = new JsonArray(size);
+                for (int i = 0; i < size; i++) {
+                    array.add(read(in));
+                }
+                return array;
+            }
+            case OBJECT: {
+                final int size = in.readInt();
+                final JsonObject object = new JsonObject();
+                for (int i = 0; i < size; i++) {
+                    final String key = readString(in);
+                    object.put(key, read(in));
+                }
+                return object;
+            }
+            case PINNED:
+                return pinned.get(in.readInt());
+            default:
+                throw new IOException(String.format("Unknown JSON type %d", type));
+        }
+    }
+
+    /**
+     * Writes a string (without the 64KB limit of {@linkplain DataOutput#writeUTF(String)})
+     */
+    private static void writeString(DataOutput out, String string) throws IOException {
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,248 @@
+package sf.net.experimaestro.manager.plans;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.collect.AbstractIterator;
+import sf.net.experimaestro.exceptions.XPMRuntimeException;
+import sf.net.experimaestro.utils.log.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Sorts values, spilling sorted runs to disk when more than a given number of
+ * values are held in memory. Runs are merged lazily when iterating.
+ * <p>
+ * The sort is stable: values with the same key are returned in insertion order.
+ */
+public class ValueSorter implements AutoCloseable {
+    final static private Logger LOGGER = Logger.getLogger();
+
+    /**
+     * Size of the buffers used to read and write runs
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Comparator<Value> comparator;
+
+    /**
+     * Maximum number of values held in memory
+     */
+    private final int bufferSize;
+
+    /**
+     * The values that are not spilled yet
+     */
+    private final ArrayList<Value> buffer = new ArrayList<>();
+
+    /**
+     * Files holding the sorted runs, with their number of values
+     */
+    private final ArrayList<Path> runs = new ArrayList<>();
+    private final ArrayList<Integer> runSizes = new ArrayList<>();
+
+    /**
+     * Used to serialize values
+     */
+    private final ValueSerializer serializer = new ValueSerializer();
+
+    /**
+     * Opened run readers
+     */
+    private final ArrayList<DataInputStream> readers = new ArrayList<>();
+
+    /**
+     * @param comparator The order of values
+     * @param bufferSize The maximum number of values held in memory
+     */
+    public ValueSorter(Comparator<Value> comparator, int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("The buffer size should be positive");
+        this.comparator = comparator;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Adds a value
+     */
+    public void add(Value value) {
+        buffer.add(value);
+        if (buffer.size() >= bufferSize) {
+            spill();
+        }
+    }
+
+    /**
+     * Returns the number of runs written to disk
+     */
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Sorts the values in memory and writes them into a new run
+     */
+    private void spill() {
+        buffer.sort(comparator);
+        try {
+            final Path path = Files.createTempFile("xpm-sort-", ".run");
+            runs.add(path);
+            runSizes.add(buffer.size());
+            LOGGER.debug("Spilling %d values to %s", buffer.size(), path);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE))) {
+                for (Value value : buffer) {
+                    serializer.write(out, value);
+                }
+            }
+        } catch (IOException e) {
+            throw new XPMRuntimeException(e, "Could not write a sorted run");
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Returns the sorted values (should be called once, after all the values were added)
+     */
+    public Iterator<Value> iterator() {
+        buffer.sort(comparator);
+        if (runs.isEmpty()) {
+            return buffer.iterator();
+        }
+
+        // Merge the runs and the values in memory (the latter being the last run)
+        final ArrayList<Iterator<Value>> iterators = new ArrayList<>();
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(runs.get(i)), BUFFER_SIZE));
+                readers.add(in);
+                iterators.add(new RunIterator(in, runSizes.get(i)));
+            }
+        } catch (IOException e) {
+            throw new XPMRuntimeException(e, "Could not read a sorted run");
+        }
+        iterators.add(buffer.iterator());
+
+        return new MergeIterator(iterators);
+    }
+
+    /**
+     * Closes the readers and deletes the runs
+     */
+    @Override
+    public void close() {
+        for (DataInputStream reader : readers) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                LOGGER.error(e, "Could not close a sorted run");
+            }
+        }
+        readers.clear();
+
+        for (Path run : runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException e) {
+                LOGGER.error(e, "Could not delete the sorted run %s", run);
+            }
+        }
+        runs.clear();
+        runSizes.clear();
+        buffer.clear();
+    }
+
+    /**
+     * Reads the values of a run
+     */
+    private class RunIterator extends AbstractIterator<Value> {
+        private final DataInputStream in;
+        private int remaining;
+
+        RunIterator(DataInputStream in, int size) {
+            this.in = in;
+            this.remaining = size;
+        }
+
+        @Override
+        protected Value computeNext() {
+            if (remaining == 0) {
+                return endOfData();
+            }
+            --remaining;
+            try {
+                return serializer.read(in);
+            } catch (IOException e) {
+                throw new XPMRuntimeException(e, "Could not read a sorted run");
+            }
+        }
+    }
+
+    /**
+     * Merges sorted iterators (ties are broken by iterator index to keep the sort stable)
+     */
+    private class MergeIterator extends AbstractIterator<Value> {
+        private final List<Iterator<Value>> iterators;
+
+        /**
+         * Heads of the iterators (index, value)
+         */
+        private final PriorityQueue<Head> heads;
+
+        MergeIterator(List<Iterator<Value>> iterators) {
+            this.iterators = iterators;
+            heads = new PriorityQueue<>(iterators.size(), (a, b) -> {
+                final int z = comparator.compare(a.value, b.value);
+                return z != 0 ? z : Integer.compare(a.index, b.index);
+            });
+            for (int i = 0; i < iterators.size(); i++) {
+                next(i);
+            }
+        }
+
+        private void next(int index) {
+            final Iterator<Value> iterator = iterators.get(index);
+            if (iterator.hasNext()) {
+                heads.add(new Head(index, iterator.next()));
+            }
+        }
+
+        @Override
+        protected Value computeNext() {
+            final Head head = heads.poll();
+            if (head == null) {
+                close();
+                return endOfData();
+            }
+            next(head.index);
+            return head.value;
+        }
+    }
+
+    static private class Head {
+        final int index;
+        final Value value;
+
+        Head(int index, Value value) {
+            this.index = index;
+            this.value = value;
+        }
+    }
+}
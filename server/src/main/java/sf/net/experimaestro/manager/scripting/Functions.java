@@ -22,6 +22,8 @@ import sf.net.experimaestro.connectors.Launcher;
 import sf.net.experimaestro.connectors.SingleHostConnector;
 import sf.net.experimaestro.exceptions.ExitException;
 import sf.net.experimaestro.exceptions.ExperimaestroCannotOverwrite;
+import sf.net.experimaestro.exceptions.XPMRuntimeException;
+import sf.net.experimaestro.scheduler.BulkSubmission;
 import sf.net.experimaestro.scheduler.Resource;
 import sf.net.experimaestro.scheduler.Scheduler;
 import sf.net.experimaestro.scheduler.TokenResource;
@@ -63,4 +65,47 @@ public class Functions {
     public void set_default_launcher(Launcher launcher) {
         ScriptContext.threadContext().setDefaultLauncher(launcher);
     }
+
+    @Expose
+    @Help("Sets the number of tasks of a plan that are run concurrently (only for thread-safe tasks, e.g. Java tasks)")
+    public void set_parallelism(@Argument(name = "parallelism", help = "The number of tasks (1 to run them sequentially)")
+                                int parallelism) {
+        ScriptContext.threadContext().setParallelism(parallelism);
+    }
+
+    @Expose
+    @Help("Sets the number of values sorted in memory by a plan before sorted runs are written to disk")
+    public void set_sort_buffer(@Argument(name = "values", help = "The number of values")
+                                int values) {
+        ScriptContext.threadContext().setSortBufferSize(values);
+    }
+
+    @Expose
+    @Help("Sets the number of task outputs of a plan kept in memory before they are written to disk")
+    public void set_cache_buffer(@Argument(name = "values", help = "The number of values")
+                                 int values) {
+        ScriptContext.threadContext().setCacheBufferSize(values);
+    }
+
+    @Expose(optional = 1)
+    @Help("Starts a bulk submission: jobs are only stored (by chunks) when end_bulk() is called")
+    public void start_bulk(@Argument(name = "chunk", help = "Number of jobs stored in one transaction")
+                           Integer chunk) {
+        final ScriptContext context = ScriptContext.threadContext();
+        if (context.getBulkSubmission() != null)
+            throw new XPMRuntimeException("A bulk submission is already started");
+        context.setBulkSubmission(new BulkSubmission(chunk == null ? BulkSubmission.DEFAULT_CHUNK_SIZE : chunk));
+    }
+
+    @Expose
+    @Help("Stores the jobs submitted since start_bulk() and returns the outcome of each job")
+    public BulkSubmission end_bulk() {
+        final ScriptContext context = ScriptContext.threadContext();
+        final BulkSubmission submission = context.getBulkSubmission();
+        if (submission == null)
+            throw new XPMRuntimeException("No bulk submission was started");
+        context.setBulkSubmission(null);
+        submission.submit();
+        return submission;
+    }
 }
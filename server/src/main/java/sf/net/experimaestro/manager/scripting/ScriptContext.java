@@ -28,6 +28,7 @@ import sf.net.experimaestro.manager.experiments.TaskReference;
 import sf.net.experimaestro.manager.plans.Operator;
 import sf.net.experimaestro.manager.plans.TaskOperator;
 import sf.net.experimaestro.manager.plans.Value;
+import sf.net.experimaestro.scheduler.BulkSubmission;
 import sf.net.experimaestro.scheduler.Dependency;
 import sf.net.experimaestro.scheduler.Job;
 import sf.net.experimaestro.scheduler.Resource;
@@ -56,6 +57,12 @@ import static java.lang.String.format;
 final public class ScriptContext implements AutoCloseable {
     final static private Logger LOGGER = Logger.getLogger();
 
+    /** Default number of values an order-by operator keeps in memory */
+    public static final int DEFAULT_SORT_BUFFER_SIZE = 100_000;
+
+    /** Default number of values a cached operator output keeps in memory */
+    public static final int DEFAULT_CACHE_BUFFER_SIZE = 100_000;
+
     /** The thread local context */
     private final static ThreadLocal<ScriptContext> threadContext = new ThreadLocal<>();
 
@@ -68,6 +75,15 @@ final public class ScriptContext implements AutoCloseable {
     /** Priority */
     Updatable<Integer> priority;
 
+    /** Number of tasks of a plan that are run concurrently */
+    private Updatable<Integer> parallelism;
+
+    /** Number of values an order-by operator keeps in memory before spilling sorted runs to disk */
+    private Updatable<Integer> sortBufferSize;
+
+    /** Number of values a cached operator output keeps in memory before spilling them to disk */
+    private Updatable<Integer> cacheBufferSize;
+
     /**
      * Counts the number of items output by an operator; null if not used
      */
@@ -88,6 +104,11 @@ final public class ScriptContext implements AutoCloseable {
      */
     private Updatable<Launcher> defaultLauncher;
 
+    /**
+     * The current bulk submission (null if jobs are stored when submitted)
+     */
+    private Updatable<BulkSubmission> bulkSubmission;
+
     /**
      * List of listeners for new jobs
      */
@@ -118,6 +139,11 @@ final public class ScriptContext implements AutoCloseable {
      */
     final StaticContext staticContext;
 
+    /**
+     * Whether this context was not copied from another one (and owns the cleaner)
+     */
+    private final boolean root;
+
     /**
      * The resource cleaner
      * <p>
@@ -134,13 +160,18 @@ final public class ScriptContext implements AutoCloseable {
 
         this.staticContext = staticContext;
         this.cleaner = new Cleaner();
+        this.root = true;
 
         defaultLocks = new Updatable<>(new HashMap<>(), x -> new HashMap(x));
         experimentId = Updatable.create(null);
         priority = Updatable.create(0);
+        parallelism = Updatable.create(1);
+        sortBufferSize = Updatable.create(DEFAULT_SORT_BUFFER_SIZE);
+        cacheBufferSize = Updatable.create(DEFAULT_CACHE_BUFFER_SIZE);
         simulate = Updatable.create(false);
         workingDirectory = Updatable.create(null);
         defaultLauncher = Updatable.create(new DirectLauncher());
+        bulkSubmission = Updatable.create(null);
         threadContext.set(this);
     }
 
@@ -154,14 +185,21 @@ final public class ScriptContext implements AutoCloseable {
 
         staticContext = other.staticContext;
         cleaner = other.cleaner;
+        root = false;
         counts = other.counts;
+        taskOperatorMap = other.taskOperatorMap;
+        newTaskListeners = new ArrayList<>(other.newTaskListeners);
 
         defaultLocks = other.defaultLocks.reference();
         experimentId = other.experimentId.reference();
         priority = other.priority.reference();
+        parallelism = other.parallelism.reference();
+        sortBufferSize = other.sortBufferSize.reference();
+        cacheBufferSize = other.cacheBufferSize.reference();
         simulate = other.simulate.reference();
         workingDirectory = other.workingDirectory.reference();
         defaultLauncher = other.defaultLauncher.reference();
+        bulkSubmission = other.bulkSubmission.reference();
 
         counts = other.counts;
 
@@ -192,6 +230,10 @@ final public class ScriptContext implements AutoCloseable {
         return cachedIterables.get(key);
     }
 
+    public void removeCachedIterable(Object key) {
+        cachedIterables.remove(key);
+    }
+
     public void setTaskOperatorMap(IdentityHashMap<TaskOperator, TaskReference> taskOperatorMap) {
         this.taskOperatorMap = taskOperatorMap;
     }
@@ -287,6 +329,46 @@ final public class ScriptContext implements AutoCloseable {
         this.priority.set(priority);
     }
 
+    /**
+     * Returns the number of tasks of a plan that are run concurrently (1 if tasks are run
+     * sequentially by the script thread)
+     */
+    public int getParallelism() {
+        return parallelism.get();
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("The parallelism should be at least 1");
+        this.parallelism.set(parallelism);
+    }
+
+    /**
+     * Returns the number of values an order-by operator keeps in memory
+     */
+    public int getSortBufferSize() {
+        return sortBufferSize.get();
+    }
+
+    public void setSortBufferSize(int sortBufferSize) {
+        if (sortBufferSize < 1)
+            throw new IllegalArgumentException("The sort buffer size should be positive");
+        this.sortBufferSize.set(sortBufferSize);
+    }
+
+    /**
+     * Returns the number of values a cached operator output keeps in memory
+     */
+    public int getCacheBufferSize() {
+        return cacheBufferSize.get();
+    }
+
+    public void setCacheBufferSize(int cacheBufferSize) {
+        if (cacheBufferSize < 1)
+            throw new IllegalArgumentException("The cache buffer size should be positive");
+        this.cacheBufferSize.set(cacheBufferSize);
+    }
+
     public Path getWorkingDirectory() {
         return workingDirectory.get();
     }
@@ -316,7 +398,7 @@ final public class ScriptContext implements AutoCloseable {
         LOGGER.debug("Closing script context [%s] - restoring [%s]", this, oldCurrent);
 
         threadContext.set(oldCurrent);
-        if (oldCurrent == null) {
+        if (root) {
             cleaner.close();
         }
     }
@@ -336,4 +418,15 @@ final public class ScriptContext implements AutoCloseable {
     public Launcher getDefaultLauncher() {
         return defaultLauncher.get();
     }
+
+    /**
+     * Returns the current bulk submission, or null if jobs should be stored immediately
+     */
+    public BulkSubmission getBulkSubmission() {
+        return bulkSubmission.get();
+    }
+
+    public void setBulkSubmission(BulkSubmission bulkSubmission) {
+        this.bulkSubmission.set(bulkSubmission);
+    }
 }
@@ -0,0 +1,381 @@
+package sf.net.experimaestro.scheduler;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import sf.net.experimaestro.exceptions.ExperimaestroCannotOverwrite;
+import sf.net.experimaestro.manager.scripting.Expose;
+import sf.net.experimaestro.manager.scripting.Exposed;
+import sf.net.experimaestro.utils.log.Logger;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import static java.lang.String.format;
+
+/**
+ * Submits a set of jobs at once.
+ * <p>
+ * Jobs are stored by chunks: for each chunk, the existing resources are retrieved with
+ * a single query, the jobs (and their dependencies) are persisted and the transaction
+ * is committed once. Jobs can depend on jobs of the same submission, provided they were
+ * added after them.
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+@Exposed
+public class BulkSubmission {
+    final static private Logger LOGGER = Logger.getLogger();
+
+    /**
+     * Default number of jobs committed in one transaction
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    /**
+     * Outcome of the submission of a job
+     */
+    public enum Status {
+        /**
+         * The job was not submitted yet
+         */
+        PENDING,
+        /**
+         * A new job was stored
+         */
+        SUBMITTED,
+        /**
+         * The job replaced an existing resource
+         */
+        REPLACED,
+        /**
+         * An existing resource could not be replaced, or the job was submitted twice
+         */
+        UNCHANGED,
+        /**
+         * The job could not be stored
+         */
+        FAILED
+    }
+
+    /**
+     * The outcome for one job
+     */
+    @Exposed
+    static public class Outcome {
+        /**
+         * The submitted job
+         */
+        final Job job;
+
+        /**
+         * Called within the transaction, once the job is stored
+         */
+        final BiConsumer<Transaction, Resource> stored;
+
+        /**
+         * The stored resource (the job or the resource it replaced)
+         */
+        Resource resource;
+
+        Status status = Status.PENDING;
+
+        /**
+         * Reason of the failure
+         */
+        String message;
+
+        Outcome(Job job, BiConsumer<Transaction, Resource> stored) {
+            this.job = job;
+            this.stored = stored;
+        }
+
+        @Expose
+        public String locator() {
+            return job.getLocator();
+        }
+
+        @Expose
+        public Resource resource() {
+            return resource;
+        }
+
+        @Expose
+        public String status() {
+            return status.toString();
+        }
+
+        @Expose
+        public String message() {
+            return message;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        @Override
+        public String toString() {
+            return message == null ? format("%s [%s]", locator(), status) : format("%s [%s: %s]", locator(), status, message);
+        }
+    }
+
+    /**
+     * Number of jobs committed in one transaction
+     */
+    private final int chunkSize;
+
+    /**
+     * The outcomes, in submission order
+     */
+    private final ArrayList<Outcome> outcomes = new ArrayList<>();
+
+    /**
+     * The jobs added to this submission, by locator (the first one for each locator)
+     */
+    private final HashMap<String, Job> jobs = new HashMap<>();
+
+    public BulkSubmission() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public BulkSubmission(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("The chunk size should be positive");
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Adds a job to the submission
+     *
+     * @param job The job to submit
+     * @return The outcome, filled when {@linkplain #submit()} is called
+     */
+    public Outcome add(Job job) {
+        return add(job, null);
+    }
+
+    /**
+     * Adds a job to the submission (jobs can be added concurrently)
+     *
+     * @param job    The job to submit
+     * @param stored Called within the transaction once the job is stored (can be null)
+     * @return The outcome, filled when {@linkplain #submit()} is called
+     */
+    synchronized public Outcome add(Job job, BiConsumer<Transaction, Resource> stored) {
+        final Outcome outcome = new Outcome(job, stored);
+        outcomes.add(outcome);
+        jobs.putIfAbsent(job.getLocator(), job);
+        return outcome;
+    }
+
+    /**
+     * Returns a job of this submission, so that other jobs can depend upon it
+     * before it is stored
+     *
+     * @param locator The locator of the job
+     * @return The job, or null if no job with this locator was added
+     */
+    synchronized public Job getJob(String locator) {
+        return jobs.get(locator);
+    }
+
+    @Expose
+    public int size() {
+        return outcomes.size();
+    }
+
+    @Expose
+    public Outcome get(int index) {
+        return outcomes.get(index);
+    }
+
+    public List<Outcome> getOutcomes() {
+        return outcomes;
+    }
+
+    /**
+     * Counts the jobs with a given outcome
+     */
+    @Expose
+    public int count(String status) {
+        final Status _status = Status.valueOf(status.toUpperCase());
+        return (int) outcomes.stream().filter(o -> o.status == _status).count();
+    }
+
+    /**
+     * Stores the pending jobs
+     *
+     * @return The outcomes of all the jobs of this submission
+     */
+    public List<Outcome> submit() {
+        // Resources stored by this submission, and failed jobs
+        HashMap<String, Resource> stored = new HashMap<>();
+        HashSet<String> failed = new HashSet<>();
+        for (Outcome outcome : outcomes) {
+            if (outcome.resource != null) {
+                stored.put(outcome.locator(), outcome.resource);
+            } else if (outcome.status == Status.FAILED) {
+                failed.add(outcome.locator());
+            }
+        }
+
+        ArrayList<Outcome> chunk = new ArrayList<>(chunkSize);
+        for (Outcome outcome : outcomes) {
+            if (outcome.status != Status.PENDING)
+                continue;
+
+            chunk.add(outcome);
+            if (chunk.size() >= chunkSize) {
+                submit(chunk, stored, failed);
+                chunk.clear();
+            }
+        }
+
+        if (!chunk.isEmpty()) {
+            submit(chunk, stored, failed);
+        }
+
+        return outcomes;
+    }
+
+    /**
+     * Stores a chunk of jobs within one transaction
+     *
+     * @param chunk  The jobs to store
+     * @param stored The resources stored so far, by locator
+     * @param failed The locators of the jobs that could not be stored
+     */
+    private void submit(List<Outcome> chunk, Map<String, Resource> stored, HashSet<String> failed) {
+        LOGGER.debug("Storing %d jobs", chunk.size());
+        ArrayList<String> locators = new ArrayList<>(chunk.size());
+        for (Outcome outcome : chunk) {
+            locators.add(outcome.locator());
+        }
+
+        // Locators of the resources persisted by this transaction
+        HashSet<String> persisted = new HashSet<>();
+
+        try (Transaction transaction = Transaction.create()) {
+            final EntityManager em = transaction.em();
+            final Map<String, Resource> existing = Resource.getByLocators(em, locators);
+
+            for (Outcome outcome : chunk) {
+                final String locator = outcome.locator();
+
+                // Submitted twice
+                final Resource previous = stored.get(locator);
+                if (previous != null) {
+                    outcome.resource = previous;
+                    outcome.status = Status.UNCHANGED;
+                    continue;
+                }
+
+                // Resolve the dependencies on the jobs of this submission
+                Job job = outcome.job;
+                boolean flush = false;
+                String failedDependency = null;
+                for (Dependency dependency : job.getDependencies()) {
+                    final String from = dependency.from.getLocator();
+                    if (failed.contains(from)) {
+                        failedDependency = from;
+                        break;
+                    }
+
+                    final Resource resource = stored.get(from);
+                    if (resource != null) {
+                        dependency.from = resource;
+                    }
+                    flush |= persisted.contains(from);
+                }
+
+                if (failedDependency != null) {
+                    fail(outcome, failed, format("dependency %s could not be stored", failedDependency));
+                    continue;
+                }
+
+                // Replace the existing resource if possible
+                final Resource old = existing.get(locator);
+                if (old != null) {
+                    if (!old.canBeReplaced()) {
+                        LOGGER.debug("Cannot overwrite task %s [%d]", old.getLocator(), old.getId());
+                        outcome.resource = old;
+                        outcome.status = Status.UNCHANGED;
+                        stored.put(locator, old);
+                        continue;
+                    }
+
+                    old.lock(transaction, true);
+                    em.refresh(old);
+                    try {
+                        old.replaceBy(job);
+                    } catch (ExperimaestroCannotOverwrite e) {
+                        fail(outcome, failed, e.getMessage());
+                        continue;
+                    }
+                    job = (Job) old;
+                    outcome.status = Status.REPLACED;
+                } else {
+                    outcome.status = Status.SUBMITTED;
+                }
+
+                // Dependencies are refreshed when saving: jobs persisted by this
+                // transaction must be written to the database first
+                if (flush) {
+                    em.flush();
+                }
+
+                job.save(transaction);
+                if (outcome.stored != null) {
+                    outcome.stored.accept(transaction, job);
+                }
+
+                outcome.resource = job;
+                persisted.add(locator);
+                stored.put(locator, job);
+            }
+
+            transaction.commit();
+        } catch (RuntimeException e) {
+            LOGGER.error(e, "Could not store a chunk of %d jobs", chunk.size());
+
+            // Nothing from this chunk was stored
+            for (Outcome outcome : chunk) {
+                final boolean rolledBack = persisted.contains(outcome.locator());
+                if (rolledBack) {
+                    stored.remove(outcome.locator());
+                }
+                if (rolledBack || (outcome.status != Status.UNCHANGED && outcome.status != Status.FAILED)) {
+                    fail(outcome, failed, e.toString());
+                }
+            }
+        }
+    }
+
+    private static void fail(Outcome outcome, HashSet<String> failed, String message) {
+        outcome.status = Status.FAILED;
+        outcome.message = message;
+        outcome.resource = null;
+        failed.add(outcome.locator());
+    }
+}
@@ -0,0 +1,299 @@
+package sf.net.experimaestro.scheduler;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import sf.net.experimaestro.exceptions.XPMRuntimeException;
+import sf.net.experimaestro.utils.graphs.Node;
+import sf.net.experimaestro.utils.graphs.Sort;
+import sf.net.experimaestro.utils.log.Logger;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of resources and all the resources that (transitively) depend on them.
+ * <p>
+ * The graph is computed once with batched queries on the dependency table, and
+ * can then be removed or invalidated as a whole, in topological order and by
+ * batches of resources (one transaction per batch), rather than by following
+ * the dependencies of each resource.
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+final public class DependencyGraph {
+    final static private Logger LOGGER = Logger.getLogger();
+
+    /**
+     * Maximum number of IDs in one query
+     */
+    static final int QUERY_SIZE = 500;
+
+    /**
+     * Number of resources modified in one transaction
+     */
+    static final int BATCH_SIZE = 100;
+
+    /**
+     * The resources we started from
+     */
+    private final LongOpenHashSet roots = new LongOpenHashSet();
+
+    /**
+     * The nodes of the graph
+     */
+    private final Long2ObjectOpenHashMap<GraphNode> nodes = new Long2ObjectOpenHashMap<>();
+
+    private DependencyGraph() {
+    }
+
+    /**
+     * Computes the graph of the resources that depend on the given ones
+     *
+     * @param em    The entity manager
+     * @param roots The IDs of the resources
+     * @return The graph containing the roots and all their (transitive) dependents
+     */
+    public static DependencyGraph dependents(EntityManager em, long... roots) {
+        final DependencyGraph graph = new DependencyGraph();
+
+        LongArrayList frontier = new LongArrayList();
+        for (long root : roots) {
+            if (graph.roots.add(root)) {
+                graph.nodes.put(root, new GraphNode(root));
+                frontier.add(root);
+            }
+        }
+
+        // Breadth-first search on the dependencies
+        while (!frontier.isEmpty()) {
+            final LongArrayList next = new LongArrayList();
+            for (int i = 0; i < frontier.size(); i += QUERY_SIZE) {
+                final List<Object[]> edges = em.createQuery("SELECT d.from.resourceID, d.to.resourceID FROM dependencies d " +
+                        "WHERE d.from.resourceID IN :ids", Object[].class)
+                        .setParameter("ids", new ArrayList<>(frontier.subList(i, Math.min(i + QUERY_SIZE, frontier.size()))))
+                        .getResultList();
+
+                for (Object[] edge : edges) {
+                    final GraphNode from = graph.nodes.get((long) (Long) edge[0]);
+                    final long toId = (Long) edge[1];
+                    GraphNode to = graph.nodes.get(toId);
+                    if (to == null) {
+                        graph.nodes.put(toId, to = new GraphNode(toId));
+                        next.add(toId);
+                    }
+                    from.children.add(to);
+                    to.parents.add(from);
+                }
+            }
+            frontier = next;
+        }
+
+        LOGGER.debug("Dependency graph of %d resources has %d nodes", graph.roots.size(), graph.nodes.size());
+        return graph;
+    }
+
+    /**
+     * @return The number of resources in the graph
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @return True if some resources depend on the roots
+     */
+    public boolean hasDependents() {
+        return nodes.size() > roots.size();
+    }
+
+    /**
+     * Returns the resources, each resource coming after the resources it depends upon
+     */
+    public LongArrayList order() {
+        final LongArrayList order = removalOrder();
+        Collections.reverse(order);
+        return order;
+    }
+
+    /**
+     * Returns the resources, each resource coming before the resources it depends upon
+     */
+    public LongArrayList removalOrder() {
+        final ArrayList<GraphNode> sorted = Sort.topologicalSort(new ArrayList<>(nodes.values()));
+        final LongArrayList order = new LongArrayList(sorted.size());
+        for (GraphNode node : sorted) {
+            order.add(node.id);
+        }
+        return order;
+    }
+
+    /**
+     * Removes all the resources of the graph (dependent resources are removed first)
+     *
+     * @return The number of removed resources
+     * @throws XPMRuntimeException If one of the resources is running
+     */
+    public int delete() {
+        final LongArrayList order = removalOrder();
+
+        // Check that no resource is running before removing anything
+        Transaction.run(em -> {
+            for (int i = 0; i < order.size(); i += QUERY_SIZE) {
+                final List<String> running = em.createQuery("SELECT r.locator FROM resources r " +
+                        "WHERE r.state = :state AND r.resourceID IN :ids", String.class)
+                        .setParameter("state", ResourceState.RUNNING)
+                        .setParameter("ids", new ArrayList<>(order.subList(i, Math.min(i + QUERY_SIZE, order.size()))))
+                        .setMaxResults(1)
+                        .getResultList();
+                if (!running.isEmpty()) {
+                    throw new XPMRuntimeException("Cannot delete the running task [%s]", running.get(0));
+                }
+            }
+        });
+
+        int removed = 0;
+        for (int i = 0; i < order.size(); i += BATCH_SIZE) {
+            final LongList batch = order.subList(i, Math.min(i + BATCH_SIZE, order.size()));
+            removed += Transaction.evaluate((em, t) -> {
+                lockBatch(t, batch);
+                int n = 0;
+                for (long id : batch) {
+                    final Resource resource = em.find(Resource.class, id);
+                    if (resource == null) {
+                        continue;
+                    }
+                    if (resource.getState() == ResourceState.RUNNING) {
+                        throw new XPMRuntimeException("Cannot delete the running task [%s]", resource);
+                    }
+                    em.remove(resource);
+                    n++;
+                }
+                return n;
+            });
+        }
+
+        LOGGER.info("Removed %d resources", removed);
+        return removed;
+    }
+
+    /**
+     * Invalidates the resources that depend on the roots: running jobs are stopped,
+     * and jobs that are not active are restarted. The roots themselves are not modified.
+     *
+     * @return The number of restarted jobs
+     */
+    public int invalidate() {
+        final LongArrayList order = order();
+
+        int restarted = 0;
+        for (int i = 0; i < order.size(); i += BATCH_SIZE) {
+            final LongList batch = order.subList(i, Math.min(i + BATCH_SIZE, order.size()));
+            final LongArrayList dependents = new LongArrayList(batch.size());
+            for (long id : batch) {
+                if (!roots.contains(id)) {
+                    dependents.add(id);
+                }
+            }
+            restarted += Transaction.evaluate((em, t) -> {
+                lockBatch(t, dependents);
+                int n = 0;
+                for (long id : dependents) {
+                    final Resource resource = em.find(Resource.class, id);
+                    if (!(resource instanceof Job)) {
+                        continue;
+                    }
+
+                    LOGGER.info("Invalidating %s", resource);
+                    final ResourceState state = resource.getState();
+                    if (state == ResourceState.RUNNING) {
+                        ((Job) resource).stop();
+                    }
+                    if (!state.isActive()) {
+                        try {
+                            ((Job) resource).restart();
+                        } catch (Exception e) {
+                            throw new XPMRuntimeException(e, "Could not restart %s", resource);
+                        }
+                        n++;
+                    }
+                }
+                return n;
+            });
+        }
+
+        return restarted;
+    }
+
+    /**
+     * Locks (exclusively) the resources of a batch in increasing ID order, as when dependencies
+     * are notified. If a lock cannot be obtained in time, all the locks of the batch are
+     * released before trying again, so that we do not wait forever while holding locks.
+     *
+     * @param t     The transaction
+     * @param batch The IDs of the resources
+     */
+    private static void lockBatch(Transaction t, LongList batch) {
+        final long[] ids = batch.toLongArray();
+        Arrays.sort(ids);
+
+        lockAll:
+        while (true) {
+            for (long id : ids) {
+                if (Resource.lock(t, id, true, Scheduler.BATCH_LOCK_TIMEOUT) == null) {
+                    LOGGER.debug("Could not lock resource %d: releasing the locks of the batch", id);
+                    t.clearLocks();
+                    continue lockAll;
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * A node of the graph (children are the dependent resources)
+     */
+    static private class GraphNode implements Node {
+        final long id;
+
+        final ArrayList<GraphNode> parents = new ArrayList<>();
+
+        final ArrayList<GraphNode> children = new ArrayList<>();
+
+        GraphNode(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public Iterable<GraphNode> getParents() {
+            return parents;
+        }
+
+        @Override
+        public Iterable<GraphNode> getChildren() {
+            return children;
+        }
+    }
+}
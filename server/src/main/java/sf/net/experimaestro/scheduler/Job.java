@@ -111,8 +111,10 @@ public class Job extends Resource {
     /**
      * Progress
      *
-     * The value is negative if not set
+     * The value is negative if not set. While the job is running, the current
+     * value is held by the {@linkplain ProgressStore}, which writes it to the database.
      */
+    @Column(updatable = false)
     double progress = -1;
 
     /**
@@ -491,7 +493,12 @@ public class Job extends Resource {
 
             JSONObject events = new JSONObject();
             info.put("events", events);
-            info.put("progress", progress);
+            info.put("progress", getProgress());
+
+            final Scheduler scheduler = Scheduler.get();
+            if (scheduler != null && scheduler.isRecovering(getId())) {
+                info.put("recovering", true);
+            }
 
             events.put("start", longDateFormat.format(new Date(start)));
 
@@ -738,11 +745,14 @@ public class Job extends Resource {
     public void stored() {
         super.stored();
 
-        if (getState() == ResourceState.READY) {
-            LOGGER.debug("Job is READY, notifying");
-            Scheduler.notifyRunners();
-        }
+        // Update the index of ready jobs (and notify runners if we are ready)
+        Scheduler.get().jobStored(this);
+    }
 
+    @Override
+    public void removed(Transaction transaction) {
+        super.removed(transaction);
+        Scheduler.get().jobRemoved(this);
     }
 
     @Override
@@ -772,7 +782,8 @@ public class Job extends Resource {
     }
 
     public double getProgress() {
-        return progress;
+        final Scheduler scheduler = Scheduler.get();
+        return scheduler != null ? scheduler.getProgressStore().getProgress(getId(), progress) : progress;
     }
     public void setProgress(double progress) {
         this.progress = progress;
@@ -0,0 +1,215 @@
+package sf.net.experimaestro.scheduler;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import sf.net.experimaestro.utils.log.Logger;
+
+import javax.persistence.EntityManager;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index from resource locators to resource IDs.
+ * <p>
+ * Locators are not stored: the index maps a 64 bit hash of the locator to the
+ * resource ID(s), so the index only returns candidates whose locator must be
+ * verified by the caller (which also detects stale entries). The index is populated
+ * when the scheduler starts and maintained when resources are inserted or removed.
+ * <p>
+ * Entries are added when the resource is inserted (before commit): a concurrent
+ * lookup of an uncommitted resource waits for the inserting transaction when
+ * verifying the candidate. The entry is removed if the inserting transaction
+ * is rolled back.
+ */
+final public class LocatorIndex {
+    final static private Logger LOGGER = Logger.getLogger();
+
+    /**
+     * Returned by the main map when there is no entry
+     */
+    private static final long NONE = -1;
+
+    private static final long[] EMPTY = new long[0];
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    /**
+     * Maps the hash of a locator to a resource ID
+     */
+    private final Long2LongOpenHashMap ids = new Long2LongOpenHashMap();
+
+    /**
+     * Other resource IDs in case of hash collision
+     */
+    private final Long2ObjectOpenHashMap<long[]> collisions = new Long2ObjectOpenHashMap<>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    LocatorIndex() {
+        ids.defaultReturnValue(NONE);
+    }
+
+    static long hash(String locator) {
+        return HASH_FUNCTION.hashUnencodedChars(locator).asLong();
+    }
+
+    /**
+     * Populate the index with all the resources of the database
+     *
+     * @param em The entity manager
+     */
+    void load(EntityManager em) {
+        final List<Object[]> list = em.createQuery("SELECT r.resourceID, r.locator FROM resources r", Object[].class)
+                .getResultList();
+        for (Object[] row : list) {
+            add((String) row[1], (Long) row[0]);
+        }
+        LOGGER.info("Indexed the locators of %d resources (%d collisions)", list.size(), collisions.size());
+    }
+
+    /**
+     * Adds a resource to the index
+     *
+     * @param locator The locator of the resource
+     * @param id      The ID of the resource
+     */
+    public void add(String locator, long id) {
+        final long hash = hash(locator);
+        lock.writeLock().lock();
+        try {
+            final long current = ids.get(hash);
+            if (current == NONE) {
+                ids.put(hash, id);
+                return;
+            }
+
+            if (current == id) {
+                return;
+            }
+
+            final long[] others = collisions.get(hash);
+            if (others == null) {
+                collisions.put(hash, new long[]{id});
+            } else if (indexOf(others, id) < 0) {
+                final long[] newOthers = Arrays.copyOf(others, others.length + 1);
+                newOthers[others.length] = id;
+                collisions.put(hash, newOthers);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a resource from the index
+     *
+     * @param locator The locator of the resource
+     * @param id      The ID of the resource
+     */
+    public void remove(String locator, long id) {
+        final long hash = hash(locator);
+        lock.writeLock().lock();
+        try {
+            final long[] others = collisions.get(hash);
+            if (ids.get(hash) == id) {
+                if (others == null) {
+                    ids.remove(hash);
+                } else {
+                    // Promote the first colliding ID
+                    ids.put(hash, others[0]);
+                    removeCollision(hash, others, 0);
+                }
+            } else if (others != null) {
+                final int index = indexOf(others, id);
+                if (index >= 0) {
+                    removeCollision(hash, others, index);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the IDs of the resources whose locator might be the given one
+     *
+     * @param locator The locator
+     * @return The candidate resource IDs (empty if there is no resource with this locator)
+     */
+    public long[] candidates(String locator) {
+        final long hash = hash(locator);
+        lock.readLock().lock();
+        try {
+            final long id = ids.get(hash);
+            if (id == NONE) {
+                return EMPTY;
+            }
+
+            final long[] others = collisions.get(hash);
+            if (others == null) {
+                return new long[]{id};
+            }
+
+            final long[] candidates = new long[others.length + 1];
+            candidates[0] = id;
+            System.arraycopy(others, 0, candidates, 1, others.length);
+            return candidates;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of hashes in the index
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ids.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void removeCollision(long hash, long[] others, int index) {
+        if (others.length == 1) {
+            collisions.remove(hash);
+            return;
+        }
+
+        final long[] newOthers = new long[others.length - 1];
+        System.arraycopy(others, 0, newOthers, 0, index);
+        System.arraycopy(others, index + 1, newOthers, index, others.length - index - 1);
+        collisions.put(hash, newOthers);
+    }
+
+    private static int indexOf(long[] array, long value) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,47 @@
+package sf.net.experimaestro.scheduler;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+
+/**
+ * Progress of a set of jobs, coalesced over a time window
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class ProgressMessage extends Message {
+    /**
+     * The latest progress of each job that reported progress during the window
+     */
+    private final Long2DoubleMap progress;
+
+    public ProgressMessage(Long2DoubleMap progress) {
+        super(Type.PROGRESS);
+        this.progress = progress;
+    }
+
+    public Long2DoubleMap getProgress() {
+        return progress;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("progress(%d jobs)", progress.size());
+    }
+}
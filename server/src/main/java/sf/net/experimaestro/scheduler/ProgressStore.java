@@ -0,0 +1,296 @@
+package sf.net.experimaestro.scheduler;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import sf.net.experimaestro.utils.io.LogStore;
+import sf.net.experimaestro.utils.log.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory store of the progress of running jobs.
+ * <p>
+ * The in-memory value is authoritative: updates are appended to a key-value store
+ * in the scheduler directory and written to the database in one transaction at regular
+ * intervals (write-behind), so that progress reports do not each cost a database commit.
+ * The values of the store are written to the database when the scheduler starts, and
+ * removed from the store once written.
+ * <p>
+ * Updates survive a crash of the server process. Unless the store is synchronous
+ * (<code>progress-sync</code> setting), the updates received since the last flush might
+ * be lost if the system itself crashes.
+ * <p>
+ * Listeners are not notified of each update: updates are coalesced over a time window,
+ * at the end of which a single {@linkplain ProgressMessage} holding the latest value of
+ * each updated job is sent.
+ * <p>
+ * The progress column of jobs is not updatable through entities, so that a job
+ * saved by another transaction does not overwrite a flushed value.
+ */
+final public class ProgressStore {
+    final static private Logger LOGGER = Logger.getLogger();
+
+    /**
+     * Name of the key-value store
+     */
+    static final String STORE_NAME = "progress";
+
+    /**
+     * The latest progress of running jobs
+     */
+    private final Long2DoubleOpenHashMap values = new Long2DoubleOpenHashMap();
+
+    /**
+     * Values that have not been written to the database
+     */
+    private Long2DoubleOpenHashMap dirty = new Long2DoubleOpenHashMap();
+
+    /**
+     * Values that have not been sent to listeners
+     */
+    private Long2DoubleOpenHashMap unsent = new Long2DoubleOpenHashMap();
+
+    /**
+     * The running jobs
+     */
+    private final LongOpenHashSet running = new LongOpenHashSet();
+
+    /**
+     * Progress values that are not yet in the database
+     */
+    private final LogStore log;
+
+    /**
+     * Flushes values to the database and notifies listeners
+     */
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("ProgressFlusher").setDaemon(true).build());
+
+    /**
+     * The scheduler whose listeners are notified
+     */
+    private final Scheduler scheduler;
+
+    /**
+     * Creates the store and reads the values that were not written to the database
+     *
+     * @param scheduler The scheduler
+     * @param log       The key-value store holding the values not yet in the database
+     * @throws IOException If the store cannot be read
+     */
+    ProgressStore(Scheduler scheduler, LogStore log) throws IOException {
+        this.scheduler = scheduler;
+        this.log = log;
+
+        for (long id : log.keys()) {
+            dirty.put(id, ByteBuffer.wrap(log.get(id)).getDouble());
+        }
+        if (!dirty.isEmpty()) {
+            LOGGER.info("Recovered the progress of %d jobs", dirty.size());
+        }
+    }
+
+    /**
+     * Start flushing and notifying at regular intervals
+     *
+     * @param delay  The delay between two flushes (in ms)
+     * @param window The time window over which updates are coalesced before notifying listeners (in ms)
+     */
+    void start(long delay, long window) {
+        // Write replayed values now
+        flush();
+        flusher.scheduleWithFixedDelay(this::flush, delay, delay, TimeUnit.MILLISECONDS);
+        flusher.scheduleWithFixedDelay(this::send, window, window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Notify listeners of the updates since the last notification
+     */
+    void send() {
+        final Long2DoubleOpenHashMap batch;
+        synchronized (this) {
+            if (unsent.isEmpty()) {
+                return;
+            }
+            batch = unsent;
+            unsent = new Long2DoubleOpenHashMap();
+        }
+
+        try {
+            scheduler.notify(new ProgressMessage(batch));
+        } catch (RuntimeException e) {
+            LOGGER.error(e, "Error while notifying progress");
+        }
+    }
+
+    /**
+     * Called when a job has been stored
+     */
+    synchronized void jobStored(Job job) {
+        if (job.getState() == ResourceState.RUNNING) {
+            running.add(job.getId());
+        } else if (running.remove(job.getId()) && !dirty.containsKey(job.getId())) {
+            values.remove(job.getId());
+        }
+    }
+
+    /**
+     * Marks a job as running (used when recovering running jobs at startup)
+     */
+    synchronized void jobRunning(long id) {
+        running.add(id);
+    }
+
+    /**
+     * Called when a job has been removed
+     */
+    synchronized void jobRemoved(long id) {
+        running.remove(id);
+        values.remove(id);
+        dirty.remove(id);
+        unsent.remove(id);
+        try {
+            log.remove(id);
+        } catch (IOException e) {
+            LOGGER.error(e, "Could not remove the progress from the log");
+        }
+    }
+
+    /**
+     * Sets the progress of a running job
+     *
+     * @param id       The job ID
+     * @param progress The progress
+     * @return false if the job is not running
+     */
+    public synchronized boolean setProgress(long id, double progress) {
+        if (!running.contains(id)) {
+            return false;
+        }
+
+        values.put(id, progress);
+        dirty.put(id, progress);
+        unsent.put(id, progress);
+        try {
+            append(id, progress);
+        } catch (IOException e) {
+            LOGGER.error(e, "Could not write progress to the log");
+        }
+        return true;
+    }
+
+    /**
+     * Returns the progress of a job
+     *
+     * @param id           The job ID
+     * @param defaultValue The value to return if the progress is not in memory
+     */
+    public synchronized double getProgress(long id, double defaultValue) {
+        return values.containsKey(id) ? values.get(id) : defaultValue;
+    }
+
+    private void append(long id, double progress) throws IOException {
+        log.put(id, ByteBuffer.allocate(8).putDouble(progress).array());
+    }
+
+    /**
+     * Write the modified values to the database
+     */
+    void flush() {
+        final Long2DoubleOpenHashMap values;
+        synchronized (this) {
+            if (dirty.isEmpty()) {
+                return;
+            }
+            values = dirty;
+            dirty = new Long2DoubleOpenHashMap();
+        }
+
+        try {
+            log.force();
+
+            Transaction.run(em -> {
+                for (Long2DoubleMap.Entry entry : values.long2DoubleEntrySet()) {
+                    em.createQuery("UPDATE Job j SET j.progress = :progress WHERE j.resourceID = :id")
+                            .setParameter("progress", entry.getDoubleValue())
+                            .setParameter("id", entry.getLongKey())
+                            .executeUpdate();
+                }
+            });
+            LOGGER.debug("Flushed the progress of %d jobs", values.size());
+        } catch (Throwable e) {
+            LOGGER.error(e, "Could not write progress to the database");
+            synchronized (this) {
+                // Put back the values (unless they were updated in the meantime)
+                for (Long2DoubleMap.Entry entry : values.long2DoubleEntrySet()) {
+                    if (!dirty.containsKey(entry.getLongKey())) {
+                        dirty.put(entry.getLongKey(), entry.getDoubleValue());
+                    }
+                }
+            }
+            return;
+        }
+
+        // Only keep the values that are not yet in the database
+        synchronized (this) {
+            try {
+                for (long id : values.keySet()) {
+                    if (!dirty.containsKey(id)) {
+                        log.remove(id);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.error(e, "Could not remove written values from the progress log");
+            }
+
+            // Forget about jobs that are not running anymore
+            for (long id : values.keySet()) {
+                if (!running.contains(id) && !dirty.containsKey(id)) {
+                    this.values.remove(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush and close the log
+     */
+    void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            LOGGER.warn("Interrupted while waiting for the progress flusher");
+        }
+        flush();
+        try {
+            log.close();
+        } catch (IOException e) {
+            LOGGER.error(e, "Could not close the progress log");
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package sf.net.experimaestro.scheduler;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * In-memory index of the jobs that are ready to run.
+ * <p>
+ * Jobs are ordered by decreasing priority, and then by increasing submission
+ * time. The index is rebuilt from the database when the scheduler starts, and is
+ * then kept in sync each time a job is stored (see {@linkplain Job#stored()}) or
+ * removed, so that the job runner does not have to query the database
+ * each time it wakes up.
+ * <p>
+ * Ready jobs that cannot start because a token is not available are <i>parked</i>
+ * in a queue associated with the token resource: they are not returned by
+ * {@linkplain #snapshot()} until the token releases them (see {@linkplain #release(long, int)}).
+ * Likewise, jobs that cannot start because their connector has no launch permit left are
+ * parked on the connector until a permit is released (see {@linkplain #wakeUp(String, int)}).
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+final class ReadyJobs {
+    /**
+     * The ordered set of ready jobs that can be considered by the runner
+     */
+    private final TreeSet<Entry> queue = new TreeSet<>();
+
+    /**
+     * Maps a job ID to its entry (whether parked or not)
+     */
+    private final Long2ObjectOpenHashMap<Entry> entries = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * Ready jobs waiting for a token, indexed by the token resource ID
+     */
+    private final Long2ObjectOpenHashMap<TreeSet<Entry>> parked = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * Ready jobs waiting for a connector launch permit, indexed by the connector identifier
+     */
+    private final HashMap<String, TreeSet<Entry>> connectorParked = new HashMap<>();
+
+    /**
+     * Incremented each time a token is released
+     */
+    private long tokenGeneration = 0;
+
+    /**
+     * Adds (or updates) a ready job
+     *
+     * @param id        The job ID
+     * @param priority  The job priority (the higher, the more urgent)
+     * @param timestamp The submission time of the job
+     * @return <tt>true</tt> if the job was not in the index or if its position changed
+     */
+    synchronized boolean add(long id, int priority, long timestamp) {
+        Entry old = entries.get(id);
+        if (old != null) {
+            if (old.priority == priority && old.timestamp == timestamp) {
+                return false;
+            }
+            detach(old);
+        }
+
+        final Entry entry = new Entry(id, priority, timestamp);
+        if (old != null) {
+            entry.wokenBy = old.wokenBy;
+        }
+        entries.put(id, entry);
+        queue.add(entry);
+        return true;
+    }
+
+    /**
+     * Removes a job from the index
+     *
+     * @param id The job ID
+     * @return <tt>true</tt> if the job was in the index
+     */
+    synchronized boolean remove(long id) {
+        final Entry entry = entries.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        detach(entry);
+        return true;
+    }
+
+    /**
+     * Returns the current token generation, which should be retrieved
+     * before checking the tokens of a job that might be parked
+     */
+    synchronized long tokenGeneration() {
+        return tokenGeneration;
+    }
+
+    /**
+     * Park a job until the token is released
+     *
+     * @param id         The job ID
+     * @param tokenId    The ID of the token resource that prevents the job from running
+     * @param generation The token generation before the token availability was checked
+     * @return <tt>false</tt> if the job could not be parked because a token was released
+     * in the meantime (the job should be looked at again)
+     */
+    synchronized boolean park(long id, long tokenId, long generation) {
+        if (generation != tokenGeneration) {
+            return false;
+        }
+
+        final Entry entry = entries.get(id);
+        if (entry == null) {
+            // Not ready anymore: nothing to do
+            return true;
+        }
+
+        detach(entry);
+        entry.token = tokenId;
+        TreeSet<Entry> set = parked.get(tokenId);
+        if (set == null) {
+            parked.put(tokenId, set = new TreeSet<>());
+        }
+        set.add(entry);
+        return true;
+    }
+
+    /**
+     * Release parked jobs when tokens are available
+     *
+     * @param tokenId   The token resource ID
+     * @param available The number of available tokens
+     * @return The number of jobs that are not parked anymore
+     */
+    synchronized int release(long tokenId, int available) {
+        ++tokenGeneration;
+
+        final TreeSet<Entry> set = parked.get(tokenId);
+        if (set == null) {
+            return 0;
+        }
+
+        int count = 0;
+        while (count < available && !set.isEmpty()) {
+            final Entry entry = set.pollFirst();
+            entry.token = -1;
+            queue.add(entry);
+            ++count;
+        }
+
+        if (set.isEmpty()) {
+            parked.remove(tokenId);
+        }
+
+        return count;
+    }
+
+    /**
+     * Park a job until a launch permit of its connector is released.
+     * The caller should hold the lock that protects the connector permits, so that
+     * no permit is released between the failed acquisition and the parking.
+     *
+     * @param id        The job ID
+     * @param connector The identifier of the connector
+     */
+    synchronized void park(long id, String connector) {
+        final Entry entry = entries.get(id);
+        if (entry == null) {
+            return;
+        }
+
+        detach(entry);
+        entry.connector = connector;
+        TreeSet<Entry> set = connectorParked.get(connector);
+        if (set == null) {
+            connectorParked.put(connector, set = new TreeSet<>());
+        }
+        set.add(entry);
+    }
+
+    /**
+     * Wake up jobs parked on a connector. Each woken job is handed the launch permit: it
+     * should call {@linkplain #takeWakeUp(long)} and wake up another job if it does not use it.
+     *
+     * @param connector The identifier of the connector
+     * @param count     The maximum number of jobs to wake up
+     * @return The number of jobs that are not parked anymore
+     */
+    synchronized int wakeUp(String connector, int count) {
+        final TreeSet<Entry> set = connectorParked.get(connector);
+        if (set == null) {
+            return 0;
+        }
+
+        int woken = 0;
+        while (woken < count && !set.isEmpty()) {
+            final Entry entry = set.pollFirst();
+            entry.connector = null;
+            entry.wokenBy = connector;
+            queue.add(entry);
+            ++woken;
+        }
+
+        if (set.isEmpty()) {
+            connectorParked.remove(connector);
+        }
+
+        return woken;
+    }
+
+    /**
+     * Returns (and forgets) the connector that woke up a job
+     *
+     * @param id The job ID
+     * @return The connector identifier, or <tt>null</tt> if the job was not woken up by a connector
+     */
+    synchronized String takeWakeUp(long id) {
+        final Entry entry = entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        final String connector = entry.wokenBy;
+        entry.wokenBy = null;
+        return connector;
+    }
+
+    synchronized boolean contains(long id) {
+        return entries.containsKey(id);
+    }
+
+    /**
+     * Returns the number of ready jobs (parked or not)
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of jobs waiting for a token or a connector launch permit
+     */
+    synchronized int parkedSize() {
+        return entries.size() - queue.size();
+    }
+
+    synchronized void clear() {
+        queue.clear();
+        entries.clear();
+        parked.clear();
+        connectorParked.clear();
+    }
+
+    /**
+     * Returns the IDs of the ready jobs that are not parked, ordered so that the most urgent job comes first
+     */
+    synchronized LongArrayList snapshot() {
+        LongArrayList list = new LongArrayList(queue.size());
+        for (Entry entry : queue) {
+            list.add(entry.id);
+        }
+        return list;
+    }
+
+    /**
+     * Removes the entry from the queue or from the parked jobs
+     */
+    private void detach(Entry entry) {
+        if (entry.connector != null) {
+            final TreeSet<Entry> set = connectorParked.get(entry.connector);
+            if (set != null) {
+                set.remove(entry);
+                if (set.isEmpty()) {
+                    connectorParked.remove(entry.connector);
+                }
+            }
+            entry.connector = null;
+            return;
+        }
+
+        if (entry.token < 0) {
+            queue.remove(entry);
+            return;
+        }
+
+        final TreeSet<Entry> set = parked.get(entry.token);
+        if (set != null) {
+            set.remove(entry);
+            if (set.isEmpty()) {
+                parked.remove(entry.token);
+            }
+        }
+        entry.token = -1;
+    }
+
+    /**
+     * An entry of the index
+     */
+    static final private class Entry implements Comparable<Entry> {
+        final long id;
+        final int priority;
+        final long timestamp;
+
+        /**
+         * The token resource the job is parked on, or -1
+         */
+        long token = -1;
+
+        /**
+         * The connector the job is parked on, or null
+         */
+        String connector;
+
+        /**
+         * The connector whose launch permit was handed to the job when it was woken up, or null
+         */
+        String wokenBy;
+
+        Entry(long id, int priority, long timestamp) {
+            this.id = id;
+            this.priority = priority;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            // Higher priority first
+            int z = Integer.compare(other.priority, priority);
+            if (z != 0)
+                return z;
+
+            // Then older jobs first
+            z = Long.compare(timestamp, other.timestamp);
+            if (z != 0)
+                return z;
+
+            return Long.compare(id, other.id);
+        }
+    }
+}
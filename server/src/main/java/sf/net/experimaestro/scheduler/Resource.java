@@ -195,6 +195,19 @@ public class Resource {
      * @return The resource or null if there is no such resource
      */
     public static Resource getByLocator(EntityManager em, String path) {
+        final LocatorIndex index = getLocatorIndex();
+        if (index != null) {
+            // Verify the candidates (a candidate can be a hash collision, or a resource
+            // that was removed or whose insertion was rolled back)
+            for (long id : index.candidates(path)) {
+                final Resource resource = em.find(Resource.class, id);
+                if (resource != null && resource.getLocator().equals(path)) {
+                    return resource;
+                }
+            }
+            return null;
+        }
+
         CriteriaBuilder cb = em.getCriteriaBuilder();
         CriteriaQuery<Resource> cq = cb.createQuery(Resource.class);
         Root<Resource> root = cq.from(Resource.class);
@@ -212,6 +225,60 @@ public class Resource {
         return result.get(0);
     }
 
+    /**
+     * Get resources by locator with a single query
+     *
+     * @param em    The current entity manager
+     * @param paths The paths of the resources (should be a set if there are many)
+     * @return A map from the paths to the existing resources
+     */
+    public static Map<String, Resource> getByLocators(EntityManager em, Collection<String> paths) {
+        HashMap<String, Resource> resources = new HashMap<>();
+        if (paths.isEmpty())
+            return resources;
+
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<Resource> cq = cb.createQuery(Resource.class);
+        Root<Resource> root = cq.from(Resource.class);
+
+        final LocatorIndex index = getLocatorIndex();
+        if (index != null) {
+            // Query by ID the resources whose locator hash matches
+            ArrayList<Long> ids = new ArrayList<>();
+            for (String path : paths) {
+                for (long id : index.candidates(path)) {
+                    ids.add(id);
+                }
+            }
+            if (ids.isEmpty())
+                return resources;
+            cq.where(root.get("resourceID").in(ids));
+        } else {
+            cq.where(root.get("locator").in(paths));
+        }
+
+        for (Resource resource : em.createQuery(cq).getResultList()) {
+            if (paths.contains(resource.getLocator())) {
+                resources.put(resource.getLocator(), resource);
+            }
+        }
+
+        return resources;
+    }
+
+    /**
+     * Returns the locator index of the scheduler, or null if it is not available
+     */
+    private static LocatorIndex getLocatorIndex() {
+        final Scheduler scheduler = Scheduler.get();
+        return scheduler == null ? null : scheduler.getLocatorIndex();
+    }
+
+    private static ResourceCounts getResourceCounts() {
+        final Scheduler scheduler = Scheduler.get();
+        return scheduler == null ? null : scheduler.getResourceCounts();
+    }
+
     /**
      * Lock a resource by ID
      *
@@ -224,6 +291,13 @@ public class Resource {
         return transaction.lock(resourceLocks, resourceId, exclusive, timeout);
     }
 
+    /**
+     * Returns statistics on resource locks
+     */
+    public static SharedLongLocks.Statistics getLockStatistics() {
+        return resourceLocks.getStatistics();
+    }
+
     @Override
     protected void finalize() {
         LOGGER.debug("Finalizing resource [%s@%s]", System.identityHashCode(this), this);
@@ -501,29 +575,14 @@ public class Resource {
         if (getState() == ResourceState.RUNNING)
             throw new XPMRuntimeException("Cannot delete the running task [%s]", this);
 
-        Collection<Dependency> dependencies = getOutgoingDependencies();
-        if (!dependencies.isEmpty()) {
-            if (recursive) {
-                for (Dependency dependency : dependencies) {
-                    Resource dep = dependency.getTo();
-                    if (dep != null) {
-                        dep.delete(true);
-                    }
-                }
-            } else
-                throw new XPMRuntimeException("Cannot delete the resource %s: it has dependencies", this);
-        }
-
-        // Remove
-        Transaction.run((em, t) -> {
-            Resource ourselves = em.find(Resource.class, getId());
-            em.remove(ourselves);
-            SimpleMessage message = new SimpleMessage(Message.Type.RESOURCE_REMOVED, ourselves);
-            this.notify(t, em, message);
-            notify(t, em, message);
+        final DependencyGraph graph = Transaction.evaluate(em -> {
+            return DependencyGraph.dependents(em, getId());
         });
+        if (graph.hasDependents() && !recursive)
+            throw new XPMRuntimeException("Cannot delete the resource %s: it has dependencies", this);
 
-
+        // Remove (dependent resources first)
+        graph.delete();
     }
 
     public Path getFileWithExtension(FileNameTransformer extension) throws IOException {
@@ -601,10 +660,25 @@ public class Resource {
     }
 
     /**
-     * Called after an INSERT or UPDATE
+     * Called after an INSERT
      */
-    @PostUpdate
     @PostPersist
+    public void _post_persist() {
+        final LocatorIndex index = getLocatorIndex();
+        final Transaction transaction = Transaction.current();
+        if (index != null) {
+            final long id = getId();
+            index.add(locator, id);
+            // Remove the entry if the insertion is rolled back
+            transaction.registerPostRollback(t -> index.remove(locator, id));
+        }
+        transaction.registerPostCommit(this::saved);
+    }
+
+    /**
+     * Called after an UPDATE
+     */
+    @PostUpdate
     public void _post_update() {
         Transaction.current().registerPostCommit(this::saved);
     }
@@ -665,17 +739,30 @@ public class Resource {
 
     public void removed(Transaction transaction) {
         LOGGER.debug("Resource %s removed", this, version);
-        Scheduler.get().notify(new SimpleMessage(Message.Type.RESOURCE_REMOVED, this));
+        final LocatorIndex index = getLocatorIndex();
+        if (index != null) {
+            index.remove(locator, getId());
+        }
+        final ResourceState removedState = oldState != null ? oldState : state;
+        final ResourceCounts counts = getResourceCounts();
+        if (counts != null) {
+            counts.changed(removedState, null);
+        }
+        Scheduler.get().notify(new SimpleMessage(Message.Type.RESOURCE_REMOVED, this, removedState));
         clean();
     }
 
     public void saved(Transaction transaction) {
         LOGGER.debug("Resource %s stored with version=%s", this, version);
         if (oldState != state) {
+            final ResourceCounts counts = getResourceCounts();
+            if (counts != null) {
+                counts.changed(oldState, state);
+            }
             if (oldState == null) {
                 Scheduler.get().notify(new SimpleMessage(Message.Type.RESOURCE_ADDED, this));
             } else {
-                Scheduler.get().notify(new SimpleMessage(Message.Type.STATE_CHANGED, this));
+                Scheduler.get().notify(new SimpleMessage(Message.Type.STATE_CHANGED, this, oldState));
             }
         }
         stored();
@@ -0,0 +1,101 @@
+package sf.net.experimaestro.scheduler;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import sf.net.experimaestro.utils.log.Logger;
+
+import javax.persistence.EntityManager;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * Number of resources in each state.
+ * <p>
+ * The counts are computed when the scheduler starts and maintained when
+ * resources are stored or removed (after commit), so that they can be
+ * read without scanning the database.
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+final public class ResourceCounts {
+    final static private Logger LOGGER = Logger.getLogger();
+
+    /**
+     * Counts indexed by state ordinal
+     */
+    private final long[] counts = new long[ResourceState.values().length];
+
+    ResourceCounts() {
+    }
+
+    /**
+     * Computes the counts from the database
+     *
+     * @param em The entity manager
+     */
+    synchronized void load(EntityManager em) {
+        final List<Object[]> rows = em.createQuery("SELECT r.state, COUNT(r) FROM resources r GROUP BY r.state", Object[].class)
+                .getResultList();
+        for (Object[] row : rows) {
+            counts[((ResourceState) row[0]).ordinal()] = (Long) row[1];
+        }
+        LOGGER.info("Resource counts: %s", this);
+    }
+
+    /**
+     * Called when a resource changed state
+     *
+     * @param from The previous state (null if the resource was added)
+     * @param to   The new state (null if the resource was removed)
+     */
+    synchronized void changed(ResourceState from, ResourceState to) {
+        if (from == to) {
+            return;
+        }
+        if (from != null && counts[from.ordinal()] > 0) {
+            counts[from.ordinal()]--;
+        }
+        if (to != null) {
+            counts[to.ordinal()]++;
+        }
+    }
+
+    /**
+     * Returns the number of resources in a given state
+     */
+    synchronized public long get(ResourceState state) {
+        return counts[state.ordinal()];
+    }
+
+    /**
+     * Returns the number of resources in each state
+     */
+    synchronized public EnumMap<ResourceState, Long> snapshot() {
+        final EnumMap<ResourceState, Long> map = new EnumMap<>(ResourceState.class);
+        for (ResourceState state : ResourceState.values()) {
+            map.put(state, counts[state.ordinal()]);
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
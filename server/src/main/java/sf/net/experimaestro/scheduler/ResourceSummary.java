@@ -0,0 +1,196 @@
+package sf.net.experimaestro.scheduler;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Identifier, locator and state of a resource, read without loading the resource entity
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class ResourceSummary {
+    /**
+     * The JPQL selection, in the order of the constructor arguments
+     */
+    static final String SELECT = "SELECT r.resourceID, r.locator, r.state, TYPE(r) FROM resources r";
+
+    private final long id;
+
+    private final String locator;
+
+    private final ResourceState state;
+
+    /**
+     * The resource type (class name)
+     */
+    private final String type;
+
+    public ResourceSummary(long id, String locator, ResourceState state, String type) {
+        this.id = id;
+        this.locator = locator;
+        this.state = state;
+        this.type = type;
+    }
+
+    /**
+     * Builds a summary from a row selected with {@linkplain #SELECT}
+     */
+    static ResourceSummary of(Object[] row) {
+        final Object type = row[3];
+        return new ResourceSummary((Long) row[0], (String) row[1], (ResourceState) row[2],
+                type instanceof Class ? ((Class<?>) type).getCanonicalName() : String.valueOf(type));
+    }
+
+    /**
+     * Returns the summary of a resource
+     *
+     * @param em The entity manager
+     * @param id The resource ID
+     * @return The summary, or null if there is no such resource
+     */
+    public static ResourceSummary find(EntityManager em, long id) {
+        final List<Object[]> rows = em.createQuery(SELECT + " WHERE r.resourceID = :id", Object[].class)
+                .setParameter("id", id)
+                .getResultList();
+        return rows.isEmpty() ? null : of(rows.get(0));
+    }
+
+    /**
+     * Returns the summary of a resource
+     *
+     * @param em      The entity manager
+     * @param locator The resource locator
+     * @return The summary, or null if there is no such resource
+     */
+    public static ResourceSummary find(EntityManager em, String locator) {
+        final Scheduler scheduler = Scheduler.get();
+        final LocatorIndex index = scheduler == null ? null : scheduler.getLocatorIndex();
+
+        final List<Object[]> rows;
+        if (index != null) {
+            final ArrayList<Long> ids = new ArrayList<>();
+            for (long id : index.candidates(locator)) {
+                ids.add(id);
+            }
+            if (ids.isEmpty()) {
+                return null;
+            }
+            rows = em.createQuery(SELECT + " WHERE r.resourceID IN :ids AND r.locator = :locator", Object[].class)
+                    .setParameter("ids", ids)
+                    .setParameter("locator", locator)
+                    .getResultList();
+        } else {
+            rows = em.createQuery(SELECT + " WHERE r.locator = :locator", Object[].class)
+                    .setParameter("locator", locator)
+                    .getResultList();
+        }
+        return rows.isEmpty() ? null : of(rows.get(0));
+    }
+
+    /**
+     * Get a JSON representation of the resource (the same as {@linkplain Resource#toJSON()}),
+     * read with projection queries rather than by loading the entities
+     *
+     * @param em The entity manager
+     */
+    public JSONObject toJSON(EntityManager em) {
+        JSONObject info = new JSONObject();
+        info.put("id", id);
+        info.put("status", state.toString());
+
+        final List<Object[]> jobs = em.createQuery("SELECT j.startTimestamp, j.endTimestamp, j.progress, p.pid " +
+                "FROM Job j LEFT JOIN j.process p WHERE j.resourceID = :id", Object[].class)
+                .setParameter("id", id)
+                .getResultList();
+        if (jobs.isEmpty()) {
+            return info;
+        }
+
+        final Object[] job = jobs.get(0);
+        final Scheduler scheduler = Scheduler.get();
+        if (state == ResourceState.DONE || state == ResourceState.ERROR || state == ResourceState.RUNNING) {
+            long start = (Long) job[0];
+            long end = state == ResourceState.RUNNING ? System.currentTimeMillis() : (Long) job[1];
+
+            JSONObject events = new JSONObject();
+            info.put("events", events);
+            final double progress = (Double) job[2];
+            info.put("progress", scheduler != null ? scheduler.getProgressStore().getProgress(id, progress) : progress);
+
+            if (scheduler != null && scheduler.isRecovering(id)) {
+                info.put("recovering", true);
+            }
+
+            events.put("start", Job.longDateFormat.format(new Date(start)));
+
+            if (state != ResourceState.RUNNING && end >= 0) {
+                events.put("end", Job.longDateFormat.format(new Date(end)));
+                if (job[3] != null)
+                    events.put("pid", job[3]);
+            }
+        }
+
+        final List<Object[]> rows = em.createQuery("SELECT f.resourceID, f.locator, d.status " +
+                "FROM dependencies d JOIN d.from f WHERE d.to.resourceID = :id", Object[].class)
+                .setParameter("id", id)
+                .getResultList();
+        if (!rows.isEmpty()) {
+            JSONArray dependencies = new JSONArray();
+            info.put("dependencies", dependencies);
+
+            for (Object[] row : rows) {
+                JSONObject dep = new JSONObject();
+                dependencies.add(dep);
+                dep.put("from", row[1]);
+                dep.put("fromId", row[0]);
+                dep.put("status", String.valueOf(row[2]));
+            }
+        }
+
+        return info;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getLocator() {
+        return locator;
+    }
+
+    public ResourceState getState() {
+        return state;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s [%d, %s]", locator, id, state);
+    }
+}
@@ -18,9 +18,16 @@ package sf.net.experimaestro.scheduler;
  * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import org.apache.commons.lang.mutable.MutableBoolean;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import sf.net.experimaestro.connectors.*;
 import sf.net.experimaestro.exceptions.CloseException;
 import sf.net.experimaestro.exceptions.LockException;
@@ -29,6 +36,7 @@ import sf.net.experimaestro.utils.CloseableIterable;
 import sf.net.experimaestro.utils.CloseableIterator;
 import sf.net.experimaestro.utils.Heap;
 import sf.net.experimaestro.utils.ThreadCount;
+import sf.net.experimaestro.utils.io.LogStore;
 import sf.net.experimaestro.utils.log.Logger;
 
 import javax.persistence.*;
@@ -65,28 +73,56 @@ final public class Scheduler {
     final MutableBoolean readyJobSemaphore = new MutableBoolean(false);
 
     /**
-     * Scheduler
+     * Watches the running processes
      */
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final ProcessWatcher processWatcher = new ProcessWatcher();
 
     /**
      * The entity manager factory
      */
     EntityManagerFactory entityManagerFactory;
+
     /**
      * Listeners
      */
-    HashSet<Listener> listeners = new HashSet<>();
+    Set<Listener> listeners = new CopyOnWriteArraySet<>();
     /**
      * True when the application is stopping
      */
     boolean stopping = false;
 
     /**
-     * The job runner (just one)
+     * The job runner (just one), which dispatches ready jobs to the launchers
      */
     JobRunner runner;
 
+    /**
+     * The scheduler settings
+     */
+    private final SchedulerSettings settings;
+
+    /**
+     * The threads that launch jobs
+     */
+    private final ExecutorService launchers;
+
+    /**
+     * Number of free launchers (the job runner waits when no launcher is free)
+     */
+    private final Semaphore freeLaunchers;
+
+    /**
+     * The IDs of the jobs that are being launched
+     */
+    private final LongOpenHashSet launching = new LongOpenHashSet();
+
+    /**
+     * Launch permits for each connector (indexed by connector identifier). Jobs that cannot
+     * get a permit are parked in {@linkplain #readyJobs} while holding this lock, and woken up
+     * one by one when permits are released.
+     */
+    private final HashMap<String, Semaphore> connectorLaunchers = new HashMap<>();
+
     /**
      * Asynchronous notification
      */
@@ -94,9 +130,29 @@ final public class Scheduler {
 
 
     /**
-     * A query that retrieves jobs that are ready, ordered by decreasing priority
+     * A query that retrieves the ID, priority and timestamp of jobs that are ready
      */
-    CriteriaQuery<Long> readyJobsQuery;
+    CriteriaQuery<Object[]> readyJobsQuery;
+
+    /**
+     * In-memory index of the jobs that are ready
+     */
+    final ReadyJobs readyJobs = new ReadyJobs();
+
+    /**
+     * Progress of running jobs
+     */
+    private final ProgressStore progressStore;
+
+    /**
+     * Index of resource locators
+     */
+    private volatile LocatorIndex locatorIndex;
+
+    /**
+     * Number of resources in each state
+     */
+    private volatile ResourceCounts resourceCounts;
     /**
      * Number of running runners
      */
@@ -104,21 +160,42 @@ final public class Scheduler {
     private Timer resourceCheckTimer;
 
     /**
-     * Messenger
+     * The IDs of the running jobs whose status has not been checked since the scheduler started
      */
-    private final MessengerThread messengerThread;
+    private final LongOpenHashSet recovering = new LongOpenHashSet();
 
     /**
-     * Initialise the task manager
+     * The threads that check the running jobs at startup
+     */
+    private ExecutorService recoveryExecutor;
+
+    /**
+     * The threads that update the status of resources on demand (see {@linkplain #updateStatus(EnumSet, StatusUpdate.Listener)})
+     */
+    private final ExecutorService updaters;
+
+    /**
+     * Initialise the task manager with default settings
      *
      * @param baseDirectory The directory where the XPM database will be stored
      */
     public Scheduler(File baseDirectory) throws IOException {
+        this(baseDirectory, new SchedulerSettings());
+    }
+
+    /**
+     * Initialise the task manager
+     *
+     * @param baseDirectory The directory where the XPM database will be stored
+     * @param settings The scheduler settings
+     */
+    public Scheduler(File baseDirectory, SchedulerSettings settings) throws IOException {
         if (INSTANCE != null) {
             throw new XPMRuntimeException("Only one scheduler instance should be created");
         }
 
         INSTANCE = this;
+        this.settings = settings;
 
         // Initialise the database
         LOGGER.info("Initialising database in directory %s", baseDirectory);
@@ -147,39 +224,39 @@ final public class Scheduler {
 
         entityManagerFactory = Persistence.createEntityManagerFactory("net.bpiwowar.experimaestro", properties);
 
+        // Index of locators
+        final LocatorIndex index = new LocatorIndex();
+        Transaction.run(index::load);
+        locatorIndex = index;
+
+        // Number of resources by state
+        final ResourceCounts counts = new ResourceCounts();
+        Transaction.run(counts::load);
+        resourceCounts = counts;
+
+        // Progress of running jobs
+        final LogStore progressLog = new LogStore(new File(baseDirectory, ProgressStore.STORE_NAME + ".log"));
+        progressLog.setSync(settings.isProgressSync());
+        progressStore = new ProgressStore(this, progressLog);
+
         // Add a shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(Scheduler.this::close));
 
         // Create reused criteria queries
         CriteriaBuilder builder = entityManagerFactory.getCriteriaBuilder();
-        readyJobsQuery = builder.createQuery(Long.TYPE);
+        readyJobsQuery = builder.createQuery(Object[].class);
         Root<Job> root = readyJobsQuery.from(Job.class);
-        readyJobsQuery.orderBy(builder.desc(root.get("priority")));
         readyJobsQuery.where(root.get("state").in(ResourceState.READY));
-        readyJobsQuery.select(root.get(Resource_.resourceID));
+        readyJobsQuery.multiselect(root.get(Resource_.resourceID), root.get("priority"), root.get("timestamp"));
 
-        // Initialise the running resources so that they can retrieve their state
-        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        // Start watching processes
+        processWatcher.start();
 
-        TypedQuery<Resource> query = entityManager.createQuery("from resources r where r.state = :state", Resource.class);
-        query.setParameter("state", ResourceState.RUNNING);
-        for (Resource resource : query.getResultList()) {
-            LOGGER.info("Job %s is running: starting a watcher", resource);
-            Job job = (Job) resource;
-            if (job.process != null) {
-                job.process.init(job);
-            } else {
-                Transaction.run(em -> {
-                    // Set the job state to ERROR (and update the state in case it was finished)
-                    // The job should take care of setting a new process if the job is still running
-                    Job _job = em.find(Job.class, job.getId());
-                    _job.setState(ResourceState.ERROR);
-                    _job.updateStatus();
-                    LOGGER.error("No process attached to a running job. New status is: %s", _job.getState());
-                });
-            }
-            resource.updateStatus();
-        }
+        // Build the index of ready jobs
+        rebuildReadyJobs();
+
+        // Write progress at regular intervals
+        progressStore.start(settings.getProgressFlushDelay(), settings.getProgressWindow());
 
         // Start the thread that notify dependencies
         LOGGER.info("Starting the notifier thread");
@@ -187,15 +264,21 @@ final public class Scheduler {
         notifier.start();
         runningThreadsCounter.add();
 
-        // Start the thread that notify dependencies
-        LOGGER.info("Starting the messager thread");
-        messengerThread = new MessengerThread();
-        messengerThread.start();
-        runningThreadsCounter.add();
+        // Start the threads that deliver messages
+        LOGGER.info("Starting %d messager threads", settings.getMessengerThreads());
+        messengers = new MessengerThread[settings.getMessengerThreads()];
+        for (int i = 0; i < messengers.length; i++) {
+            messengers[i] = new MessengerThread(i);
+            messengers[i].start();
+            runningThreadsCounter.add();
+        }
 
 
-        // Start the thread that start the jobs
-        LOGGER.info("Starting the job runner thread");
+        // Start the threads that start the jobs
+        LOGGER.info("Starting the job runner thread and %d launchers", settings.getLauncherThreads());
+        freeLaunchers = new Semaphore(settings.getLauncherThreads());
+        launchers = Executors.newFixedThreadPool(settings.getLauncherThreads(),
+                new ThreadFactoryBuilder().setNameFormat("Launcher-%d").setDaemon(true).build());
         readyJobSemaphore.setValue(true);
         runner = new JobRunner("JobRunner");
         runner.start();
@@ -203,11 +286,189 @@ final public class Scheduler {
 
 
         executorService = Executors.newFixedThreadPool(1);
+        updaters = Executors.newFixedThreadPool(settings.getUpdateThreads(),
+                new ThreadFactoryBuilder().setNameFormat("Updater-%d").setDaemon(true).build());
 
+        // Check the jobs that were running in the background
+        recoverRunningJobs();
 
         LOGGER.info("Done - ready status work now");
     }
 
+    /**
+     * Checks the jobs that were running when the scheduler stopped.
+     * <p>
+     * Checking a job means looking at its files (possibly on a remote host), so this is done
+     * by a pool of threads. At most <code>recovery-connector-threads</code> jobs of a same connector
+     * are checked at the same time, so that a slow or hung host does not occupy all the threads
+     * and delay the recovery of the jobs of other connectors. Until its status is checked,
+     * a job is marked as recovering (see {@linkplain #isRecovering(long)}).
+     */
+    private void recoverRunningJobs() {
+        // Group the running jobs by connector
+        final LinkedHashMap<String, LongArrayList> byConnector = Transaction.evaluate(em -> {
+            return idsByConnector(em, EnumSet.of(ResourceState.RUNNING));
+        });
+
+        int count = 0;
+        synchronized (recovering) {
+            for (LongArrayList ids : byConnector.values()) {
+                recovering.addAll(ids);
+                count += ids.size();
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        for (LongArrayList ids : byConnector.values()) {
+            for (long id : ids) {
+                progressStore.jobRunning(id);
+            }
+        }
+
+        LOGGER.info("Recovering %d running jobs on %d connectors", count, byConnector.size());
+        recoveryExecutor = Executors.newFixedThreadPool(Math.min(settings.getRecoveryThreads(), count),
+                new ThreadFactoryBuilder().setNameFormat("Recovery-%d").setDaemon(true).build());
+
+        // Start the workers, taking one connector in turn
+        final ArrayList<LongIterator> iterators = new ArrayList<>();
+        for (LongArrayList ids : byConnector.values()) {
+            iterators.add(ids.iterator());
+        }
+        final int perConnector = settings.getRecoveryConnectorThreads();
+        for (int i = 0; i < perConnector; i++) {
+            int k = 0;
+            for (LongArrayList ids : byConnector.values()) {
+                final LongIterator iterator = iterators.get(k++);
+                if (i < ids.size()) {
+                    recoveryExecutor.execute(() -> recoverNext(iterator));
+                }
+            }
+        }
+    }
+
+    /**
+     * Recovers the next job of a connector, and re-submits itself until all the jobs
+     * of the connector have been checked
+     *
+     * @param ids The IDs of the running jobs of the connector (shared by the workers of the connector)
+     */
+    private void recoverNext(LongIterator ids) {
+        final long id;
+        synchronized (ids) {
+            if (!ids.hasNext()) {
+                return;
+            }
+            id = ids.nextLong();
+        }
+
+        recover(id);
+
+        try {
+            recoveryExecutor.execute(() -> recoverNext(ids));
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Recovery stopped");
+        }
+    }
+
+    /**
+     * Returns the IDs of the resources in the given states, grouped by connector identifier
+     *
+     * @param em     The entity manager
+     * @param states The states of the resources
+     */
+    static LinkedHashMap<String, LongArrayList> idsByConnector(EntityManager em, EnumSet<ResourceState> states) {
+        final List<Object[]> list = em.createQuery("SELECT r.resourceID, c.identifier FROM resources r LEFT JOIN r.connector c " +
+                "WHERE r.state IN :states ORDER BY r.resourceID", Object[].class)
+                .setParameter("states", states)
+                .getResultList();
+
+        final LinkedHashMap<String, LongArrayList> byConnector = new LinkedHashMap<>();
+        for (Object[] row : list) {
+            final String identifier = row[1] == null ? LocalhostConnector.getInstance().getIdentifier() : (String) row[1];
+            byConnector.computeIfAbsent(identifier, key -> new LongArrayList()).add((Long) row[0]);
+        }
+        return byConnector;
+    }
+
+    /**
+     * Updates (in the background) the status of the resources in the given states
+     *
+     * @param states   The states of the resources to update
+     * @param listener Notified of the progress of the update (can be null)
+     * @return A future giving the number of resources whose status changed
+     */
+    public CompletableFuture<Integer> updateStatus(EnumSet<ResourceState> states, StatusUpdate.Listener listener) {
+        return new StatusUpdate(states, listener).start(updaters);
+    }
+
+    /**
+     * Checks the status of a job that was running when the scheduler started
+     *
+     * @param jobId The job ID
+     */
+    private void recover(long jobId) {
+        try (Transaction transaction = Transaction.create()) {
+            if (isStopping()) {
+                return;
+            }
+
+            final EntityManager em = transaction.em();
+            Resource.lock(transaction, jobId, true, 0);
+            final Job job = em.find(Job.class, jobId);
+            if (job == null || job.getState() != ResourceState.RUNNING) {
+                LOGGER.debug("Job %d is not running anymore", jobId);
+                return;
+            }
+
+            LOGGER.info("Job %s is running: starting a watcher", job);
+            if (job.process != null) {
+                job.process.init(job);
+            } else {
+                // Set the job state to ERROR (and update the state in case it was finished)
+                // The job should take care of setting a new process if the job is still running
+                job.setState(ResourceState.ERROR);
+                LOGGER.error("No process attached to a running job %s", job);
+            }
+            job.updateStatus();
+            transaction.commit();
+            LOGGER.debug("Status of recovered job %s is %s", job, job.getState());
+        } catch (Throwable t) {
+            LOGGER.error(t, "Could not recover job %d", jobId);
+        } finally {
+            final int remaining;
+            synchronized (recovering) {
+                recovering.remove(jobId);
+                remaining = recovering.size();
+            }
+            if (remaining == 0) {
+                LOGGER.info("All running jobs have been recovered");
+                recoveryExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Returns whether a job was running when the scheduler started and its status has not been checked yet
+     *
+     * @param jobId The job ID
+     */
+    public boolean isRecovering(long jobId) {
+        synchronized (recovering) {
+            return recovering.contains(jobId);
+        }
+    }
+
+    /**
+     * @return The number of jobs whose status has not been checked yet since the scheduler started
+     */
+    public int getRecoveringCount() {
+        synchronized (recovering) {
+            return recovering.size();
+        }
+    }
+
     public static Scheduler get() {
         return INSTANCE;
     }
@@ -220,31 +481,98 @@ final public class Scheduler {
         }
     }
 
-    public static EntityManager manager() {
-        return get().entityManagerFactory.createEntityManager();
+    /**
+     * Rebuild the in-memory index of ready jobs from the database
+     */
+    private void rebuildReadyJobs() {
+        readyJobs.clear();
+        final List<Object[]> list = Transaction.evaluate(em -> {
+            return em.createQuery(readyJobsQuery).getResultList();
+        });
+        for (Object[] row : list) {
+            readyJobs.add((Long) row[0], (Integer) row[1], (Long) row[2]);
+        }
+        LOGGER.info("Found %d ready jobs", readyJobs.size());
     }
 
     /**
-     * Check if the process has ended at a given rate
+     * Called when a job has been stored (after commit) to keep the index of ready jobs up to date
      *
-     * @param process
-     * @param rate
-     * @param units
-     * @return
+     * @param job The job that was stored
      */
-    public ScheduledFuture<?> schedule(final XPMProcess process, int rate, TimeUnit units) {
-        return scheduler.scheduleAtFixedRate(() -> {
-            try {
-                process.check();
-            } catch (Exception e) {
-                LOGGER.error(e, "Error while checking job [%s]: %s", process.getJob());
-            }
-        }, 0, rate, units);
+    void jobStored(Job job) {
+        progressStore.jobStored(job);
+        if (job.getState() == ResourceState.READY) {
+            readyJobs.add(job.getId(), job.getPriority(), job.getTimestamp());
+            LOGGER.debug("Job is READY, notifying");
+            notifyRunners();
+        } else {
+            removeReadyJob(job.getId());
+        }
+    }
+
+    /**
+     * Called when a token resource has been stored (after commit) and some tokens are available
+     *
+     * @param token The token resource
+     */
+    void tokenReleased(TokenResource token) {
+        final int released = readyJobs.release(token.getId(), token.getLimit() - token.getUsedTokens());
+        if (released > 0) {
+            LOGGER.debug("%d jobs waiting for token %s can be looked at", released, token);
+            notifyRunners();
+        }
+    }
+
+    /**
+     * Called when a job has been removed from the database (after commit)
+     *
+     * @param job The removed job
+     */
+    void jobRemoved(Job job) {
+        removeReadyJob(job.getId());
+        progressStore.jobRemoved(job.getId());
+    }
+
+    /**
+     * @return The progress of running jobs
+     */
+    public ProgressStore getProgressStore() {
+        return progressStore;
+    }
+
+    /**
+     * Returns the index of resource locators (null until the scheduler is initialized)
+     */
+    public LocatorIndex getLocatorIndex() {
+        return locatorIndex;
+    }
 
+    /**
+     * Returns the number of resources in each state (null until the scheduler is initialized)
+     */
+    public ResourceCounts getResourceCounts() {
+        return resourceCounts;
+    }
+
+    public static EntityManager manager() {
+        return get().entityManagerFactory.createEntityManager();
     }
 
     /**
-     * Returns resources filtered by group and state
+     * @return The watcher of running processes
+     */
+    public ProcessWatcher getProcessWatcher() {
+        return processWatcher;
+    }
+
+    /**
+     * Returns resources filtered by state
+     * <p>
+     * Resources are streamed from the database: the persistence context is cleared every
+     * {@linkplain #STREAM_CLEAR_SIZE} resources, so a resource is detached once more resources
+     * have been retrieved. Resources that are modified should be retrieved by their ID
+     * (see {@linkplain #resourceIds(EntityManager, EnumSet)}).
      *
      * @param states The states of the resource
      * @param lockMode The lock mode
@@ -256,7 +584,86 @@ final public class Scheduler {
         Root<Resource> root = cq.from(Resource.class);
         cq.where(root.get("state").in(states));
         TypedQuery<Resource> query = em.createQuery(cq);
-        return CloseableIterator.of(query.getResultList().iterator());
+        return stream(em, query);
+    }
+
+    /**
+     * Number of resources retrieved before the persistence context is cleared when streaming resources
+     */
+    static final int STREAM_CLEAR_SIZE = 100;
+
+    /**
+     * Iterates over the results of a query with a database cursor
+     *
+     * @param em The entity manager (cleared every {@linkplain #STREAM_CLEAR_SIZE} results)
+     * @param query The query
+     */
+    private static CloseableIterator<Resource> stream(EntityManager em, TypedQuery<Resource> query) {
+        final ScrollableResults results = query.unwrap(org.hibernate.Query.class)
+                .setFetchSize(STREAM_CLEAR_SIZE)
+                .scroll(ScrollMode.FORWARD_ONLY);
+
+        return new CloseableIterator<Resource>() {
+            int count = 0;
+
+            @Override
+            protected Resource computeNext() {
+                if (count > 0 && count % STREAM_CLEAR_SIZE == 0) {
+                    em.clear();
+                }
+                if (!results.next()) {
+                    return endOfData();
+                }
+                count++;
+                return (Resource) results.get(0);
+            }
+
+            @Override
+            public void close() {
+                results.close();
+            }
+        };
+    }
+
+    /**
+     * Returns the IDs of the resources in the given states (in increasing order)
+     *
+     * @param em     The entity manager
+     * @param states The states of the resources
+     */
+    public LongArrayList resourceIds(EntityManager em, EnumSet<ResourceState> states) {
+        final List<Long> ids = em.createQuery("SELECT r.resourceID FROM resources r WHERE r.state IN :states ORDER BY r.resourceID", Long.class)
+                .setParameter("states", states)
+                .getResultList();
+        final LongArrayList list = new LongArrayList(ids.size());
+        for (Long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    /**
+     * Returns a page of resource summaries, ordered by resource ID
+     *
+     * @param em     The entity manager
+     * @param states The states of the resources
+     * @param after  Only resources with an ID greater than this one are returned (keyset pagination)
+     * @param limit  The maximum number of resources (0 or less for no limit)
+     */
+    public List<ResourceSummary> resourceSummaries(EntityManager em, EnumSet<ResourceState> states, long after, int limit) {
+        final TypedQuery<Object[]> query = em.createQuery(ResourceSummary.SELECT
+                + " WHERE r.state IN :states AND r.resourceID > :after ORDER BY r.resourceID", Object[].class)
+                .setParameter("states", states)
+                .setParameter("after", after);
+        if (limit > 0) {
+            query.setMaxResults(limit);
+        }
+
+        final ArrayList<ResourceSummary> summaries = new ArrayList<>();
+        for (Object[] row : query.getResultList()) {
+            summaries.add(ResourceSummary.of(row));
+        }
+        return summaries;
     }
 
     // ----
@@ -316,21 +723,42 @@ final public class Scheduler {
 
         // Stop the threads
         LOGGER.info("Stopping runner and scheduler");
+        processWatcher.close();
         runner.interrupt();
         notifier.interrupt();
-        messengerThread.interrupt();
+        for (MessengerThread messenger : messengers) {
+            messenger.interrupt();
+        }
 
         // Wait for all threads to complete
         runningThreadsCounter.resume();
         runner = null;
         notifier = null;
 
+        if (recoveryExecutor != null) {
+            recoveryExecutor.shutdownNow();
+        }
+        updaters.shutdownNow();
+
+        LOGGER.info("Waiting for launchers to finish");
+        launchers.shutdown();
+        try {
+            launchers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            LOGGER.warn("Interrupted while waiting for launchers to finish");
+        }
+
         if (executorService != null) {
             executorService.shutdown();
         }
 
+        LOGGER.info("Writing job progress");
+        progressStore.close();
+
         INSTANCE = null;
 
+        LOGGER.info("Resource locks: %s", Resource.getLockStatistics());
+
         LOGGER.info("Closing entity manager factory");
         entityManagerFactory.close();
         entityManagerFactory = null;
@@ -338,24 +766,28 @@ final public class Scheduler {
     }
 
     /**
-     * Iterator on resources
+     * Iterator on resources (streamed from the database, see
+     * {@linkplain #resources(EntityManager, EnumSet, LockModeType)})
      */
     public CloseableIterable<Resource> resources() {
-        final List<Resource> resultList = Transaction.evaluate(em -> {
-            TypedQuery<Resource> query = em.createQuery("from resources", Resource.class);
-            query.setFlushMode(FlushModeType.AUTO);
-            return query.getResultList();
-        });
-
         return new CloseableIterable<Resource>() {
+            final EntityManager em = entityManagerFactory.createEntityManager();
+            CloseableIterator<Resource> iterator;
+
             @Override
             public void close() throws CloseException {
-
+                if (iterator != null) {
+                    iterator.close();
+                }
+                em.close();
             }
 
             @Override
             public Iterator<Resource> iterator() {
-                return resultList.iterator();
+                if (iterator != null) {
+                    iterator.close();
+                }
+                return iterator = stream(em, em.createQuery("from resources", Resource.class));
             }
         };
     }
@@ -404,7 +836,7 @@ final public class Scheduler {
     }
 
     /**
-     * This task runner takes a new task each time
+     * This task runner takes the ready jobs and hands them to the launchers
      */
     class JobRunner extends Thread {
         private final String name;
@@ -438,84 +870,47 @@ final public class Scheduler {
                         readyJobSemaphore.setValue(false);
                     }
 
-                    final List<Long> jobIds = Transaction.evaluate(em -> {
-                        TypedQuery<Long> query = em.createQuery(Scheduler.this.readyJobsQuery);
-                        return query.getResultList();
-                    });
+                    // Get the ready jobs from the in-memory index
+                    final LongArrayList jobIds = readyJobs.snapshot();
 
                     // Try the next task
-                    LOGGER.debug("Searching for ready jobs");
+                    LOGGER.debug("Searching for ready jobs [%d candidates]", jobIds.size());
 
-                    /* TODO: consider a smarter way to retrieve good candidates (e.g. using a bloom filter for tokens) */
                     for (long jobId : jobIds) {
-                        try (Transaction transaction = Transaction.create()) {
-                            final EntityManager em = transaction.em();
-                            Resource.lock(transaction, jobId, true, 0);
-                            Job job = em.find(Job.class, jobId);
-                            job.lock(transaction, true);
-                            job = em.find(Job.class, job.getId());
-                            this.setName(name + "/" + job);
-
-                            LOGGER.debug("Looking at %s", job);
-
-                            if (job.getState() != ResourceState.READY) {
-                                LOGGER.debug("Job state is not READY anymore", job);
-                                transaction.clearLocks();
-                                continue;
-                            }
+                        if (isStopping()) {
+                            break;
+                        }
 
-                            // Checks the tokens
-                            boolean tokensAvailable = true;
-                            for (Dependency dependency : job.getDependencies()) {
-                                if (dependency instanceof TokenDependency) {
-                                    TokenDependency tokenDependency = (TokenDependency) dependency;
-                                    if (!tokenDependency.canLock()) {
-                                        LOGGER.debug("Token dependency [%s] prevents running job", tokenDependency);
-                                        tokensAvailable = false;
-                                        break;
-                                    }
-                                    LOGGER.debug("OK to lock token dependency: %s", tokenDependency);
-                                }
-                            }
-                            if (!tokensAvailable) {
-                                // Remove locks
-                                transaction.clearLocks();
+                        // The job might have been started or changed in the meantime
+                        if (!readyJobs.contains(jobId)) {
+                            continue;
+                        }
+
+                        // Wait for a free launcher
+                        try {
+                            freeLaunchers.acquire();
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+
+                        synchronized (launching) {
+                            if (!launching.add(jobId)) {
+                                // Already being launched
+                                freeLaunchers.release();
                                 continue;
                             }
+                        }
 
+                        launchers.execute(() -> {
                             try {
-                                job.run(em, transaction);
-
-                                LOGGER.info("Job %s has started", job);
-                            } catch (LockException e) {
-                                // We could not lock the resources: update the job state
-                                LOGGER.info("Could not lock all the resources for job %s [%s]", job, e.getMessage());
-                                job.setState(ResourceState.WAITING);
-                                job.updateStatus();
-                                transaction.boundary();
-                                LOGGER.info("Finished launching %s", job);
-                            } catch (RollbackException e) {
-                                LOGGER.error(e, "Rollback exception");
-                                synchronized (readyJobSemaphore) {
-                                    readyJobSemaphore.setValue(true);
-                                }
-
-                                break;
-                            } catch (Throwable t) {
-                                LOGGER.warn(t, "Got a trouble while launching job [%s]", job);
-                                job.setState(ResourceState.ERROR);
-                                transaction.boundary();
+                                launch(jobId);
                             } finally {
-                                this.setName(name);
+                                synchronized (launching) {
+                                    launching.remove(jobId);
+                                }
+                                freeLaunchers.release();
                             }
-
-                        } catch (RollbackException e) {
-                            LOGGER.warn("Rollback exception");
-                        } catch (Exception e) {
-                            // FIXME: should do something smarter
-                            LOGGER.error(e, "Caught an exception");
-                        } finally {
-                        }
+                        });
                     }
 
                 }
@@ -526,48 +921,259 @@ final public class Scheduler {
         }
     }
 
-    final static private class MessagePackage extends Heap.DefaultElement<MessagePackage> implements Comparable<MessagePackage> {
-        public Message message;
-        public long destination;
-        public long timestamp;
+    /**
+     * Removes a job from the ready jobs, passing on the connector launch permit it might have been handed
+     *
+     * @param jobId The job ID
+     */
+    private void removeReadyJob(long jobId) {
+        final String connector = readyJobs.takeWakeUp(jobId);
+        readyJobs.remove(jobId);
+        if (connector != null) {
+            wakeUp(connector);
+        }
+    }
+
+    /**
+     * Acquire a launch permit for a connector, or park the job until a permit is released
+     *
+     * @param identifier The connector identifier
+     * @param jobId      The ID of the job to launch
+     * @return true if the permit was acquired
+     */
+    private boolean acquireConnector(String identifier, long jobId) {
+        synchronized (connectorLaunchers) {
+            final Semaphore semaphore = connectorLaunchers.computeIfAbsent(identifier,
+                    key -> new Semaphore(settings.getConnectorLimit(key)));
+            if (semaphore.tryAcquire()) {
+                return true;
+            }
+            readyJobs.park(jobId, identifier);
+            return false;
+        }
+    }
 
-        public MessagePackage(Message message, Resource destination, long timestamp) {
-            this.message = message;
-            this.destination = destination.getId();
+    /**
+     * Release a launch permit, and wake up a job waiting for it
+     *
+     * @param identifier The connector identifier
+     */
+    private void releaseConnector(String identifier) {
+        synchronized (connectorLaunchers) {
+            connectorLaunchers.get(identifier).release();
+        }
+        wakeUp(identifier);
+    }
+
+    /**
+     * Wake up a job parked on a connector if a launch permit is available
+     *
+     * @param identifier The connector identifier
+     */
+    private void wakeUp(String identifier) {
+        final int woken;
+        synchronized (connectorLaunchers) {
+            final Semaphore semaphore = connectorLaunchers.get(identifier);
+            if (semaphore == null || semaphore.availablePermits() == 0) {
+                return;
+            }
+            woken = readyJobs.wakeUp(identifier, 1);
+        }
+        if (woken > 0) {
+            LOGGER.debug("A job waiting for connector %s can be looked at", identifier);
+            notifyRunners();
+        }
+    }
+
+    /**
+     * Try to launch a ready job (called by a launcher thread)
+     *
+     * @param jobId The job ID
+     */
+    private void launch(long jobId) {
+        final Thread thread = Thread.currentThread();
+        final String name = thread.getName();
+
+        // Get this before looking at tokens (see ReadyJobs.park)
+        final long tokenGeneration = readyJobs.tokenGeneration();
+
+        // The connector that handed us its launch permit, if any
+        final String wokenBy = readyJobs.takeWakeUp(jobId);
+        boolean acquired = false;
+
+        try (Transaction transaction = Transaction.create()) {
+            final EntityManager em = transaction.em();
+            Resource.lock(transaction, jobId, true, 0);
+            Job job = em.find(Job.class, jobId);
+            if (job == null) {
+                LOGGER.debug("Job %d is not in the database anymore", jobId);
+                readyJobs.remove(jobId);
+                return;
+            }
+            job.lock(transaction, true);
+            job = em.find(Job.class, job.getId());
+            thread.setName(name + "/" + job);
+
+            LOGGER.debug("Looking at %s", job);
+
+            if (job.getState() != ResourceState.READY) {
+                LOGGER.debug("Job state is not READY anymore", job);
+                readyJobs.remove(jobId);
+                transaction.clearLocks();
+                return;
+            }
+
+            // Checks the tokens
+            TokenDependency blockingToken = null;
+            for (Dependency dependency : job.getDependencies()) {
+                if (dependency instanceof TokenDependency) {
+                    TokenDependency tokenDependency = (TokenDependency) dependency;
+                    if (!tokenDependency.canLock()) {
+                        LOGGER.debug("Token dependency [%s] prevents running job", tokenDependency);
+                        blockingToken = tokenDependency;
+                        break;
+                    }
+                    LOGGER.debug("OK to lock token dependency: %s", tokenDependency);
+                }
+            }
+            if (blockingToken != null) {
+                // Remove locks
+                transaction.clearLocks();
+
+                // Wait until the token is released
+                if (!readyJobs.park(jobId, blockingToken.getFrom().getId(), tokenGeneration)) {
+                    LOGGER.debug("A token was released while looking at %s", job);
+                    notifyRunners();
+                }
+                return;
+            }
+
+            // Checks that we can launch one more job on this connector
+            final String connectorId = job.getMainConnector().getIdentifier();
+            if (!acquireConnector(connectorId, jobId)) {
+                LOGGER.debug("Too many jobs being launched on %s: delaying %s", connectorId, job);
+                transaction.clearLocks();
+                return;
+            }
+            acquired = true;
+
+            try {
+                job.run(em, transaction);
+
+                LOGGER.info("Job %s has started", job);
+            } catch (LockException e) {
+                // We could not lock the resources: update the job state
+                LOGGER.info("Could not lock all the resources for job %s [%s]", job, e.getMessage());
+                job.setState(ResourceState.WAITING);
+                job.updateStatus();
+                transaction.boundary();
+                LOGGER.info("Finished launching %s", job);
+            } catch (RollbackException e) {
+                LOGGER.error(e, "Rollback exception");
+                notifyRunners();
+            } catch (Throwable t) {
+                LOGGER.warn(t, "Got a trouble while launching job [%s]", job);
+                job.setState(ResourceState.ERROR);
+                transaction.boundary();
+            } finally {
+                releaseConnector(connectorId);
+            }
+
+        } catch (RollbackException e) {
+            LOGGER.warn("Rollback exception");
+        } catch (Exception e) {
+            // FIXME: should do something smarter
+            LOGGER.error(e, "Caught an exception");
+        } finally {
+            // Pass on the launch permit we were handed but did not use
+            if (wokenBy != null && !acquired) {
+                wakeUp(wokenBy);
+            }
+            thread.setName(name);
+        }
+    }
+
+    /**
+     * The messages waiting to be delivered to one resource, in order
+     */
+    final static private class MessageQueue extends Heap.DefaultElement<MessageQueue> implements Comparable<MessageQueue> {
+        final long destination;
+
+        final ArrayDeque<Message> messages = new ArrayDeque<>();
+
+        /**
+         * Time after which the first message can be delivered
+         */
+        long timestamp;
+
+        /**
+         * Number of failed attempts to deliver the first message
+         */
+        int attempts = 0;
+
+        public MessageQueue(long destination, long timestamp) {
+            this.destination = destination;
             this.timestamp = timestamp;
         }
 
         @Override
-        public int compareTo(MessagePackage o) {
+        public int compareTo(MessageQueue o) {
             return Long.compare(this.timestamp, o.timestamp);
         }
     }
 
     /**
-     * Queue for messages
+     * Messenger threads (messages are dispatched according to their destination)
      */
-    Heap<MessagePackage> messages = new Heap<>();
+    private final MessengerThread[] messengers;
 
     public void sendMessage(Resource destination, Message message) {
-        synchronized (messages) {
-            // Add the message (with a timestamp one ms before the time, to avoid locks)
-            messages.add(new MessagePackage(message, destination, System.currentTimeMillis() - 1));
-            // Notify
-            messages.notify();
-        }
+        final long id = destination.getId();
+        messengers[(int) (id % messengers.length)].add(id, message);
     }
 
     /**
-     * Time added when rescheduling
+     * Initial time added when rescheduling (doubled after each failure)
      */
     static final long RESCHEDULING_DELTA_TIME = 250;
 
     /**
-     * The message thread
+     * Maximum time added when rescheduling
+     */
+    static final long MAX_RESCHEDULING_DELTA_TIME = 60_000;
+
+    /**
+     * A message thread, delivering messages to a subset of resources. Messages
+     * for a given resource are delivered in order.
      */
     private class MessengerThread extends Thread {
-        public MessengerThread() {
-            super("Message");
+        /**
+         * Message queues ordered by time
+         */
+        private final Heap<MessageQueue> heap = new Heap<>();
+
+        /**
+         * Message queues by destination
+         */
+        private final Long2ObjectOpenHashMap<MessageQueue> queues = new Long2ObjectOpenHashMap<>();
+
+        public MessengerThread(int index) {
+            super("Message-" + index);
+        }
+
+        void add(long destination, Message message) {
+            synchronized (heap) {
+                MessageQueue queue = queues.get(destination);
+                if (queue == null) {
+                    // Add the message (with a timestamp one ms before the time, to avoid locks)
+                    queue = new MessageQueue(destination, System.currentTimeMillis() - 1);
+                    queues.put(destination, queue);
+                    heap.add(queue);
+                    // Notify
+                    heap.notify();
+                }
+                queue.messages.add(message);
+            }
         }
 
         @Override
@@ -577,20 +1183,21 @@ final public class Scheduler {
             mainLoop:
             while (!isStopping()) {
                 try {
-                    // Get the next resource ID
-                    final MessagePackage messagePackage;
+                    // Get the next queue
+                    final MessageQueue queue;
+                    final Message message;
                     while (true) {
-                        synchronized (messages) {
+                        synchronized (heap) {
                             LOGGER.debug("Waiting for the next message");
                             long wait = 0;
-                            if (!messages.isEmpty()) {
-                                wait = messages.peek().timestamp - System.currentTimeMillis();
+                            if (!heap.isEmpty()) {
+                                wait = heap.peek().timestamp - System.currentTimeMillis();
                                 LOGGER.debug("Next message has a waiting time of %d", wait);
                             }
 
-                            if (wait >= 0) {
+                            if (heap.isEmpty() || wait > 0) {
                                 try {
-                                    messages.wait(wait);
+                                    heap.wait(wait);
                                 } catch (InterruptedException e) {
                                     if (isStopping())
                                         break mainLoop;
@@ -598,27 +1205,45 @@ final public class Scheduler {
                                 continue;
 
                             } else {
-                                messagePackage = messages.pop();
+                                queue = heap.pop();
+                                message = queue.messages.peekFirst();
                                 break;
                             }
                         }
                     }
 
                     // Notify all the dependencies
+                    boolean delivered = false;
                     try {
                         Transaction.run((em, t) -> {
                             // Retrieve the resource that changed - and lock it
-                            Resource destination = em.find(Resource.class, messagePackage.destination);
-                            Resource.lock(t, messagePackage.destination, true, 0);
+                            Resource destination = em.find(Resource.class, queue.destination);
+                            Resource.lock(t, queue.destination, true, 0);
                             em.refresh(destination);
-                            LOGGER.debug("Sending message %s to %s", messagePackage.message, destination);
-                            destination.notify(t, em, messagePackage.message);
+                            LOGGER.debug("Sending message %s to %s", message, destination);
+                            destination.notify(t, em, message);
                         });
+                        delivered = true;
                     } catch (Throwable e) {
-                        LOGGER.warn("Error [%s] while notifying %s - Rescheduling", e.toString(), messagePackage.destination);
-                        synchronized (messages) {
-                            messagePackage.timestamp = System.currentTimeMillis() + RESCHEDULING_DELTA_TIME;
-                            messages.add(messagePackage);
+                        LOGGER.warn("Error [%s] while notifying %s - Rescheduling", e.toString(), queue.destination);
+                    }
+
+                    synchronized (heap) {
+                        if (delivered) {
+                            queue.messages.removeFirst();
+                            queue.attempts = 0;
+                            queue.timestamp = System.currentTimeMillis() - 1;
+                        } else {
+                            // Exponential backoff
+                            queue.attempts++;
+                            queue.timestamp = System.currentTimeMillis()
+                                    + Math.min(RESCHEDULING_DELTA_TIME << Math.min(queue.attempts - 1, 16), MAX_RESCHEDULING_DELTA_TIME);
+                        }
+
+                        if (queue.messages.isEmpty()) {
+                            queues.remove(queue.destination);
+                        } else {
+                            heap.add(queue);
                         }
                     }
 
@@ -628,7 +1253,7 @@ final public class Scheduler {
             }
 
             runningThreadsCounter.del();
-            LOGGER.info("Stopping notifier thread");
+            LOGGER.info("Stopping messager thread");
         }
 
 
@@ -652,6 +1277,125 @@ final public class Scheduler {
         }
     }
 
+    /**
+     * Timeout (in ms) when a thread locks several resources at once: locks are taken
+     * in ID order, but other threads might take them in a different order
+     */
+    static final long BATCH_LOCK_TIMEOUT = 5_000;
+
+    /**
+     * Update the dependencies of changed resources, and notify the dependent resources
+     * whose dependency status changed. Dependent resources are retrieved for all the changed
+     * resources at once, and then updated (and committed) by chunks of dependent resources so
+     * that the exclusive locks on dependent resources are only held while their own dependencies
+     * are updated.
+     *
+     * @param resourceIds The (sorted) IDs of the changed resources
+     */
+    private void notifyDependencies(long[] resourceIds) {
+        LOGGER.debug("Notifying dependencies from %d resources", resourceIds.length);
+        final List<Long> ids = new LongArrayList(resourceIds);
+
+        Transaction.run((em, t) -> {
+            // Group the dependencies by dependent resource
+            final List<Object[]> rows = em.createQuery("SELECT d.to.resourceID, d.from.resourceID FROM dependencies d " +
+                    "WHERE d.from.resourceID IN :ids ORDER BY d.to.resourceID", Object[].class)
+                    .setParameter("ids", ids)
+                    .getResultList();
+            final Long2ObjectLinkedOpenHashMap<LongArrayList> dependents = new Long2ObjectLinkedOpenHashMap<>();
+            for (Object[] row : rows) {
+                final long toId = (Long) row[0];
+                LongArrayList fromIds = dependents.get(toId);
+                if (fromIds == null) {
+                    dependents.put(toId, fromIds = new LongArrayList());
+                }
+                fromIds.add((long) (Long) row[1]);
+            }
+            LOGGER.info("Notifying %d dependent resources from %d resources", dependents.size(), resourceIds.length);
+
+            final LongArrayList toIds = new LongArrayList(dependents.keySet());
+            final int chunkSize = settings.getNotifierBatchSize();
+            for (int i = 0; i < toIds.size(); i += chunkSize) {
+                final LongArrayList chunk = new LongArrayList(toIds.subList(i, Math.min(i + chunkSize, toIds.size())));
+                notifyDependents(em, t, chunk, dependents);
+            }
+        });
+    }
+
+    /**
+     * Update the dependencies of a chunk of resources towards changed resources, and commit
+     *
+     * @param toIds      The (sorted) IDs of the dependent resources
+     * @param dependents The IDs of the changed resources, for each dependent resource
+     */
+    private void notifyDependents(EntityManager em, Transaction t, LongArrayList toIds, Long2ObjectMap<LongArrayList> dependents) {
+        final LongOpenHashSet exclusive = new LongOpenHashSet(toIds);
+        final LongOpenHashSet fromIds = new LongOpenHashSet();
+        for (long toId : toIds) {
+            fromIds.addAll(dependents.get(toId));
+        }
+
+        // Lock in ID order: dependent resources are locked exclusively from the start
+        // (they can also be changed resources, and shared locks cannot always be escalated)
+        final LongOpenHashSet lockIds = new LongOpenHashSet(exclusive);
+        lockIds.addAll(fromIds);
+        final long[] sortedIds = lockIds.toLongArray();
+        Arrays.sort(sortedIds);
+        for (long id : sortedIds) {
+            if (Resource.lock(t, id, exclusive.contains(id), BATCH_LOCK_TIMEOUT) == null) {
+                LOGGER.debug("Could not lock R%d: dependencies of %d resources will be updated later", id, toIds.size());
+                t.clearLocks();
+                synchronized (changedResources) {
+                    changedResources.addAll(fromIds);
+                    changedResources.notify();
+                }
+                return;
+            }
+        }
+
+        // Now that everything is locked, retrieve the up-to-date dependencies (and resources) at once
+        final List<Dependency> dependencies = em.createQuery("SELECT d FROM dependencies d JOIN FETCH d.from JOIN FETCH d.to " +
+                "WHERE d.from.resourceID IN :ids AND d.to.resourceID IN :chunk", Dependency.class)
+                .setParameter("ids", new ArrayList<>(fromIds))
+                .setParameter("chunk", new ArrayList<>(toIds))
+                .getResultList();
+
+        for (Dependency dep : dependencies) {
+            final Resource fromResource = dep.getFrom();
+            if (dep.status == DependencyStatus.UNACTIVE) {
+                LOGGER.debug("We won't notify [%s] status [%s] since the dependency is not active", fromResource, dep.getTo());
+
+            } else
+                try {
+                    // when the dependency status is null, the dependency is not active anymore
+                    LOGGER.debug("Notifying dependency: [%s] status [%s]; current dep. state=%s", fromResource, dep.getTo(), dep.status);
+                    // Preserves the previous state
+                    DependencyStatus beforeState = dep.status;
+
+                    if (dep.update()) {
+                        final Resource depResource = dep.getTo();
+
+                        if (!ResourceState.NOTIFIABLE_STATE.contains(depResource.getState())) {
+                            LOGGER.debug("We won't notify resource %s since its state is %s", depResource, depResource.getState());
+                            continue;
+                        }
+
+                        // Queue this change in dependency state
+                        depResource.notify(t, em, new DependencyChangedMessage(dep, beforeState, dep.status));
+
+                    } else {
+                        LOGGER.debug("No change in dependency status [%s -> %s]", beforeState, dep.status);
+                    }
+                } catch (RuntimeException e) {
+                    LOGGER.error(e, "Got an exception while notifying [%s]", fromResource);
+                }
+        }
+
+        // Commit, release the locks, and detach the entities so that the next chunk is read from the database
+        t.boundary();
+        em.clear();
+    }
+
     /**
      * The notifier thread
      */
@@ -666,9 +1410,9 @@ final public class Scheduler {
 
             while (!isStopping()) {
                 try {
-                    final long resourceId;
+                    final long[] resourceIds;
 
-                    // Get the next resource ID
+                    // Get the next resource IDs
                     synchronized (changedResources) {
                         if (changedResources.isEmpty()) {
                             try {
@@ -678,55 +1422,36 @@ final public class Scheduler {
                             continue;
 
                         } else {
+                            final int size = Math.min(changedResources.size(), settings.getNotifierBatchSize());
+                            resourceIds = new long[size];
                             final LongIterator iterator = changedResources.iterator();
-                            resourceId = iterator.next();
-                            iterator.remove();
+                            for (int i = 0; i < size; i++) {
+                                resourceIds[i] = iterator.nextLong();
+                                iterator.remove();
+                            }
                         }
                     }
 
-                    LOGGER.debug("Notifying dependencies from R%d", resourceId);
-                    // Notify all the dependencies
-                    Transaction.run((em, t) -> {
-
-                        // Retrieve the resource that changed - and lock it
-                        Resource fromResource = em.find(Resource.class, resourceId);
-                        fromResource.lock(t, false);
-
-                        Collection<Dependency> dependencies = fromResource.getOutgoingDependencies();
-                        LOGGER.info("Notifying dependencies from %s [%d]", fromResource, dependencies.size());
+                    // Sort so that locks are always taken in the same order
+                    Arrays.sort(resourceIds);
 
-                        for (Dependency dep : dependencies) {
-                            if (dep.status == DependencyStatus.UNACTIVE) {
-                                LOGGER.debug("We won't notify [%s] status [%s] since the dependency is not active", fromResource, dep.getTo());
+                    try {
+                        notifyDependencies(resourceIds);
+                    } catch (Exception e) {
+                        if (resourceIds.length == 1) {
+                            throw e;
+                        }
 
-                            } else
-                                try {
-                                    // when the dependency status is null, the dependency is not active anymore
-                                    LOGGER.debug("Notifying dependency: [%s] status [%s]; current dep. state=%s", fromResource, dep.getTo(), dep.status);
-                                    // Preserves the previous state
-                                    DependencyStatus beforeState = dep.status;
-
-                                    if (dep.update()) {
-                                        final Resource depResource = dep.getTo();
-                                        depResource.lock(t, true);
-                                        em.refresh(depResource);
-
-                                        if (!ResourceState.NOTIFIABLE_STATE.contains(depResource.getState())) {
-                                            LOGGER.debug("We won't notify resource %s since its state is %s", depResource, depResource.getState());
-                                            continue;
-                                        }
-
-                                        // Queue this change in dependency state
-                                        depResource.notify(t, em, new DependencyChangedMessage(dep, beforeState, dep.status));
-
-                                    } else {
-                                        LOGGER.debug("No change in dependency status [%s -> %s]", beforeState, dep.status);
-                                    }
-                                } catch (RuntimeException e) {
-                                    LOGGER.error(e, "Got an exception while notifying [%s]", fromResource);
-                                }
+                        // Process the resources one by one so that one failure does not affect the others
+                        LOGGER.warn(e, "Could not notify dependencies of %d resources at once - retrying one by one", resourceIds.length);
+                        for (long resourceId : resourceIds) {
+                            try {
+                                notifyDependencies(new long[]{resourceId});
+                            } catch (Exception e2) {
+                                LOGGER.error(e2, "Caught exception while notifying dependencies of R%d", resourceId);
+                            }
                         }
-                    });
+                    }
 
                 } catch (Exception e) {
                     LOGGER.error("Caught exception in notifier", e);
@@ -0,0 +1,201 @@
+package sf.net.experimaestro.scheduler;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import sf.net.experimaestro.utils.log.Logger;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Settings of the scheduler (section <code>scheduler</code> of the configuration file)
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+public class SchedulerSettings {
+    final static private Logger LOGGER = Logger.getLogger();
+
+    /**
+     * Prefix of the keys giving the maximum number of concurrent launches for one connector
+     */
+    public static final String CONNECTOR_PREFIX = "connector";
+
+    /**
+     * Number of threads used to launch jobs
+     */
+    int launcherThreads = 4;
+
+    /**
+     * Default maximum number of jobs being launched at the same time on a connector
+     * (0 means no other limit than the number of launcher threads)
+     */
+    int connectorLaunchers = 0;
+
+    /**
+     * Maximum number of changed resources whose dependencies are updated in one transaction
+     */
+    int notifierBatchSize = 100;
+
+    /**
+     * Number of threads delivering messages to resources
+     */
+    int messengerThreads = 4;
+
+    /**
+     * Number of threads checking the jobs that were running when the scheduler started
+     */
+    int recoveryThreads = 8;
+
+    /**
+     * Maximum number of jobs of a same connector checked at the same time when the scheduler starts
+     */
+    int recoveryConnectorThreads = 2;
+
+    /**
+     * Number of threads updating the status of resources on demand
+     */
+    int updateThreads = 4;
+
+    /**
+     * Delay between two writes of job progress to the database (ms)
+     */
+    long progressFlushDelay = 10_000;
+
+    /**
+     * Time window over which progress updates are coalesced before notifying listeners (ms)
+     */
+    long progressWindow = 1_000;
+
+    /**
+     * Whether each progress update is forced to the disk
+     */
+    boolean progressSync = false;
+
+    /**
+     * Maximum number of concurrent launches, by connector identifier
+     */
+    HashMap<String, Integer> connectorLimits = new HashMap<>();
+
+    /**
+     * Default settings
+     */
+    public SchedulerSettings() {
+        this(new PropertiesConfiguration());
+    }
+
+    public SchedulerSettings(Configuration configuration) {
+        launcherThreads = Math.max(1, configuration.getInt("launchers", launcherThreads));
+        connectorLaunchers = configuration.getInt("connector-launchers", connectorLaunchers);
+        notifierBatchSize = Math.max(1, configuration.getInt("notifier-batch", notifierBatchSize));
+        messengerThreads = Math.max(1, configuration.getInt("messengers", messengerThreads));
+        recoveryThreads = Math.max(1, configuration.getInt("recovery-threads", recoveryThreads));
+        recoveryConnectorThreads = Math.max(1, configuration.getInt("recovery-connector-threads", recoveryConnectorThreads));
+        updateThreads = Math.max(1, configuration.getInt("update-threads", updateThreads));
+        progressFlushDelay = Math.max(100, configuration.getLong("progress-flush", progressFlushDelay));
+        progressWindow = Math.max(10, configuration.getLong("progress-window", progressWindow));
+        progressSync = configuration.getBoolean("progress-sync", progressSync);
+
+        final Iterator<?> keys = configuration.getKeys(CONNECTOR_PREFIX);
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            final String identifier = key.substring(CONNECTOR_PREFIX.length() + 1);
+            connectorLimits.put(identifier, configuration.getInt(key));
+            LOGGER.info("At most %d concurrent launches on connector %s", connectorLimits.get(identifier), identifier);
+        }
+    }
+
+    /**
+     * @return The number of threads used to launch jobs
+     */
+    public int getLauncherThreads() {
+        return launcherThreads;
+    }
+
+    /**
+     * @return The maximum number of changed resources processed in one transaction by the notifier
+     */
+    public int getNotifierBatchSize() {
+        return notifierBatchSize;
+    }
+
+    /**
+     * @return The number of threads delivering messages to resources
+     */
+    public int getMessengerThreads() {
+        return messengerThreads;
+    }
+
+    /**
+     * @return The number of threads checking the jobs that were running when the scheduler started
+     */
+    public int getRecoveryThreads() {
+        return recoveryThreads;
+    }
+
+    /**
+     * @return The maximum number of jobs of a same connector checked at the same time when
+     * the scheduler starts
+     */
+    public int getRecoveryConnectorThreads() {
+        return recoveryConnectorThreads;
+    }
+
+    /**
+     * @return The number of threads updating the status of resources on demand
+     */
+    public int getUpdateThreads() {
+        return updateThreads;
+    }
+
+    /**
+     * @return The delay between two writes of job progress to the database (ms)
+     */
+    public long getProgressFlushDelay() {
+        return progressFlushDelay;
+    }
+
+    /**
+     * @return The time window over which progress updates are coalesced (ms)
+     */
+    public long getProgressWindow() {
+        return progressWindow;
+    }
+
+    /**
+     * @return Whether each progress update is forced to the disk (otherwise, updates since
+     * the last flush can be lost if the system crashes)
+     */
+    public boolean isProgressSync() {
+        return progressSync;
+    }
+
+    /**
+     * Returns the maximum number of jobs that can be launched at the same time on a connector
+     *
+     * @param identifier The connector identifier
+     * @return The maximum number of concurrent launches
+     */
+    public int getConnectorLimit(String identifier) {
+        final Integer limit = connectorLimits.get(identifier);
+        final int value = limit != null ? limit : connectorLaunchers;
+        return value > 0 ? Math.min(value, launcherThreads) : launcherThreads;
+    }
+}
@@ -18,19 +18,124 @@ package sf.net.experimaestro.scheduler;
  * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 
-import java.util.function.Function;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Sets of locks indexed by long integer IDs
+ * <p>
+ * IDs are spread over a fixed number of stripes, each protected by its own lock, and
+ * each ID being waited for has its own condition, so that releasing a lock only wakes up
+ * the threads waiting for this ID.
  */
 final public class SharedLongLocks {
     /**
-     * The list of locks
-     * A negative value is used for shared locks
+     * Number of stripes (must be a power of 2)
      */
-    private Long2IntOpenHashMap locks = new Long2IntOpenHashMap();
+    static final int STRIPES = 64;
+
+    /**
+     * The state of a locked (or waited for) ID
+     */
+    static private class Entry {
+        /**
+         * A negative value is used for an exclusive lock, a positive one for the number of shared locks
+         */
+        int value;
+
+        /**
+         * Number of threads waiting for this ID
+         */
+        int waiters;
+
+        /**
+         * Number of threads waiting for an exclusive lock
+         */
+        int writers;
+
+        /**
+         * Signalled when the lock is released
+         */
+        final Condition released;
+
+        Entry(Condition released) {
+            this.released = released;
+        }
+    }
+
+    /**
+     * A stripe
+     */
+    static private class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Long2ObjectOpenHashMap<Entry> entries = new Long2ObjectOpenHashMap<>();
+
+        Entry get(long id) {
+            Entry entry = entries.get(id);
+            if (entry == null) {
+                entries.put(id, entry = new Entry(lock.newCondition()));
+            }
+            return entry;
+        }
+
+        /**
+         * Removes the entry if it is not used anymore
+         */
+        void cleanup(long id, Entry entry) {
+            if (entry.value == 0 && entry.waiters == 0) {
+                entries.remove(id);
+            }
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * If true, shared locks are not granted while a thread waits for an exclusive lock
+     */
+    private final boolean writerPreference;
+
+    /**
+     * Lock statistics
+     */
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder waitTime = new LongAdder();
+    private final LongAdder holdTime = new LongAdder();
+    private final AtomicLong maxHoldTime = new AtomicLong();
+
+    /**
+     * Creates a set of locks without writer preference
+     */
+    public SharedLongLocks() {
+        this(false);
+    }
+
+    /**
+     * Creates a set of locks
+     *
+     * @param writerPreference If true, new shared locks wait when an exclusive lock is requested
+     *                         (this avoids starving writers, but a thread that already holds a shared lock
+     *                         should not ask for another one on the same ID)
+     */
+    public SharedLongLocks(boolean writerPreference) {
+        this.writerPreference = writerPreference;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripe(long id) {
+        // Mix the bits so that consecutive IDs do not end up in consecutive stripes
+        long h = id * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h >>> 58) & (STRIPES - 1)];
+    }
 
     /**
      * A lock (shared or exclusive)
@@ -39,6 +144,11 @@ final public class SharedLongLocks {
         private long id;
         boolean shared;
 
+        /**
+         * Time when the lock was acquired
+         */
+        private final long acquiredTime = System.nanoTime();
+
         public Lock(long id, boolean shared) {
             this.id = id;
             this.shared = shared;
@@ -56,36 +166,48 @@ final public class SharedLongLocks {
             assert id >= 0;
 
             if (shared) {
-                synchronized (locks) {
-                    int value = locks.get(id);
-                    if (value == 1) {
-                        locks.put(id, -1);
+                final Stripe stripe = stripe(id);
+                stripe.lock.lock();
+                try {
+                    final Entry entry = stripe.entries.get(id);
+                    if (entry.value == 1) {
+                        entry.value = -1;
                         shared = false;
                     } else {
                         throw new RuntimeException("Cannot escalade to shared: other have taken the lock");
                     }
+                } finally {
+                    stripe.lock.unlock();
                 }
-
             }
         }
 
         @Override
         public void close() {
             if (id >= 0) {
-                synchronized (locks) {
+                final Stripe stripe = stripe(id);
+                stripe.lock.lock();
+                try {
+                    final Entry entry = stripe.entries.get(id);
                     if (shared) {
-                        final int value = locks.get(id);
-                        assert value > 0;
-                        locks.put(id, value - 1);
-                        if (value == 1) {
-                            locks.notifyAll();
-                        }
+                        assert entry.value > 0;
+                        entry.value--;
                     } else {
-                        final int remove = locks.remove(id);
-                        assert remove < 0;
-                        locks.notifyAll();
+                        assert entry.value < 0;
+                        entry.value = 0;
+                    }
+
+                    if (entry.value == 0) {
+                        entry.released.signalAll();
+                        stripe.cleanup(id, entry);
                     }
+                } finally {
+                    stripe.lock.unlock();
                 }
+
+                final long held = System.nanoTime() - acquiredTime;
+                holdTime.add(held);
+                maxHoldTime.accumulateAndGet(held, Math::max);
             }
             id = -1;
         }
@@ -104,31 +226,95 @@ final public class SharedLongLocks {
         return sharedLock(id, timeout);
     }
 
+    /**
+     * Try to acquire a lock without waiting
+     *
+     * @param id        The ID of the resource
+     * @param exclusive True if the lock should be exclusive
+     * @return A lock, or null if the lock could not be acquired
+     */
+    public EntityLock tryLock(long id, boolean exclusive) {
+        return getLock(id, 0, !exclusive, false);
+    }
 
-    protected Lock getLock(long id, long timeout, Function<Integer, Boolean> shouldWait, Function<Integer, Integer> computeValue, boolean shared) {
-        synchronized (locks) {
-            int value;
-            final long startTime = System.currentTimeMillis();
-
-            while (shouldWait.apply(value = locks.get(id))) {
+    /**
+     * Get a lock
+     *
+     * @param id      The ID
+     * @param timeout The timeout in ms (0 or negative to wait forever)
+     * @param shared  Whether the lock is shared
+     * @param wait    Whether to wait for the lock
+     * @return The lock or null if it could not be acquired before the timeout
+     */
+    protected Lock getLock(long id, long timeout, boolean shared, boolean wait) {
+        final Stripe stripe = stripe(id);
+        stripe.lock.lock();
+        try {
+            final Entry entry = stripe.get(id);
 
-                if (timeout > 0 && System.currentTimeMillis() - startTime >= timeout) {
+            if (mustWait(entry, shared)) {
+                if (!wait) {
+                    stripe.cleanup(id, entry);
                     return null;
                 }
 
+                contended.increment();
+                final long start = System.nanoTime();
+                long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+                boolean granted = false;
+                entry.waiters++;
+                if (!shared) {
+                    entry.writers++;
+                }
+
                 try {
-                    locks.wait(timeout);
+                    while (mustWait(entry, shared)) {
+                        if (timeout <= 0) {
+                            entry.released.await();
+                        } else {
+                            if (remaining <= 0) {
+                                timeouts.increment();
+                                return null;
+                            }
+                            remaining = entry.released.awaitNanos(remaining);
+                        }
+                    }
+                    granted = true;
                 } catch (InterruptedException e) {
                     throw new RuntimeException(e);
+                } finally {
+                    entry.waiters--;
+                    if (!shared) {
+                        entry.writers--;
+                        // Readers might have been waiting for us to give up
+                        if (writerPreference && !granted && entry.writers == 0 && entry.value >= 0) {
+                            entry.released.signalAll();
+                        }
+                    }
+                    waitTime.add(System.nanoTime() - start);
+                    if (!granted) {
+                        stripe.cleanup(id, entry);
+                    }
                 }
             }
 
             // Add us
-            locks.put(id, computeValue.apply(value).intValue());
+            entry.value = shared ? entry.value + 1 : -1;
+        } finally {
+            stripe.lock.unlock();
         }
+
+        acquired.increment();
         return new Lock(id, shared);
     }
 
+    private boolean mustWait(Entry entry, boolean shared) {
+        if (shared) {
+            return entry.value < 0 || (writerPreference && entry.writers > 0);
+        }
+        return entry.value != 0;
+    }
+
 
     /**
      * Acquire a shared lock
@@ -138,7 +324,7 @@ final public class SharedLongLocks {
      * @return A lock, or null if timeout is greater than 0 and the lock could not be acquired
      */
     public Lock sharedLock(long id, long timeout) {
-        return getLock(id, timeout, x -> x < 0, x -> x + 1, true);
+        return getLock(id, timeout, true, true);
     }
 
     /**
@@ -149,12 +335,64 @@ final public class SharedLongLocks {
      * @return A lock, or null if timeout is greater than 0 and the lock could not be acquired
      */
     public Lock exclusiveLock(long id, long timeout) {
-        return getLock(id, timeout, x -> x != 0, x -> -1, false);
+        return getLock(id, timeout, false, true);
     }
 
     int getLockValue(long id) {
-        synchronized (locks) {
-            return locks.get(id);
+        final Stripe stripe = stripe(id);
+        stripe.lock.lock();
+        try {
+            final Entry entry = stripe.entries.get(id);
+            return entry == null ? 0 : entry.value;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the lock statistics
+     */
+    public Statistics getStatistics() {
+        return new Statistics(acquired.sum(), contended.sum(), timeouts.sum(),
+                waitTime.sum(), holdTime.sum(), maxHoldTime.get());
+    }
+
+    /**
+     * Lock statistics (times are in nanoseconds)
+     */
+    static public class Statistics {
+        /** Number of acquired locks */
+        public final long acquired;
+
+        /** Number of lock requests that had to wait */
+        public final long contended;
+
+        /** Number of lock requests that timed out */
+        public final long timeouts;
+
+        /** Total time spent waiting for locks */
+        public final long waitTime;
+
+        /** Total time locks were held */
+        public final long holdTime;
+
+        /** Maximum time a lock was held */
+        public final long maxHoldTime;
+
+        Statistics(long acquired, long contended, long timeouts, long waitTime, long holdTime, long maxHoldTime) {
+            this.acquired = acquired;
+            this.contended = contended;
+            this.timeouts = timeouts;
+            this.waitTime = waitTime;
+            this.holdTime = holdTime;
+            this.maxHoldTime = maxHoldTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("acquired=%d, contended=%d, timeouts=%d, wait=%dms, hold=%dms, max hold=%dms",
+                    acquired, contended, timeouts, TimeUnit.NANOSECONDS.toMillis(waitTime),
+                    TimeUnit.NANOSECONDS.toMillis(holdTime), TimeUnit.NANOSECONDS.toMillis(maxHoldTime));
         }
     }
 }
@@ -27,12 +27,30 @@ package sf.net.experimaestro.scheduler;
 public class SimpleMessage extends Message {
     Resource resource;
 
+    /**
+     * The state of the resource before the change (or null)
+     */
+    ResourceState oldState;
+
     public SimpleMessage(Type type, Resource resource) {
+        this(type, resource, null);
+    }
+
+    public SimpleMessage(Type type, Resource resource, ResourceState oldState) {
         super(type);
         this.resource = resource;
+        this.oldState = oldState;
     }
 
     public Resource getResource() {
         return resource;
     }
+
+    /**
+     * Returns the state of the resource before the change (the message is processed after
+     * the resource was stored, so the resource only knows its new state)
+     */
+    public ResourceState getOldState() {
+        return oldState;
+    }
 }
@@ -0,0 +1,190 @@
+package sf.net.experimaestro.scheduler;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import sf.net.experimaestro.utils.log.Logger;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Updates the status of a set of resources in the background.
+ * <p>
+ * Resources are grouped by connector and split into batches, which are processed
+ * in parallel (one batch of each connector in turn, so that a slow host does not
+ * delay the others). A batch is updated in one transaction: only the resources whose
+ * status changed are written back. Resources that are locked by another
+ * transaction are updated afterwards, one by one.
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+final public class StatusUpdate {
+    final static private Logger LOGGER = Logger.getLogger();
+
+    /**
+     * Number of resources updated in one transaction
+     */
+    static final int BATCH_SIZE = 50;
+
+    /**
+     * How long to wait for a resource lock when updating a batch (ms)
+     */
+    private static final long LOCK_TIMEOUT = 100;
+
+    /**
+     * Receives the progress of the update
+     */
+    public interface Listener {
+        /**
+         * Called after each batch
+         *
+         * @param checked Number of resources checked so far
+         * @param changed Number of resources whose status changed so far
+         * @param total   Total number of resources
+         */
+        void progress(int checked, int changed, int total);
+    }
+
+    private final EnumSet<ResourceState> states;
+
+    private final Listener listener;
+
+    private int total;
+
+    private int checked;
+
+    private int changed;
+
+    StatusUpdate(EnumSet<ResourceState> states, Listener listener) {
+        this.states = states;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the update
+     *
+     * @param executor The executor that runs the batches
+     * @return A future giving the number of resources whose status changed
+     */
+    CompletableFuture<Integer> start(ExecutorService executor) {
+        final LinkedHashMap<String, LongArrayList> byConnector = Transaction.evaluate(em -> {
+            return Scheduler.idsByConnector(em, states);
+        });
+
+        // Split each connector list into batches, and interleave the connectors
+        final ArrayList<ArrayList<long[]>> connectorBatches = new ArrayList<>();
+        for (LongArrayList ids : byConnector.values()) {
+            final ArrayList<long[]> batches = new ArrayList<>();
+            for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+                batches.add(ids.subList(i, Math.min(i + BATCH_SIZE, ids.size())).toLongArray());
+            }
+            connectorBatches.add(batches);
+            total += ids.size();
+        }
+
+        LOGGER.info("Updating the status of %d resources on %d connectors", total, byConnector.size());
+
+        final ArrayList<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; !connectorBatches.isEmpty(); i++) {
+            final int index = i;
+            connectorBatches.removeIf(batches -> batches.size() <= index);
+            for (ArrayList<long[]> batches : connectorBatches) {
+                final long[] batch = batches.get(index);
+                futures.add(CompletableFuture.runAsync(() -> update(batch), executor));
+            }
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]))
+                .thenApply(v -> changed());
+    }
+
+    /**
+     * Updates a batch of resources
+     */
+    private void update(long[] ids) {
+        int nbChanged = 0;
+        final LongArrayList deferred = new LongArrayList();
+
+        try (Transaction transaction = Transaction.create()) {
+            final EntityManager em = transaction.em();
+            for (long id : ids) {
+                if (Resource.lock(transaction, id, true, LOCK_TIMEOUT) == null) {
+                    deferred.add(id);
+                    continue;
+                }
+                if (update(em, id)) {
+                    nbChanged++;
+                }
+            }
+            transaction.commit();
+        } catch (RuntimeException e) {
+            LOGGER.warn(e, "Could not update a batch of resources, updating them one by one");
+            nbChanged = 0;
+            deferred.clear();
+            deferred.addElements(0, ids);
+        }
+
+        // Update the others one by one
+        for (long id : deferred) {
+            try (Transaction transaction = Transaction.create()) {
+                Resource.lock(transaction, id, true, 0);
+                if (update(transaction.em(), id)) {
+                    nbChanged++;
+                }
+                transaction.commit();
+            } catch (RuntimeException e) {
+                LOGGER.error(e, "Could not update the status of resource %d", id);
+            }
+        }
+
+        progress(ids.length, nbChanged);
+    }
+
+    /**
+     * Updates the status of one resource (which must be locked)
+     *
+     * @return True if the status changed
+     */
+    private boolean update(EntityManager em, long id) {
+        final Resource resource = em.find(Resource.class, id);
+        if (resource == null || !states.contains(resource.getState())) {
+            // Removed or changed in the meantime
+            return false;
+        }
+        return resource.updateStatus();
+    }
+
+    synchronized private int changed() {
+        LOGGER.info("Status updated: %d resources changed out of %d", changed, total);
+        return changed;
+    }
+
+    synchronized private void progress(int nbChecked, int nbChanged) {
+        checked += nbChecked;
+        changed += nbChanged;
+        if (listener != null) {
+            listener.progress(checked, changed, total);
+        }
+    }
+}
@@ -150,11 +150,16 @@ public class TokenResource extends Resource {
 
     @Override
     public void stored() {
-        // Notify scheduler state has changed
-        if (wasBlocking && !isBlocking()) {
-            LOGGER.debug("Token %s is not blocking anymore: notifying scheduler",
-                    this, wasBlocking, isBlocking());
-            Scheduler.get().notifyRunners();
+        if (!isBlocking()) {
+            // Release the jobs waiting for this token
+            Scheduler.get().tokenReleased(this);
+
+            // Notify scheduler state has changed
+            if (wasBlocking) {
+                LOGGER.debug("Token %s is not blocking anymore: notifying scheduler",
+                        this, wasBlocking, isBlocking());
+                Scheduler.get().notifyRunners();
+            }
         }
     }
 
@@ -65,6 +65,11 @@ final public class Transaction implements AutoCloseable {
      */
     IdentityHashSet<PostCommitListener> listeners = null;
 
+    /**
+     * Methods to evaluate after a rollback (cleared on commit)
+     */
+    IdentityHashSet<PostCommitListener> rollbackListeners = null;
+
     /**
      * List of locks on entities
      */
@@ -152,6 +157,8 @@ final public class Transaction implements AutoCloseable {
             if (status == Status.BEGIN) {
                 LOGGER.debug("Transaction %s rollback", System.identityHashCode(this));
                 transaction.rollback();
+                status = Status.ROLLBACK;
+                rolledBack();
             }
 
             // Close the entity manager if necessary
@@ -174,12 +181,18 @@ final public class Transaction implements AutoCloseable {
                 LOGGER.debug("Transaction %s commits", System.identityHashCode(this));
                 transaction.commit();
                 status = Status.COMMIT;
+                rollbackListeners = null;
+
+                // Listeners are run once (the transaction can go on after a boundary)
                 if (listeners != null) {
-                    listeners.forEach(f -> f.accept(this));
+                    final IdentityHashSet<PostCommitListener> toRun = listeners;
+                    listeners = null;
+                    toRun.forEach(f -> f.accept(this));
                 }
             }
         } catch (RollbackException e) {
             status = Status.ROLLBACK;
+            rolledBack();
             throw e;
         } finally {
             clearLocks();
@@ -218,6 +231,23 @@ final public class Transaction implements AutoCloseable {
         listeners.add(f);
     }
 
+    /**
+     * Register a method to evaluate if the current transaction is rolled back
+     */
+    public void registerPostRollback(PostCommitListener f) {
+        if (rollbackListeners == null)
+            rollbackListeners = new IdentityHashSet<>();
+        rollbackListeners.add(f);
+    }
+
+    private void rolledBack() {
+        if (rollbackListeners != null) {
+            final IdentityHashSet<PostCommitListener> toRun = rollbackListeners;
+            rollbackListeners = null;
+            toRun.forEach(f -> f.accept(this));
+        }
+    }
+
     public void clearLocks() {
         locks.values().forEach(sf.net.experimaestro.scheduler.EntityLock::close);
         locks.clear();
@@ -29,7 +29,10 @@ import java.io.IOException;
 public abstract class JSONRPCRequest {
     abstract protected void sendJSONString(String message) throws IOException;
 
-    public void endMessage(String requestID, Object message) throws IOException {
+    /**
+     * Sends a message (synchronized, since requests can be handled concurrently)
+     */
+    synchronized public void endMessage(String requestID, Object message) throws IOException {
         JSONObject answer = getJSONPartialAnswer(requestID);
 //        answer.put("error", null);
         answer.put("result", message);
@@ -45,7 +48,7 @@ public abstract class JSONRPCRequest {
         return answer;
     }
 
-    void error(String requestID, int code, String message) throws IOException {
+    synchronized void error(String requestID, int code, String message) throws IOException {
         JSONObject answer = getJSONPartialAnswer(requestID);
         answer.put("result", null);
 
@@ -63,4 +66,13 @@ public abstract class JSONRPCRequest {
     public void message(Object message) throws IOException {
         endMessage(null, message);
     }
+
+    /**
+     * Send a message related to a request to the client
+     *
+     * @param requestID The ID of the request (or null)
+     */
+    public void message(String requestID, Object message) throws IOException {
+        endMessage(requestID, message);
+    }
 }
@@ -21,6 +21,8 @@ package sf.net.experimaestro.server;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.apache.commons.lang.ClassUtils;
 import org.apache.commons.lang.NotImplementedException;
 import org.apache.log4j.Hierarchy;
@@ -41,21 +43,24 @@ import sf.net.experimaestro.manager.Repositories;
 import sf.net.experimaestro.manager.js.XPMContext;
 import sf.net.experimaestro.manager.python.PythonContext;
 import sf.net.experimaestro.scheduler.*;
-import sf.net.experimaestro.utils.CloseableIterator;
 import sf.net.experimaestro.utils.Functional;
 import sf.net.experimaestro.utils.JSUtils;
 import sf.net.experimaestro.utils.log.Logger;
 
 import javax.persistence.EntityManager;
-import javax.persistence.LockModeType;
 import javax.servlet.http.HttpServlet;
 import java.io.*;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.regex.Pattern;
 
@@ -68,7 +73,10 @@ import static java.lang.String.format;
  */
 public class JsonRPCMethods extends HttpServlet {
     final static private Logger LOGGER = Logger.getLogger();
-    private static Multimap<String, MethodDescription> methods;
+    /**
+     * Dispatch table: the methods (one or more overloads) for each RPC method name
+     */
+    private static Map<String, MethodDescription[]> methods;
 
     static {
         initMethods();
@@ -77,8 +85,17 @@ public class JsonRPCMethods extends HttpServlet {
     private final Scheduler scheduler;
     private final Repositories repository;
     private final JSONRPCRequest mos;
-    HashMap<String, BufferedWriter> writers = new HashMap<>();
     HashSet<Listener> listeners = new HashSet<>();
+
+    /**
+     * Requests handled by workers (by request ID)
+     */
+    private final HashMap<String, Request> requests = new HashMap<>();
+
+    /**
+     * The request handled by the current thread
+     */
+    private final ThreadLocal<Request> currentRequest = new ThreadLocal<>();
     /**
      * Server
      */
@@ -93,110 +110,171 @@ public class JsonRPCMethods extends HttpServlet {
 
     public static void initMethods() {
         if (methods == null) {
-            methods = HashMultimap.create();
+            final Multimap<String, MethodDescription> candidates = HashMultimap.create();
             for (Method method : JsonRPCMethods.class.getDeclaredMethods()) {
                 final RPCMethod rpcMethod = method.getAnnotation(RPCMethod.class);
                 if (rpcMethod != null) {
-                    methods.put("".equals(rpcMethod.name()) ? method.getName() : rpcMethod.name(), new MethodDescription(method));
+                    candidates.put("".equals(rpcMethod.name()) ? method.getName() : rpcMethod.name(), new MethodDescription(method));
                 }
             }
+
+            final HashMap<String, MethodDescription[]> table = new HashMap<>();
+            for (Map.Entry<String, Collection<MethodDescription>> entry : candidates.asMap().entrySet()) {
+                table.put(entry.getKey(), entry.getValue().toArray(new MethodDescription[entry.getValue().size()]));
+            }
+            methods = table;
         }
     }
 
-    private int convert(Object p, Arguments description, int score, List args, int index) {
-        Object o;
-        if (p instanceof JSONObject)
-            // If p is a map, then use the json name of the argument
-            o = ((JSONObject) p).get(description.getArgument(index).name());
-        else if (p instanceof JSONArray)
-            // if it is an array, then map it
-            o = ((JSONArray) p).get(index);
-        else {
-            // otherwise, suppose it is a one value array
-            if (index > 0)
-                return Integer.MIN_VALUE;
-            o = p;
+    /**
+     * Returns the method to call for a given RPC method name and parameters
+     *
+     * @param name   The RPC method name
+     * @param params The JSON parameters
+     * @return The method, or null if no method matches
+     */
+    static MethodDescription resolve(String name, Object params) {
+        final MethodDescription[] candidates = methods.get(name);
+        if (candidates == null) {
+            return null;
         }
 
-        final Class aType = description.getType(index);
-
-        if (o == null) {
-            if (description.getArgument(index).required())
-                return Integer.MIN_VALUE;
+        if (candidates.length == 1) {
+            return candidates[0].score(params) > Integer.MIN_VALUE ? candidates[0] : null;
+        }
 
-            return score - 10;
+        int max = Integer.MIN_VALUE;
+        MethodDescription argmax = null;
+        for (MethodDescription candidate : candidates) {
+            final int score = candidate.score(params);
+            if (score > max) {
+                max = score;
+                argmax = candidate;
+            }
         }
 
-        if (aType.isArray()) {
-            if (o instanceof JSONArray) {
-                final JSONArray array = (JSONArray) o;
+        return argmax;
+    }
 
+    /**
+     * Converts a JSON value into a method argument
+     */
+    interface Converter {
+        /**
+         * Returns a penalty (0 if no conversion is needed, negative otherwise), or
+         * {@linkplain Integer#MIN_VALUE} if the value cannot be converted
+         */
+        int score(Object value);
+
+        /**
+         * Converts a value (whose score is not {@linkplain Integer#MIN_VALUE})
+         */
+        Object convert(Object value);
+    }
 
-                final ArrayList arrayObjects;
-                if (args != null) {
-                    arrayObjects = new ArrayList(array.size());
-                    for (int i = 0; i < array.size(); i++) {
-                        arrayObjects.add(null);
-                    }
-                } else {
-                    arrayObjects = null;
+    /**
+     * Returns a converter for a given argument type
+     *
+     * @param type     The type of the argument (primitive types are replaced by their wrapper)
+     * @param required Whether a value is required
+     */
+    static Converter converter(Class<?> type, boolean required) {
+        final Converter converter = valueConverter(type);
+        return new Converter() {
+            @Override
+            public int score(Object value) {
+                if (value == null) {
+                    return required ? Integer.MIN_VALUE : -10;
                 }
+                return converter.score(value);
+            }
 
+            @Override
+            public Object convert(Object value) {
+                return value == null ? null : converter.convert(value);
+            }
+        };
+    }
 
-                Arguments arguments = new Arguments() {
-                    @Override
-                    public RPCArgument getArgument(int i) {
-                        return new RPCArrayArgument();
-                    }
-
-                    @Override
-                    public Class<?> getType(int i) {
-                        return aType.getComponentType();
+    private static Converter valueConverter(Class<?> type) {
+        if (type.isArray()) {
+            final Class<?> componentType = type.getComponentType();
+            final Converter component = converter(componentType, true);
+            return new Converter() {
+                @Override
+                public int score(Object value) {
+                    if (!(value instanceof JSONArray)) {
+                        return Integer.MIN_VALUE;
                     }
-
-                    @Override
-                    public int size() {
-                        return array.size();
+                    long score = 0;
+                    for (Object element : (JSONArray) value) {
+                        final int elementScore = component.score(element);
+                        if (elementScore == Integer.MIN_VALUE) {
+                            return Integer.MIN_VALUE;
+                        }
+                        score += elementScore;
                     }
-                };
-
-
-                for (int i = 0; i < array.size() && score > Integer.MIN_VALUE; i++) {
-                    score = convert(array.get(i), arguments, score, arrayObjects, i);
+                    return (int) Math.max(score, Integer.MIN_VALUE + 1);
                 }
 
-                if (args != null && score > Integer.MIN_VALUE) {
-                    final Object a1 = Array.newInstance(aType.getComponentType(), array.size());
+                @Override
+                public Object convert(Object value) {
+                    final JSONArray array = (JSONArray) value;
+                    final Object converted = Array.newInstance(componentType, array.size());
                     for (int i = 0; i < array.size(); i++) {
-                        Array.set(a1, i, arrayObjects.get(i));
+                        Array.set(converted, i, component.convert(array.get(i)));
                     }
-                    args.set(index, a1);
+                    return converted;
                 }
-                return score;
-            }
-            return Integer.MIN_VALUE;
+            };
         }
 
-        if (aType.isAssignableFrom(o.getClass())) {
-            if (args != null)
-                args.set(index, o);
-            return score;
-        }
+        if (type == Integer.class) {
+            return new Converter() {
+                @Override
+                public int score(Object value) {
+                    if (value instanceof Integer) {
+                        return 0;
+                    }
+                    return value instanceof Long ? -1 : Integer.MIN_VALUE;
+                }
 
-        if (o.getClass() == Long.class && aType == Integer.class) {
-            if (args != null)
-                args.set(index, ((Long) o).intValue());
-            return score - 1;
+                @Override
+                public Object convert(Object value) {
+                    return value instanceof Long ? ((Long) value).intValue() : value;
+                }
+            };
         }
 
-        return Integer.MIN_VALUE;
+        return new Converter() {
+            @Override
+            public int score(Object value) {
+                return type.isInstance(value) ? 0 : Integer.MIN_VALUE;
+            }
+
+            @Override
+            public Object convert(Object value) {
+                return value;
+            }
+        };
     }
 
     public void handle(String message) {
-        JSONObject object;
+        JSONObject object = parse(message);
+        if (object != null) {
+            handleJSON(object);
+        }
+    }
+
+    /**
+     * Parse a JSON request
+     *
+     * @return The request, or null if the message could not be parsed (an error is sent to the client)
+     */
+    JSONObject parse(String message) {
         try {
             Object parse = JSONValue.parse(message);
-            object = (JSONObject) parse;
+            return (JSONObject) parse;
 
         } catch (Throwable t) {
             LOGGER.warn(t, "Error while handling JSON request");
@@ -206,14 +284,109 @@ public class JsonRPCMethods extends HttpServlet {
             } catch (IOException e) {
                 LOGGER.error(e, "Could not send the error message");
             }
-            return;
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the request should be handled at once (see {@linkplain RPCMethod#immediate()})
+     */
+    static boolean isImmediate(JSONObject object) {
+        final Object command = object.get("method");
+        if (command == null) {
+            // The error is reported at once
+            return true;
+        }
+        final MethodDescription[] candidates = methods.get(command.toString());
+        if (candidates != null) {
+            for (MethodDescription description : candidates) {
+                if (!description.immediate) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles a request in a worker thread. The request can be cancelled with
+     * the <code>cancel</code> method while it is waiting or running.
+     *
+     * @param object   The request
+     * @param executor The request workers
+     * @param onDone   Called when the request has been handled (or cancelled)
+     */
+    void submit(JSONObject object, ExecutorService executor, Runnable onDone) {
+        final Request request = new Request(requestID(object));
+
+        final FutureTask<Void> task = new FutureTask<Void>(() -> {
+            // The request might have been cancelled before starting
+            if (request.started.compareAndSet(false, true)) {
+                handleJSON(object, request);
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                if (request.id != null) {
+                    synchronized (requests) {
+                        requests.remove(request.id);
+                    }
+                }
+                onDone.run();
+
+                // A running request answers by itself
+                if (isCancelled()) {
+                    try {
+                        mos.error(request.id, 1, "Request cancelled");
+                    } catch (IOException e) {
+                        LOGGER.error(e, "Could not send the error message");
+                    }
+                }
+            }
+        };
+        request.future = task;
+
+        try {
+            synchronized (requests) {
+                executor.execute(task);
+                if (request.id != null && !task.isDone()) {
+                    requests.put(request.id, request);
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            onDone.run();
+            reject(object, "Server busy: too many requests");
         }
+    }
+
+    /**
+     * Rejects a request (an error is sent to the client)
+     *
+     * @param object  The request
+     * @param message The error message
+     */
+    void reject(JSONObject object, String message) {
+        final String requestID = requestID(object);
+        LOGGER.warn("Rejecting request %s: %s", requestID, message);
+        try {
+            mos.error(requestID, 1, message);
+        } catch (IOException e) {
+            LOGGER.error(e, "Could not send the error message");
+        }
+    }
 
-        handleJSON(object);
+    private static String requestID(JSONObject object) {
+        final Object id = object.get("id");
+        return id == null ? null : id.toString();
     }
 
     void handleJSON(JSONObject object) {
+        handleJSON(object, new Request(requestID(object)));
+    }
+
+    private void handleJSON(JSONObject object, Request request) {
         String requestID = null;
+        currentRequest.set(request);
 
         try {
             requestID = object.get("id").toString();
@@ -229,29 +402,11 @@ public class JsonRPCMethods extends HttpServlet {
                 throw new RuntimeException("No params in JSON");
             Object p = object.get("params");
 
-            Collection<MethodDescription> candidates = methods.get(command.toString());
-            int max = Integer.MIN_VALUE;
-            MethodDescription argmax = null;
-            for (MethodDescription candidate : candidates) {
-                int score = Integer.MAX_VALUE;
-                for (int i = 0; i < candidate.types.length && score > max; i++) {
-                    score = convert(p, candidate, score, null, i);
-                }
-                if (score > max) {
-                    max = score;
-                    argmax = candidate;
-                }
-            }
-
-            if (argmax == null)
+            final MethodDescription method = resolve(command.toString(), p);
+            if (method == null)
                 throw new XPMCommandException("Cannot find a matching method");
 
-            Object[] args = new Object[argmax.arguments.length];
-            for (int i = 0; i < args.length; i++) {
-                int score = convert(p, argmax, 0, Arrays.asList(args), i);
-                assert score > Integer.MIN_VALUE;
-            }
-            Object result = argmax.method.invoke(this, args);
+            Object result = method.invoke(this, method.convert(p));
             mos.endMessage(requestID, result);
         } catch (ExitException e) {
             try {
@@ -277,9 +432,20 @@ public class JsonRPCMethods extends HttpServlet {
             } catch (IOException e) {
                 LOGGER.error("Could not send the return code");
             }
+        } finally {
+            currentRequest.remove();
         }
     }
 
+    /**
+     * Returns the ID of the request handled by the current thread, so that the messages
+     * sent while handling the request can be correlated to it
+     */
+    private String currentRequestID() {
+        final Request request = currentRequest.get();
+        return request == null ? null : request.id;
+    }
+
     private EnumSet<ResourceState> getStates(Object[] states) {
         final EnumSet<ResourceState> statesSet;
 
@@ -299,15 +465,20 @@ public class JsonRPCMethods extends HttpServlet {
      */
     @RPCMethod(help = "Returns detailed information about a job (Json format)")
     public JSONObject getResourceInformation(@RPCArgument(name = "id") String resourceId) throws IOException {
-        return Transaction.evaluate(Functional.propagateFunction(em -> {
-            Resource resource = getResource(em, resourceId, null);
+        return Transaction.evaluate(em -> {
+            ResourceSummary summary;
+            try {
+                summary = ResourceSummary.find(em, Long.parseLong(resourceId));
+            } catch (NumberFormatException e) {
+                summary = ResourceSummary.find(em, resourceId);
+            }
 
-            if (resource == null)
+            if (summary == null)
                 throw new XPMRuntimeException("No resource with id [%s]", resourceId);
 
-
-            return resource.toJSON();
-        }));
+            // Read with projections (the resource entities are not loaded)
+            return summary.toJSON(em);
+        });
     }
 
 
@@ -335,11 +506,20 @@ public class JsonRPCMethods extends HttpServlet {
         return resource;
     }
 
-    @RPCMethod(help = "Ping")
+    @RPCMethod(help = "Ping", immediate = true)
     public String ping() {
         return "pong";
     }
 
+    @RPCMethod(help = "Cancel a request (a running script stops at the next instruction)", immediate = true)
+    public boolean cancel(@RPCArgument(name = "request", help = "The ID of the request") String request) {
+        final Request r;
+        synchronized (requests) {
+            r = requests.get(request);
+        }
+        return r != null && r.cancel();
+    }
+
     @RPCMethod(help = "Sets a log level")
     public int setLogLevel(@RPCArgument(name = "identifier") String identifier, @RPCArgument(name = "level") String level) {
         final Logger logger = Logger.getLogger(identifier);
@@ -459,7 +639,9 @@ public class JsonRPCMethods extends HttpServlet {
 
         // Creates and enters a Context. The Context stores information
         // about the execution environment of a script.
-        try (XPMContext jsXPM = new XPMContext(environment, repositories, scheduler, loggerRepository, debugPort)) {
+        final Request request = currentRequest.get();
+        try (XPMContext jsXPM = new XPMContext(environment, repositories, scheduler, loggerRepository, debugPort,
+                request == null ? null : request::isCancelled)) {
             Object result = null;
             for (JSONArray filePointer : files) {
                 boolean isFile = filePointer.size() < 2 || filePointer.get(1) == null;
@@ -566,16 +748,21 @@ public class JsonRPCMethods extends HttpServlet {
     }
 
     /**
-     * Return a stream with the given ID
+     * Return a stream of the current request with the given ID
      */
     private BufferedWriter getRequestStream(final String id) {
-        BufferedWriter bufferedWriter = writers.get(id);
+        Request request = currentRequest.get();
+        if (request == null) {
+            request = new Request(null);
+        }
+        final String requestID = request.id;
+        BufferedWriter bufferedWriter = request.writers.get(id);
         if (bufferedWriter == null) {
             bufferedWriter = new BufferedWriter(new Writer() {
                 @Override
                 public void write(char[] cbuf, int off, int len) throws IOException {
                     ImmutableMap<String, String> map = ImmutableMap.of("stream", id, "value", new String(cbuf, off, len));
-                    mos.message(map);
+                    mos.message(requestID, map);
                 }
 
                 @Override
@@ -587,7 +774,7 @@ public class JsonRPCMethods extends HttpServlet {
                     throw new UnsupportedOperationException();
                 }
             });
-            writers.put(id, bufferedWriter);
+            request.writers.put(id, bufferedWriter);
         }
         return bufferedWriter;
     }
@@ -630,34 +817,14 @@ public class JsonRPCMethods extends HttpServlet {
         return true;
     }
 
-    // Restart all the job (recursion)
-    private int invalidate(Resource resource) throws Exception {
-        final Collection<Dependency> deps = resource.getOutgoingDependencies();
-
-        if (deps.isEmpty())
-            return 0;
-
-        int nbUpdated = 0;
-
-        for (Dependency dependency : deps) {
-            final Resource to = dependency.getTo();
-            LOGGER.info("Invalidating %s", to);
-
-            invalidate(to);
-
-            final ResourceState state = to.getState();
-            if (state == ResourceState.RUNNING)
-                ((Job) to).stop();
-            if (!state.isActive()) {
-                nbUpdated++;
-                // We invalidate grand-children if the child was done
-                if (state == ResourceState.DONE) {
-                    invalidate(to);
-                }
-                ((Job) to).restart();
-            }
-        }
-        return nbUpdated;
+    /**
+     * Restart all the jobs that depend on a resource (computing the dependency graph once)
+     */
+    private int invalidate(Resource resource) {
+        final DependencyGraph graph = Transaction.evaluate(em -> {
+            return DependencyGraph.dependents(em, resource.getId());
+        });
+        return graph.invalidate();
     }
 
     @RPCMethod(help = "Puts back a job into the waiting queue")
@@ -666,13 +833,14 @@ public class JsonRPCMethods extends HttpServlet {
             @RPCArgument(name = "restart-done", help = "Whether done jobs should be invalidated") boolean restartDone,
             @RPCArgument(name = "recursive", help = "Whether we should invalidate dependent results when the job was done") boolean recursive
     ) throws Exception {
-        return Transaction.evaluate(Functional.propagateFunction(em -> {
-            int nbUpdated = 0;
-            Resource resource = getResource(em, id, true);
+        ResourceState rsrcState;
+        Resource resource;
+        try (Transaction transaction = Transaction.create()) {
+            resource = getResource(transaction.em(), id, true);
             if (resource == null)
                 throw new XPMRuntimeException("Job not found [%s]", id);
 
-            final ResourceState rsrcState = resource.getState();
+            rsrcState = resource.getState();
 
             if (rsrcState == ResourceState.RUNNING)
                 throw new XPMRuntimeException("Job is running [%s]", rsrcState);
@@ -685,47 +853,50 @@ public class JsonRPCMethods extends HttpServlet {
                 return 0;
 
             ((Job) resource).restart();
-            nbUpdated++;
+            transaction.commit();
+        }
 
-            // If the job was done, we need to restart the dependences
-            if (recursive && rsrcState == ResourceState.DONE) {
-                nbUpdated += invalidate(resource);
-            }
+        // If the job was done, we need to restart the dependences (once the job restart is committed)
+        int nbUpdated = 1;
+        if (recursive && rsrcState == ResourceState.DONE) {
+            nbUpdated += invalidate(resource);
+        }
 
-            return nbUpdated;
-        }));
+        return nbUpdated;
     }
 
     /**
      * Update the status of jobs
      */
     @RPCMethod(help = "Force the update of all the jobs statuses. Returns the number of jobs whose update resulted" +
-            " in a change of state")
+            " in a change of state. Progress messages (checked, changed and total number of jobs) are sent while updating")
     public int updateJobs(
             @RPCArgument(name = "recursive", required = false) Boolean _recursive,
-            @RPCArgument(name = "states", required = false) String[] statesNames
+            @RPCArgument(name = "states", required = false) String[] statesNames,
+            @RPCArgument(name = "wait", required = false, help = "If false, returns immediately (-1) and updates" +
+                    " the jobs in the background") Boolean _wait
     ) throws Exception {
         EnumSet<ResourceState> states = getStates(statesNames);
+        boolean wait = _wait == null || _wait;
 
-        return Transaction.evaluate((em, t) -> {
-            int nbUpdated = 0;
-            try (final CloseableIterator<Resource> resources = scheduler.resources(em, states, LockModeType.NONE)) {
-                while (resources.hasNext()) {
-                    Resource resource = resources.next();
-                    resource.lock(t, true);
-                    em.refresh(resource);
-                    if (resource.updateStatus()) {
-                        nbUpdated++;
-                    } else {
-                    }
-                    t.boundary();
-                }
-            } catch (CloseException e) {
-                throw new RuntimeException(e);
+        final String requestID = currentRequestID();
+        final CompletableFuture<Integer> update = scheduler.updateStatus(states, wait ? (checked, changed, total) -> {
+            try {
+                mos.message(requestID, ImmutableMap.of("checked", checked, "changed", changed, "total", total));
+            } catch (IOException e) {
+                LOGGER.warn(e, "Could not send the progress of the update");
             }
-            return nbUpdated;
-        });
+        } : null);
+
+        if (!wait) {
+            return -1;
+        }
 
+        try {
+            return update.get();
+        } catch (ExecutionException e) {
+            throw new XPMRuntimeException(e.getCause(), "Error while updating the jobs");
+        }
     }
 
     /**
@@ -734,80 +905,99 @@ public class JsonRPCMethods extends HttpServlet {
      * @param id          The URI of the resource to delete
      * @param statesNames The states of the resource to delete
      */
-    @RPCMethod(name = "remove", help = "Remove jobs")
+    @RPCMethod(name = "remove", help = "Remove jobs (and the jobs that depend on them if recursive)." +
+            " Returns the number of removed jobs")
     public int remove(@RPCArgument(name = "id", required = false) String id,
                       @RPCArgument(name = "regexp", required = false) Boolean _idIsRegexp,
                       @RPCArgument(name = "states", required = false) String[] statesNames,
                       @RPCArgument(name = "recursive", required = false) Boolean _recursive
     ) throws Exception {
-        return Transaction.evaluate(Functional.propagateFunction(em -> {
-            int n = 0;
-            EnumSet<ResourceState> states = getStates(statesNames);
-            boolean recursive = _recursive != null ? _recursive : false;
+        EnumSet<ResourceState> states = getStates(statesNames);
+        boolean recursive = _recursive != null ? _recursive : false;
 
-            Pattern idPattern = _idIsRegexp != null && _idIsRegexp ?
-                    Pattern.compile(id) : null;
+        Pattern idPattern = _idIsRegexp != null && _idIsRegexp ?
+                Pattern.compile(id) : null;
 
+        // Compute the graph of the resources to remove
+        final DependencyGraph graph = Transaction.evaluate(em -> {
+            LongArrayList toRemove = new LongArrayList();
             if (id != null && !id.equals("") && idPattern == null) {
-                final Resource resource = getResource(em, id, true);
+                final Resource resource = getResource(em, id, null);
                 if (resource == null)
                     throw new XPMCommandException("Job not found [%s]", id);
 
-
                 if (!states.contains(resource.getState()))
                     throw new XPMCommandException("Resource [%s] state [%s] not in [%s]",
                             resource, resource.getState(), states);
-                resource.delete(recursive);
-                n = 1;
+                toRemove.add(resource.getId());
             } else {
-                // TODO order the tasks so that dependencies are removed first
-                HashSet<Resource> toRemove = new HashSet<>();
-                try (final CloseableIterator<Resource> resources = scheduler.resources(em, states, LockModeType.NONE)) {
-                    while (resources.hasNext()) {
-                        Resource resource = resources.next();
-                        if (idPattern != null) {
-                            if (!idPattern.matcher(resource.getIdentifier()).matches())
-                                continue;
-                        }
-                        try {
-                            toRemove.add(resource);
-                        } catch (Exception e) {
-                            // TODO should output this to the caller
-                        }
-                        n++;
+                for (ResourceSummary summary : scheduler.resourceSummaries(em, states, -1, 0)) {
+                    if (idPattern != null) {
+                        if (!idPattern.matcher(summary.getLocator()).matches())
+                            continue;
                     }
+                    toRemove.add(summary.getId());
                 }
+            }
+            return DependencyGraph.dependents(em, toRemove.toLongArray());
+        });
 
-                for (Resource resource : toRemove)
-                    resource.delete(recursive);
+        if (!recursive && graph.hasDependents())
+            throw new XPMCommandException("Cannot delete the resources: other resources depend on them");
 
-            }
-            return n;
-        }));
+        // Remove dependent resources first, by batches
+        return graph.delete();
     }
 
     @RPCMethod(help = "Listen to XPM events")
     public void listen() {
+        final String requestID = currentRequestID();
         Listener listener = message -> {
             try {
                 HashMap<String, Object> map = new HashMap<>();
                 map.put("event", message.getType().toString());
-                final Resource resource = ((SimpleMessage) message).getResource();
-                if (message instanceof SimpleMessage) {
-                    map.put("resource", resource.getId());
-                    Path locator = resource.getPath();
-                    if (locator != null)
-                        map.put("locator", locator.toString());
+
+                if (message instanceof ProgressMessage) {
+                    // Coalesced progress: one event for all the jobs
+                    ArrayList<Map<String, Object>> jobs = new ArrayList<>();
+                    for (Long2DoubleMap.Entry entry : ((ProgressMessage) message).getProgress().long2DoubleEntrySet()) {
+                        HashMap<String, Object> job = new HashMap<>();
+                        job.put("resource", entry.getLongKey());
+                        job.put("progress", entry.getDoubleValue());
+                        jobs.add(job);
+                    }
+                    map.put("jobs", jobs);
+                    mos.message(requestID, map);
+                    return;
+                }
+
+                if (!(message instanceof SimpleMessage)) {
+                    return;
                 }
 
+                final SimpleMessage simpleMessage = (SimpleMessage) message;
+                final Resource resource = simpleMessage.getResource();
+                map.put("resource", resource.getId());
+                Path locator = resource.getPath();
+                if (locator != null)
+                    map.put("locator", locator.toString());
+
                 switch (message.getType()) {
                     case STATE_CHANGED:
                         map.put("state", resource.getState().toString());
+                        if (simpleMessage.getOldState() != null) {
+                            map.put("old_state", simpleMessage.getOldState().toString());
+                        }
                         break;
 
                     case PROGRESS:
                         map.put("progress", ((Job)resource).getProgress());
+                        break;
+
                     case RESOURCE_REMOVED:
+                        if (simpleMessage.getOldState() != null) {
+                            map.put("state", simpleMessage.getOldState().toString());
+                        }
                         break;
 
                     case RESOURCE_ADDED:
@@ -815,7 +1005,7 @@ public class JsonRPCMethods extends HttpServlet {
                         break;
                 }
 
-                mos.message(map);
+                mos.message(requestID, map);
             } catch (IOException e) {
                 LOGGER.error(e, "Could not output");
             } catch (RuntimeException e) {
@@ -823,13 +1013,22 @@ public class JsonRPCMethods extends HttpServlet {
             }
         };
 
-        listeners.add(listener);
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
         scheduler.addListener(listener);
     }
 
     public void close() {
-        for (Listener listener : listeners)
-            scheduler.removeListener(listener);
+        synchronized (requests) {
+            for (Request request : requests.values()) {
+                request.cancel();
+            }
+        }
+        synchronized (listeners) {
+            for (Listener listener : listeners)
+                scheduler.removeListener(listener);
+        }
     }
 
     /**
@@ -846,19 +1045,15 @@ public class JsonRPCMethods extends HttpServlet {
 
         return Transaction.evaluate((em, t) -> {
             int n = 0;
-            try (final CloseableIterator<Resource> resources = scheduler.resources(em, statesSet, LockModeType.OPTIMISTIC)) {
-                while (resources.hasNext()) {
-                    Resource resource = resources.next();
-                    resource.lock(t, true, 0);
-                    em.refresh(em);
-                    if (resource instanceof Job) {
-                        ((Job) resource).stop();
-                        n++;
-                    }
-                    t.boundary();
+            for (long id : scheduler.resourceIds(em, statesSet)) {
+                Resource.lock(t, id, true, 0);
+                Resource resource = em.find(Resource.class, id);
+                if (resource instanceof Job) {
+                    ((Job) resource).stop();
+                    n++;
                 }
-            } catch (CloseException e) {
-                throw new RuntimeException(e);
+                t.boundary();
+                em.clear();
             }
             return n;
         });
@@ -937,35 +1132,119 @@ public class JsonRPCMethods extends HttpServlet {
 
     }
 
+    /**
+     * Count resources by state
+     */
+    @RPCMethod(help = "Returns the number of resources in each state")
+    public Map<String, Long> countJobs() {
+        Map<String, Long> map = new HashMap<>();
+        for (Map.Entry<ResourceState, Long> entry : scheduler.getResourceCounts().snapshot().entrySet()) {
+            map.put(entry.getKey().toString(), entry.getValue());
+        }
+        return map;
+    }
+
     /**
      * List jobs
      */
-    @RPCMethod(help = "List the jobs along with their states")
+    @RPCMethod(help = "List the jobs along with their states, ordered by ID. Use the ID of the last job" +
+            " as the after argument to get the next page")
     public List<Map<String, String>> listJobs(
             @RPCArgument(name = "group") String group,
             @RPCArgument(name = "states") String[] states,
-            @RPCArgument(name = "recursive", required = false) Boolean _recursive) {
+            @RPCArgument(name = "recursive", required = false) Boolean _recursive,
+            @RPCArgument(name = "after", required = false, help = "Only list jobs with a greater ID") Long after,
+            @RPCArgument(name = "limit", required = false, help = "Maximum number of jobs") Integer limit) {
         final EnumSet<ResourceState> set = getStates(states);
         List<Map<String, String>> list = new ArrayList<>();
         boolean recursive = _recursive == null ? false : _recursive;
 
         return Transaction.evaluate((em, t) -> {
-            try (final CloseableIterator<Resource> resources = scheduler.resources(em, set, LockModeType.NONE)) {
-                while (resources.hasNext()) {
-                    Resource resource = resources.next();
-                    Map<String, String> map = new HashMap<>();
-                    map.put("type", resource.getClass().getCanonicalName());
-                    map.put("state", resource.getState().toString());
-                    map.put("name", resource.getLocator().toString());
-                    list.add(map);
-                }
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            for (ResourceSummary summary : scheduler.resourceSummaries(em, set, after == null ? -1 : after, limit == null ? 0 : limit)) {
+                Map<String, String> map = new HashMap<>();
+                map.put("id", Long.toString(summary.getId()));
+                map.put("type", summary.getType());
+                map.put("state", summary.getState().toString());
+                map.put("name", summary.getLocator());
+                list.add(map);
             }
             return list;
         });
     }
 
+    /**
+     * Submit a set of command line jobs
+     */
+    @RPCMethod(name = "submit-jobs", help = "Submit command line jobs, storing them by chunks. Each job is an object" +
+            " with a locator, a command (array of strings) and optionally dependencies (array of locators)")
+    public List<Map<String, String>> submitJobs(
+            @RPCArgument(name = "jobs", help = "The jobs") JSONObject[] jobs,
+            @RPCArgument(name = "chunk", required = false, help = "Number of jobs stored in one transaction") Integer chunk) {
+        final BulkSubmission submission = new BulkSubmission(chunk == null ? BulkSubmission.DEFAULT_CHUNK_SIZE : chunk);
+        final Map<String, Job> submitted = new HashMap<>();
+
+        // Retrieve the existing dependencies with one query
+        final HashSet<String> dependencyLocators = new HashSet<>();
+        for (JSONObject object : jobs) {
+            final JSONArray dependencies = (JSONArray) object.get("dependencies");
+            if (dependencies != null) {
+                for (Object locator : dependencies) {
+                    dependencyLocators.add(locator.toString());
+                }
+            }
+        }
+        final Map<String, Resource> existing = Transaction.evaluate(em -> Resource.getByLocators(em, dependencyLocators));
+
+        for (JSONObject object : jobs) {
+            final String locator = (String) object.get("locator");
+            final JSONArray arguments = (JSONArray) object.get("command");
+            if (locator == null || arguments == null) {
+                throw new XPMRuntimeException("Each job should have a locator and a command");
+            }
+
+            final Command command = new Command();
+            for (Object argument : arguments) {
+                command.add(argument.toString());
+            }
+
+            final Job job = new Job(LocalhostConnector.getInstance(), locator);
+            job.setState(ResourceState.WAITING);
+            job.setJobRunner(new CommandLineTask(new Commands(command)));
+
+            final JSONArray dependencies = (JSONArray) object.get("dependencies");
+            if (dependencies != null) {
+                for (Object dependencyLocator : dependencies) {
+                    Resource resource = submitted.get(dependencyLocator.toString());
+                    if (resource == null) {
+                        resource = existing.get(dependencyLocator.toString());
+                    }
+                    if (resource == null) {
+                        throw new XPMRuntimeException("Resource [%s] was not found", dependencyLocator);
+                    }
+                    job.addDependency(resource.createDependency(null));
+                }
+            }
+
+            submitted.put(locator, job);
+            submission.add(job);
+        }
+
+        List<Map<String, String>> list = new ArrayList<>();
+        for (BulkSubmission.Outcome outcome : submission.submit()) {
+            Map<String, String> map = new HashMap<>();
+            map.put("name", outcome.locator());
+            map.put("status", outcome.status());
+            if (outcome.resource() != null) {
+                map.put("id", outcome.resource().getId().toString());
+            }
+            if (outcome.message() != null) {
+                map.put("message", outcome.message());
+            }
+            list.add(map);
+        }
+        return list;
+    }
+
     /**
      * Utility function that transforms an array with paired values into a map
      *
@@ -985,15 +1264,6 @@ public class JsonRPCMethods extends HttpServlet {
     }
 
 
-    public interface Arguments {
-        public abstract RPCArgument getArgument(int i);
-
-        public abstract Class<?> getType(int i);
-
-        public abstract int size();
-    }
-
-
 //	/**
 //	 * Add a data resource
 //	 *
@@ -1016,16 +1286,91 @@ public class JsonRPCMethods extends HttpServlet {
 //		return true;
 //	}
 
-    static public class MethodDescription implements Arguments {
+    /**
+     * A request being handled
+     */
+    static private class Request {
+        /**
+         * The request ID (or null)
+         */
+        final String id;
+
+        /**
+         * Set when the request starts, or when it is cancelled before starting
+         */
+        final AtomicBoolean started = new AtomicBoolean(false);
+
+        /**
+         * Set when the client cancels a running request (checked by scripts)
+         */
+        volatile boolean cancelled;
+
+        /**
+         * The task handling the request (null if handled at once)
+         */
+        Future<?> future;
+
+        /**
+         * The output streams of the request
+         */
+        final HashMap<String, BufferedWriter> writers = new HashMap<>();
+
+        Request(String id) {
+            this.id = id;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Cancels the request: a waiting request is removed, and a running request is
+         * flagged as cancelled (threads are not interrupted, since they might be within
+         * a database transaction)
+         *
+         * @return True if the request was cancelled
+         */
+        boolean cancel() {
+            if (started.compareAndSet(false, true)) {
+                return future.cancel(false);
+            }
+            if (future.isDone()) {
+                return false;
+            }
+            cancelled = true;
+            return true;
+        }
+    }
+
+    /**
+     * A RPC method, with its pre-resolved argument converters
+     */
+    static public class MethodDescription {
         Method method;
         private RPCArgument[] arguments;
         private Class<?>[] types;
 
+        /**
+         * Argument converters
+         */
+        private final Converter[] converters;
+
+        /**
+         * Method handle taking (JsonRPCMethods, Object[]) and returning an object
+         */
+        private final MethodHandle handle;
+
+        /**
+         * Whether the method should be handled immediately
+         */
+        final boolean immediate;
+
         public MethodDescription(Method method) {
             this.method = method;
             types = method.getParameterTypes();
             Annotation[][] annotations = method.getParameterAnnotations();
             arguments = new RPCArgument[annotations.length];
+            converters = new Converter[annotations.length];
             for (int i = 0; i < annotations.length; i++) {
                 types[i] = ClassUtils.primitiveToWrapper(types[i]);
                 for (int j = 0; j < annotations[i].length && arguments[i] == null; j++) {
@@ -1036,20 +1381,91 @@ public class JsonRPCMethods extends HttpServlet {
                 if (arguments[i] == null)
                     throw new XPMRuntimeException("No annotation for %dth argument of %s", i + 1, method);
 
+                converters[i] = converter(types[i], arguments[i].required());
+            }
+
+            immediate = method.getAnnotation(RPCMethod.class).immediate();
+
+            try {
+                handle = MethodHandles.lookup().unreflect(method)
+                        .asType(MethodType.genericMethodType(arguments.length + 1))
+                        .asSpreader(Object[].class, arguments.length);
+            } catch (IllegalAccessException e) {
+                throw new XPMRuntimeException(e, "Cannot access RPC method %s", method);
+            }
+        }
+
+        /**
+         * Returns the value of the i<sup>th</sup> argument
+         */
+        private Object value(Object params, int i) {
+            if (params instanceof JSONObject)
+                // If params is a map, then use the json name of the argument
+                return ((JSONObject) params).get(arguments[i].name());
+            if (params instanceof JSONArray) {
+                // if it is an array, then map it
+                final JSONArray array = (JSONArray) params;
+                return i < array.size() ? array.get(i) : null;
+            }
+            // otherwise, suppose it is a one value array
+            return i == 0 ? params : null;
+        }
+
+        /**
+         * Scores the parameters
+         *
+         * @return The score (the higher the better), or {@linkplain Integer#MIN_VALUE} if the
+         * parameters do not match
+         */
+        int score(Object params) {
+            if (!(params instanceof JSONObject || params instanceof JSONArray) && arguments.length > 1) {
+                // A single value can only be mapped to the first argument
+                return Integer.MIN_VALUE;
+            }
+
+            long score = 0;
+            for (int i = 0; i < converters.length; i++) {
+                final int argScore = converters[i].score(value(params, i));
+                if (argScore == Integer.MIN_VALUE) {
+                    return Integer.MIN_VALUE;
+                }
+                score += argScore;
+            }
+            return (int) Math.max(score, Integer.MIN_VALUE + 1);
+        }
+
+        /**
+         * Converts the parameters (which should match, see {@linkplain #score(Object)})
+         */
+        Object[] convert(Object params) {
+            final Object[] args = new Object[converters.length];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = converters[i].convert(value(params, i));
+            }
+            return args;
+        }
+
+        /**
+         * Invokes the method
+         *
+         * @throws InvocationTargetException If the method throws an exception
+         */
+        Object invoke(JsonRPCMethods target, Object[] args) throws InvocationTargetException {
+            try {
+                return (Object) handle.invokeExact((Object) target, args);
+            } catch (Throwable t) {
+                throw new InvocationTargetException(t);
             }
         }
 
-        @Override
         public RPCArgument getArgument(int i) {
             return arguments[i];
         }
 
-        @Override
         public Class<?> getType(int i) {
             return types[i];
         }
 
-        @Override
         public int size() {
             return arguments.length;
         }
@@ -1113,28 +1529,6 @@ public class JsonRPCMethods extends HttpServlet {
 //        return true;
 //    }
 
-    static public class RPCArrayArgument implements RPCArgument {
-        @Override
-        public String name() {
-            return null;
-        }
-
-        @Override
-        public boolean required() {
-            return true;
-        }
-
-        @Override
-        public String help() {
-            return "Array element";
-        }
-
-        @Override
-        public Class<? extends Annotation> annotationType() {
-            return RPCArgument.class;
-        }
-    }
-
     /**
      * A class that is used to control the environment in scripts
      *
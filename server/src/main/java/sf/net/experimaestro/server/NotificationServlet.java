@@ -21,6 +21,7 @@ package sf.net.experimaestro.server;
 import sf.net.experimaestro.connectors.XPMProcess;
 import sf.net.experimaestro.scheduler.*;
 import sf.net.experimaestro.utils.Functional;
+import sf.net.experimaestro.utils.log.Logger;
 
 import javax.persistence.EntityManager;
 import javax.servlet.ServletException;
@@ -32,6 +33,8 @@ import java.io.IOException;
  * Handles notification
  */
 public class NotificationServlet extends XPMServlet {
+    final static private Logger LOGGER = Logger.getLogger();
+
     private static final String END_OF_JOB = "eoj";
     private static final String PROGRESS = "progress";
 
@@ -80,13 +83,10 @@ public class NotificationServlet extends XPMServlet {
 
                 double progress = Double.parseDouble(parts[3]);
 
-                Transaction.run(Functional.propagate(em -> {
-                    final Job job = getJob(request, resp, em, resourceId);
-                    if (job.getState() == ResourceState.RUNNING) {
-                        job.setProgress(progress);
-                        Scheduler.get().notify(new SimpleMessage(Message.Type.PROGRESS, job));
-                    }
-                }));
+                // Only kept in memory (listeners are notified by the progress store)
+                if (!scheduler.getProgressStore().setProgress(resourceId, progress)) {
+                    LOGGER.debug("Ignoring progress of job %d since it is not running", resourceId);
+                }
         }
 
         return;
@@ -43,4 +43,10 @@ import java.lang.annotation.Target;
      * @return The name of the RPC method or empty string if default (method name)
      */
     String name() default "";
+
+    /**
+     * Whether the method is handled as soon as it is received, rather than by a request worker
+     * (only for methods that return quickly)
+     */
+    boolean immediate() default false;
 }
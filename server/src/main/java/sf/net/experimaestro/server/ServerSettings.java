@@ -40,6 +40,21 @@ public class ServerSettings {
      */
     Style style = Style.SMOOTHNESS;
 
+    /**
+     * Number of threads handling JSON-RPC requests
+     */
+    int rpcThreads = 16;
+
+    /**
+     * Maximum number of JSON-RPC requests waiting for a thread (further requests are rejected)
+     */
+    int rpcQueueSize = 256;
+
+    /**
+     * Maximum number of requests of one connection handled at the same time
+     */
+    int rpcConnectionRequests = 4;
+
     public ServerSettings(Configuration configuration) {
         try {
             name = configuration.getString("name", InetAddress.getLocalHost().getHostName());
@@ -47,6 +62,10 @@ public class ServerSettings {
             LOGGER.error(e, "Could not get localhost name");
         }
 
+        rpcThreads = Math.max(1, configuration.getInt("rpc-threads", rpcThreads));
+        rpcQueueSize = Math.max(1, configuration.getInt("rpc-queue", rpcQueueSize));
+        rpcConnectionRequests = Math.max(1, configuration.getInt("rpc-connection-requests", rpcConnectionRequests));
+
         String styleName = configuration.getString("style", Style.SMOOTHNESS.toString()).toUpperCase();
         try {
             style = Style.valueOf(styleName);
@@ -58,6 +77,27 @@ public class ServerSettings {
     }
 
 
+    /**
+     * @return The number of threads handling JSON-RPC requests
+     */
+    public int getRPCThreads() {
+        return rpcThreads;
+    }
+
+    /**
+     * @return The maximum number of JSON-RPC requests waiting for a thread
+     */
+    public int getRPCQueueSize() {
+        return rpcQueueSize;
+    }
+
+    /**
+     * @return The maximum number of requests of one connection handled at the same time
+     */
+    public int getRPCConnectionRequests() {
+        return rpcConnectionRequests;
+    }
+
     static enum Style {
         SMOOTHNESS, BLITZER;
     }
@@ -18,19 +18,18 @@ package sf.net.experimaestro.server;
  * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-import sf.net.experimaestro.exceptions.CloseException;
 import sf.net.experimaestro.manager.experiments.Experiment;
 import sf.net.experimaestro.manager.experiments.Experiment_;
 import sf.net.experimaestro.scheduler.Resource;
 import sf.net.experimaestro.scheduler.Resource.PrintConfig;
+import sf.net.experimaestro.scheduler.ResourceCounts;
 import sf.net.experimaestro.scheduler.ResourceState;
+import sf.net.experimaestro.scheduler.ResourceSummary;
 import sf.net.experimaestro.scheduler.Scheduler;
 import sf.net.experimaestro.scheduler.Transaction;
-import sf.net.experimaestro.utils.CloseableIterator;
 import sf.net.experimaestro.utils.arrays.ListAdaptator;
 import sf.net.experimaestro.utils.log.Logger;
 
-import javax.persistence.LockModeType;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
@@ -56,6 +55,11 @@ public class StatusServlet extends XPMServlet {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Maximum number of resources listed for each state
+     */
+    private static final int MAX_LISTED_RESOURCES = 1000;
+
     private final Scheduler scheduler;
 
     public StatusServlet(ServerSettings serverSettings, Scheduler manager) {
@@ -83,8 +87,9 @@ public class StatusServlet extends XPMServlet {
 
             out.println("<div id='tab-main' class='tab'><ul><li><a href='#resources'>Resources</a></li><li><a href='#resource-detail'>Detail</a></li><li><a href='/status/experiments'>Experiments</a></li></ul>");
             out.println("<div id=\"resources\" class=\"tab\"><ul>");
+            final ResourceCounts counts = scheduler.getResourceCounts();
             for (ResourceState state : values) {
-                out.format("<li><a href=\"#state-%s\"><span>%s</span> (<span id=\"state-%s-count\">0</span>)</a></li>", state, state, state);
+                out.format("<li><a href=\"#state-%s\"><span>%s</span> (<span id=\"state-%s-count\">%d</span>)</a></li>", state, state, state, counts.get(state));
             }
             out.println("</ul>");
 
@@ -92,26 +97,20 @@ public class StatusServlet extends XPMServlet {
 
                 out.format("<div id=\"state-%s\" class=\"xpm-resource-list\">", state);
                 out.println("<ul>");
-                Transaction.run(em -> {
-                    try (final CloseableIterator<Resource> resources = scheduler.resources(em, EnumSet.of(state), LockModeType.NONE)) {
-                        while (resources.hasNext()) {
-                            Resource resource = resources.next();
-                            if (resource.getState() == state) {
-                                out.format("<li name=\"%s\" id=\"R%s\">", resource.getId(), resource.getId());
-                                try {
-                                    out.format("<img class='link' name='restart' alt='restart' src='/images/restart.png'/>");
-                                    out.format("<img class='link' name='delete' alt='delete' src='/images/delete.png'/>");
-                                    out.format("<a href=\"javascript:void(0)\">%s</a></li>", resource.getLocator());
-                                } catch (Throwable t) {
-                                    out.format("<b>Resource ID %s</b> without locator</li>", resource.getId());
-                                }
-                            }
-                        }
-                    } catch (CloseException e) {
-                        LOGGER.warn("Error while closing the iterator");
-                    }
+                final List<ResourceSummary> summaries = Transaction.evaluate(em -> {
+                    return scheduler.resourceSummaries(em, EnumSet.of(state), -1, MAX_LISTED_RESOURCES);
                 });
-                out.println("</ul></div>");
+                for (ResourceSummary summary : summaries) {
+                    out.format("<li name=\"%s\" id=\"R%s\">", summary.getId(), summary.getId());
+                    out.format("<img class='link' name='restart' alt='restart' src='/images/restart.png'/>");
+                    out.format("<img class='link' name='delete' alt='delete' src='/images/delete.png'/>");
+                    out.format("<a href=\"javascript:void(0)\">%s</a></li>", summary.getLocator());
+                }
+                out.println("</ul>");
+                if (summaries.size() == MAX_LISTED_RESOURCES) {
+                    out.format("<p>Only the first %d resources are listed</p>", MAX_LISTED_RESOURCES);
+                }
+                out.println("</div>");
             }
             out.println("</div>");
 
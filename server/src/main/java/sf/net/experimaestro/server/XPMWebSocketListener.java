@@ -22,14 +22,23 @@ import org.apache.commons.lang.NotImplementedException;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.websocket.api.WebSocketAdapter;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.json.simple.JSONObject;
 import sf.net.experimaestro.manager.Repositories;
 import sf.net.experimaestro.scheduler.Scheduler;
 import sf.net.experimaestro.utils.log.Logger;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
 /**
  * Web socket service
+ * <p>
+ * Requests are handled by a pool of workers shared by all the connections, so that
+ * a long request does not block the other requests of the connection; answers are
+ * correlated to requests by their ID, as are the messages sent while handling a request.
+ * At most a given number of requests of one connection are handled at the same time: further
+ * requests are rejected with an error until a request finishes.
  *
  * @author B. Piwowarski <benjamin@bpiwowar.net>
  * @date 26/3/13
@@ -38,8 +47,21 @@ public class XPMWebSocketListener extends WebSocketAdapter implements WebSocketL
     final static private Logger LOGGER = Logger.getLogger();
     private final JsonRPCMethods methods;
 
+    /**
+     * The request workers
+     */
+    private final ExecutorService executor;
 
-    public XPMWebSocketListener(Server server, Scheduler scheduler, Repositories repositories) {
+    /**
+     * Number of requests that can still be handled for this connection
+     */
+    private final Semaphore permits;
+
+
+    public XPMWebSocketListener(Server server, Scheduler scheduler, Repositories repositories,
+                                ExecutorService executor, int maxRequests) {
+        this.executor = executor;
+        this.permits = new Semaphore(maxRequests);
         this.methods = new JsonRPCMethods(server, scheduler, repositories, new JSONRPCRequest() {
             @Override
             public void sendJSONString(String message) throws IOException {
@@ -57,7 +79,22 @@ public class XPMWebSocketListener extends WebSocketAdapter implements WebSocketL
 
     @Override
     public void onWebSocketText(String message) {
-        methods.handle(message);
+        final JSONObject object = methods.parse(message);
+        if (object == null) {
+            return;
+        }
+
+        if (JsonRPCMethods.isImmediate(object)) {
+            methods.handleJSON(object);
+            return;
+        }
+
+        // Do not block the connection thread when too many requests are running
+        if (!permits.tryAcquire()) {
+            methods.reject(object, "Too many requests for this connection");
+            return;
+        }
+        methods.submit(object, executor, permits::release);
     }
 
 
@@ -24,6 +24,8 @@ import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 import sf.net.experimaestro.manager.Repositories;
 import sf.net.experimaestro.scheduler.Scheduler;
 
+import java.util.concurrent.ExecutorService;
+
 /**
  * @author B. Piwowarski <benjamin@bpiwowar.net>
  * @date 26/3/13
@@ -33,14 +35,27 @@ public class XPMWebSocketServlet extends WebSocketServlet {
     private final Scheduler scheduler;
     private final Repositories repositories;
 
-    public XPMWebSocketServlet(Server server, Scheduler scheduler, Repositories repositories) {
+    /**
+     * The JSON-RPC request workers
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Maximum number of requests of a connection handled at the same time
+     */
+    private final int maxRequests;
+
+    public XPMWebSocketServlet(Server server, Scheduler scheduler, Repositories repositories,
+                               ExecutorService executor, int maxRequests) {
         this.server = server;
         this.scheduler = scheduler;
         this.repositories = repositories;
+        this.executor = executor;
+        this.maxRequests = maxRequests;
     }
 
     @Override
     public void configure(WebSocketServletFactory factory) {
-        factory.setCreator((req, resp) -> new XPMWebSocketListener(server, scheduler, repositories));
+        factory.setCreator((req, resp) -> new XPMWebSocketListener(server, scheduler, repositories, executor, maxRequests));
     }
 }
@@ -24,6 +24,7 @@ package sf.net.experimaestro.tasks;
 import bpiwowar.argparser.ArgumentClass;
 import bpiwowar.experiments.AbstractTask;
 import bpiwowar.experiments.TaskDescription;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.configuration.HierarchicalINIConfiguration;
 import org.apache.commons.configuration.SubnodeConfiguration;
 import org.eclipse.jetty.security.ConstraintMapping;
@@ -40,12 +41,17 @@ import org.eclipse.jetty.util.security.Password;
 import sf.net.experimaestro.manager.Repositories;
 import sf.net.experimaestro.manager.js.XPMContext;
 import sf.net.experimaestro.scheduler.Scheduler;
+import sf.net.experimaestro.scheduler.SchedulerSettings;
 import sf.net.experimaestro.server.*;
 import sf.net.experimaestro.utils.log.Logger;
 
 import java.io.File;
 import java.net.URL;
 import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The server displays information about the tasks and responds to XML RPC tasks
@@ -111,7 +117,7 @@ public class ServerTask extends AbstractTask {
             throw new IllegalArgumentException("No 'database' in 'server' section of the configuration file");
 
         File taskmanagerDirectory = new File(property);
-        scheduler = new Scheduler(taskmanagerDirectory);
+        scheduler = new Scheduler(taskmanagerDirectory, new SchedulerSettings(configuration.subset("scheduler")));
 
         // Early initialization to detect errors
         XPMContext.init();
@@ -174,7 +180,11 @@ public class ServerTask extends AbstractTask {
 
         // --- Add the web socket servlet
 
-        final XPMWebSocketServlet webSocketServlet = new XPMWebSocketServlet(webServer, scheduler, repositories);
+        final ExecutorService rpcExecutor = new ThreadPoolExecutor(serverSettings.getRPCThreads(), serverSettings.getRPCThreads(),
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(serverSettings.getRPCQueueSize()),
+                new ThreadFactoryBuilder().setNameFormat("RPC-%d").setDaemon(true).build());
+        final XPMWebSocketServlet webSocketServlet = new XPMWebSocketServlet(webServer, scheduler, repositories,
+                rpcExecutor, serverSettings.getRPCConnectionRequests());
         final ServletHolder webSocketServletHolder = new ServletHolder(webSocketServlet);
         context.addServlet(webSocketServletHolder, "/web-socket");
 
@@ -19,41 +19,358 @@ package sf.net.experimaestro.utils;
  */
 
 import com.google.common.collect.AbstractIterator;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import sf.net.experimaestro.exceptions.XPMRuntimeException;
+import sf.net.experimaestro.utils.log.Logger;
 
+import java.io.*;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Iterator;
 
 /**
  * Caches the result of an iterator in order to make an iterable from it
+ * <p>
+ * When the number of readers (calls to {@linkplain #iterator()}) is known, values
+ * are released once all the readers have read them. When a serializer is given,
+ * values that are not released are written to disk when more than a given number
+ * of values are held in memory.
+ * <p>
+ * Readers are weakly referenced: a reader that is dropped before reaching the end
+ * does not prevent the other readers from releasing values once it has been garbage
+ * collected.
  *
  * @author B. Piwowarski <benjamin@bpiwowar.net>
  * @date 13/3/13
  */
-public class CachedIterable<T> implements Iterable<T> {
+public class CachedIterable<T> implements Iterable<T>, AutoCloseable {
+    final static private Logger LOGGER = Logger.getLogger();
+
+    /**
+     * Number of readers when it is not known
+     */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    /**
+     * Serialization of values
+     */
+    public interface Serializer<T> {
+        void write(DataOutput out, T value) throws IOException;
+
+        T read(DataInput in) throws IOException;
+    }
+
     private final Iterator<T> iterator;
-    ArrayList<T> cache = new ArrayList<>();
+
+    /**
+     * Number of expected readers
+     */
+    private final int readers;
+
+    /**
+     * Maximum number of values held in memory (when a serializer is given)
+     */
+    private final int memorySize;
+
+    /**
+     * Serializer (null if values are always held in memory)
+     */
+    private final Serializer<T> serializer;
+
+    /**
+     * Called once all the expected readers have read all the values
+     */
+    private Runnable onRelease;
+
+    /**
+     * Number of readers created so far
+     */
+    private int created;
+
+    /**
+     * The readers that have not reached the end
+     */
+    private final ArrayList<Reference<Reader>> live = new ArrayList<>();
+
+    /**
+     * Readers that were garbage collected before reaching the end
+     */
+    private final ReferenceQueue<Reader> abandoned = new ReferenceQueue<>();
+
+    /**
+     * Values before this position were released
+     */
+    private long start;
+
+    /**
+     * Position of the next value to read from the iterator
+     */
+    private long end;
+
+    /**
+     * Values held in memory (starting at index head), the first one being at position memoryStart
+     */
+    private final ArrayList<T> buffer = new ArrayList<>();
+    private int head;
+    private long memoryStart;
+
+    /**
+     * Values written on disk: from fileStart to memoryStart (offsets of each value in the file)
+     */
+    private Path path;
+    private RandomAccessFile file;
+    private final LongArrayList offsets = new LongArrayList();
+    private long fileStart;
+    private long fileLength;
+
+    /**
+     * Used to serialize values
+     */
+    private ByteArrayOutputStream bytes;
+    private DataOutputStream bytesOutput;
 
     public CachedIterable(Iterator<T> iterator) {
+        this(iterator, UNBOUNDED, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * @param iterator   The iterator whose values are cached
+     * @param readers    The number of readers, or {@linkplain #UNBOUNDED}
+     * @param memorySize The maximum number of values held in memory if a serializer is given
+     * @param serializer The serializer used to write values on disk (or null)
+     */
+    public CachedIterable(Iterator<T> iterator, int readers, int memorySize, Serializer<T> serializer) {
+        if (memorySize <= 0)
+            throw new IllegalArgumentException("The memory size should be positive");
         this.iterator = iterator;
+        this.readers = readers;
+        this.memorySize = memorySize;
+        this.serializer = serializer;
+    }
+
+    /**
+     * Sets a function called once all the expected readers have read all the values
+     */
+    public void onRelease(Runnable onRelease) {
+        this.onRelease = onRelease;
     }
 
     @Override
     public Iterator<T> iterator() {
-        return new AbstractIterator<T>() {
-            int index = 0;
-
-            @Override
-            protected T computeNext() {
-                if (index >= cache.size()) {
-                    if (!iterator.hasNext()) {
-                        return endOfData();
-                    }
-                    cache.add(iterator.next());
+        if (start > 0) {
+            throw new XPMRuntimeException("Cannot read cached values: more readers than expected (%d)", readers);
+        }
+
+        if (created < readers) {
+            ++created;
+        }
+
+        final Reader reader = new Reader();
+        live.add(reader.reference);
+        return reader;
+    }
+
+    /**
+     * Releases resources (values and files)
+     */
+    @Override
+    public void close() {
+        buffer.clear();
+        head = 0;
+        offsets.clear();
+        if (file != null) {
+            try {
+                file.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOGGER.error(e, "Could not delete cache file %s", path);
+            }
+            file = null;
+        }
+    }
+
+    /**
+     * Reads the next value from the iterator
+     *
+     * @return false if there is no more value
+     */
+    private boolean fill() {
+        if (!iterator.hasNext()) {
+            return false;
+        }
+
+        buffer.add(iterator.next());
+        ++end;
+
+        if (serializer != null && buffer.size() - head > memorySize) {
+            spill(buffer.size() - head - memorySize / 2);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the first values held in memory on disk
+     */
+    private void spill(int count) {
+        try {
+            if (file == null) {
+                path = Files.createTempFile("xpm-cache-", ".values");
+                file = new RandomAccessFile(path.toFile(), "rw");
+                bytes = new ByteArrayOutputStream();
+                bytesOutput = new DataOutputStream(bytes);
+            }
+            if (offsets.isEmpty()) {
+                fileStart = memoryStart;
+            }
+
+            LOGGER.debug("Writing %d cached values to %s", count, path);
+            file.seek(fileLength);
+            for (int i = 0; i < count; i++) {
+                bytes.reset();
+                serializer.write(bytesOutput, buffer.get(head));
+                bytesOutput.flush();
+                offsets.add(fileLength);
+                file.write(bytes.toByteArray());
+                fileLength += bytes.size();
+
+                buffer.set(head++, null);
+                ++memoryStart;
+            }
+            compact();
+        } catch (IOException e) {
+            throw new XPMRuntimeException(e, "Could not write cached values");
+        }
+    }
+
+    /**
+     * Returns the value at a given position
+     */
+    private T get(long position) {
+        if (position >= memoryStart) {
+            return buffer.get(head + (int) (position - memoryStart));
+        }
+
+        final int index = (int) (position - fileStart);
+        final long offset = offsets.getLong(index);
+        final long next = index + 1 < offsets.size() ? offsets.getLong(index + 1) : fileLength;
+        try {
+            final byte[] data = new byte[(int) (next - offset)];
+            file.seek(offset);
+            file.readFully(data);
+            return serializer.read(new DataInputStream(new ByteArrayInputStream(data)));
+        } catch (IOException e) {
+            throw new XPMRuntimeException(e, "Could not read cached values");
+        }
+    }
+
+    /**
+     * Removes the readers that were garbage collected before reaching the end
+     *
+     * @return true if at least one reader was removed
+     */
+    private boolean removeAbandoned() {
+        boolean removed = false;
+        Reference<? extends Reader> reference;
+        while ((reference = abandoned.poll()) != null) {
+            removed |= live.remove(reference);
+        }
+
+        if (removed) {
+            LOGGER.debug("Removed abandoned readers (%d remaining)", live.size());
+        }
+        return removed;
+    }
+
+    /**
+     * Releases the values that were read by all the readers
+     */
+    private void release() {
+        if (created < readers) {
+            return;
+        }
+
+        long min = Long.MAX_VALUE;
+        for (Iterator<Reference<Reader>> iterator = live.iterator(); iterator.hasNext(); ) {
+            final Reader reader = iterator.next().get();
+            if (reader == null) {
+                // Garbage collected (but not yet polled)
+                iterator.remove();
+            } else {
+                min = Math.min(min, reader.position);
+            }
+        }
+
+        if (live.isEmpty()) {
+            // All the readers have finished
+            close();
+            if (onRelease != null) {
+                onRelease.run();
+            }
+            return;
+        }
+        if (min <= start) {
+            return;
+        }
+        start = min;
+
+        if (start > memoryStart) {
+            // Release values in memory (and the file since it only holds values before)
+            final int count = (int) (start - memoryStart);
+            for (int i = 0; i < count; i++) {
+                buffer.set(head++, null);
+            }
+            memoryStart = start;
+            compact();
+
+            if (!offsets.isEmpty()) {
+                offsets.clear();
+                fileLength = 0;
+                try {
+                    file.setLength(0);
+                } catch (IOException e) {
+                    throw new XPMRuntimeException(e, "Could not truncate the cache file");
                 }
+            }
+        }
+    }
+
+    /**
+     * Removes the released values from the start of the buffer
+     */
+    private void compact() {
+        if (head > 1024 && 2 * head > buffer.size()) {
+            buffer.subList(0, head).clear();
+            head = 0;
+        }
+    }
+
+    private class Reader extends AbstractIterator<T> {
+        final WeakReference<Reader> reference = new WeakReference<>(this, abandoned);
+
+        long position;
+
+        @Override
+        protected T computeNext() {
+            if (removeAbandoned()) {
+                release();
+            }
+
+            if (position >= end && !fill()) {
+                live.remove(reference);
+                reference.clear();
+                release();
+                return endOfData();
+            }
 
-                // Return current object
-                return cache.get(index++);
+            final T value = get(position++);
+            if (position - 1 == start) {
+                release();
             }
-        };
+            return value;
+        }
     }
 }
@@ -0,0 +1,441 @@
+package sf.net.experimaestro.utils.io;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import org.apache.commons.lang.mutable.MutableLong;
+import sf.net.experimaestro.utils.log.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An embedded log-structured key-value store.
+ * <p>
+ * Records are only appended to the log file, and an in-memory index maps each key to its
+ * latest record; values are read through a memory mapping of the file. When more than
+ * half of the log is made of overwritten or removed records, the live records are copied
+ * to a new file by a background thread, and the new file replaces the log.
+ * <p>
+ * A record is made of the key (8 bytes), the length of the value (4 bytes, -1 for a removal),
+ * the value and a CRC32 checksum (4 bytes). A partially written record at the end of the log
+ * is discarded when the store is opened.
+ * <p>
+ * Appended records are written to the file before {@linkplain #put(long, byte[])} and
+ * {@linkplain #remove(long)} return, so they survive a crash of the process. They only survive
+ * a crash of the system once the file has been forced to the disk, either explicitly
+ * ({@linkplain #force()}) or after each append in synchronous mode ({@linkplain #setSync(boolean)}).
+ *
+ * @author B. Piwowarski <benjamin@bpiwowar.net>
+ */
+final public class LogStore implements AutoCloseable {
+    final static private Logger LOGGER = Logger.getLogger();
+
+    static final int HEADER_SIZE = 12;
+
+    static final int TRAILER_SIZE = 4;
+
+    /**
+     * Index entries pack the offset of the record (high bits) and its size (low bits)
+     */
+    static final int SIZE_BITS = 24;
+
+    static final long SIZE_MASK = (1L << SIZE_BITS) - 1;
+
+    /**
+     * Maximum size of a value
+     */
+    public static final int MAX_VALUE_SIZE = (int) SIZE_MASK - HEADER_SIZE - TRAILER_SIZE;
+
+    /**
+     * The log is not compacted below this size
+     */
+    static final long MIN_COMPACTION_SIZE = 1 << 16;
+
+    /**
+     * The log file
+     */
+    private final Path path;
+
+    private FileChannel channel;
+
+    /**
+     * Read-only mapping of the log (might not cover the last records)
+     */
+    private MappedByteBuffer mapped;
+
+    /**
+     * End of the last record
+     */
+    private long size;
+
+    /**
+     * Number of bytes used by overwritten or removed records
+     */
+    private long garbage;
+
+    /**
+     * Maps keys to their latest record
+     */
+    private Long2LongOpenHashMap index = newIndex();
+
+    private boolean compacting;
+
+    /**
+     * Whether appends are forced to the disk
+     */
+    private boolean sync;
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("LogStore compactor").setDaemon(true).build());
+
+    /**
+     * Opens (or creates) a store
+     *
+     * @param file The log file
+     * @throws IOException If the log cannot be read
+     */
+    public LogStore(File file) throws IOException {
+        path = file.toPath();
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        final long fileSize = channel.size();
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException(String.format("Log %s is too large (%d bytes)", path, fileSize));
+        }
+
+        final MutableLong garbage = new MutableLong();
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        size = scan(buffer, 0, index, garbage);
+        unmap(buffer);
+        this.garbage = garbage.longValue();
+
+        if (size < fileSize) {
+            LOGGER.warn("Discarding %d bytes at the end of %s (partially written record)", fileSize - size, path);
+            channel.truncate(size);
+        }
+        LOGGER.debug("Opened %s: %d keys, %d bytes (%d unused)", path, index.size(), size, this.garbage);
+    }
+
+    private static Long2LongOpenHashMap newIndex() {
+        final Long2LongOpenHashMap index = new Long2LongOpenHashMap();
+        index.defaultReturnValue(-1);
+        return index;
+    }
+
+    /**
+     * Reads records and updates the index
+     *
+     * @param buffer  The records (from the current position)
+     * @param base    The offset of the buffer in the log
+     * @param index   The index to update
+     * @param garbage Incremented by the size of the records that are not used anymore
+     * @return The offset of the end of the last valid record
+     */
+    private static long scan(ByteBuffer buffer, long base, Long2LongOpenHashMap index, MutableLong garbage) {
+        final CRC32 crc = new CRC32();
+        int end = buffer.position();
+        while (buffer.remaining() >= HEADER_SIZE + TRAILER_SIZE) {
+            final long key = buffer.getLong();
+            final int length = buffer.getInt();
+            if (length < -1 || length > MAX_VALUE_SIZE || buffer.remaining() < Math.max(length, 0) + TRAILER_SIZE) {
+                break;
+            }
+
+            final int recordSize = HEADER_SIZE + Math.max(length, 0) + TRAILER_SIZE;
+            final ByteBuffer record = buffer.duplicate();
+            record.position(end).limit(end + recordSize - TRAILER_SIZE);
+            crc.reset();
+            crc.update(record);
+            buffer.position(end + recordSize - TRAILER_SIZE);
+            if (buffer.getInt() != (int) crc.getValue()) {
+                break;
+            }
+
+            final long old = index.get(key);
+            if (old >= 0) {
+                garbage.add(old & SIZE_MASK);
+            }
+            if (length < 0) {
+                index.remove(key);
+                garbage.add(recordSize);
+            } else {
+                index.put(key, (base + end) << SIZE_BITS | recordSize);
+            }
+            end = buffer.position();
+        }
+
+        return base + end;
+    }
+
+    /**
+     * Returns the value associated to a key
+     *
+     * @return The value, or null if there is none
+     */
+    public synchronized byte[] get(long key) throws IOException {
+        final long entry = index.get(key);
+        if (entry < 0) {
+            return null;
+        }
+
+        final long offset = entry >>> SIZE_BITS;
+        final int length = (int) (entry & SIZE_MASK) - HEADER_SIZE - TRAILER_SIZE;
+        if (mapped == null || offset + HEADER_SIZE + length > mapped.limit()) {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Log %s is too large (%d bytes)", path, size));
+            }
+            unmap(mapped);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        final ByteBuffer buffer = mapped.duplicate();
+        buffer.position((int) offset + HEADER_SIZE);
+        final byte[] value = new byte[length];
+        buffer.get(value);
+        return value;
+    }
+
+    /**
+     * Associates a value to a key
+     */
+    public synchronized void put(long key, byte[] value) throws IOException {
+        if (value.length > MAX_VALUE_SIZE) {
+            throw new IllegalArgumentException(String.format("Value too large (%d bytes)", value.length));
+        }
+        append(key, value);
+    }
+
+    /**
+     * Removes a key
+     */
+    public synchronized void remove(long key) throws IOException {
+        if (index.containsKey(key)) {
+            append(key, null);
+        }
+    }
+
+    public synchronized boolean containsKey(long key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Returns the keys of the store
+     */
+    public synchronized long[] keys() {
+        return index.keySet().toLongArray();
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Sets whether each append is forced to the disk before returning
+     */
+    public synchronized void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * Ensures that the records are written to the disk
+     */
+    public synchronized void force() throws IOException {
+        channel.force(false);
+    }
+
+    private void append(long key, byte[] value) throws IOException {
+        final int length = value == null ? -1 : value.length;
+        final int recordSize = HEADER_SIZE + Math.max(length, 0) + TRAILER_SIZE;
+
+        final ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+        buffer.putLong(key).putInt(length);
+        if (value != null) {
+            buffer.put(value);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        final long offset = size;
+        write(channel, buffer, offset);
+        size += recordSize;
+
+        final long old = index.get(key);
+        if (old >= 0) {
+            garbage += old & SIZE_MASK;
+        }
+        if (value == null) {
+            index.remove(key);
+            garbage += recordSize;
+        } else {
+            index.put(key, offset << SIZE_BITS | recordSize);
+        }
+
+        if (sync) {
+            channel.force(false);
+        }
+
+        if (!compacting && size > MIN_COMPACTION_SIZE && 2 * garbage > size) {
+            compacting = true;
+            compactor.execute(this::compact);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Release a mapping without waiting for the garbage collector (the mapping must not be
+     * used afterwards)
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        try {
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // The mapping will be released by the garbage collector
+            LOGGER.debug("Could not release a mapping: %s", e);
+        }
+    }
+
+    /**
+     * Copy the live records to a new log, and replace the current log with it.
+     * <p>
+     * Records are copied without holding the lock; the records appended in the meantime
+     * are then copied while holding it. The current log is closed and unmapped before
+     * being replaced.
+     */
+    private void compact() {
+        final Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        try {
+            final long end;
+            final Long2LongOpenHashMap snapshot;
+            final FileChannel source;
+            synchronized (this) {
+                end = size;
+                snapshot = new Long2LongOpenHashMap(index);
+                source = channel;
+            }
+
+            try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final Long2LongOpenHashMap newIndex = newIndex();
+                long position = 0;
+                for (Long2LongMap.Entry entry : snapshot.long2LongEntrySet()) {
+                    final long offset = entry.getLongValue() >>> SIZE_BITS;
+                    final int recordSize = (int) (entry.getLongValue() & SIZE_MASK);
+                    final ByteBuffer record = ByteBuffer.allocate(recordSize);
+                    read(source, record, offset);
+                    record.flip();
+                    write(target, record, position);
+                    newIndex.put(entry.getLongKey(), position << SIZE_BITS | recordSize);
+                    position += recordSize;
+                }
+
+                synchronized (this) {
+                    // Copy and index the records appended in the meantime
+                    final ByteBuffer tail = ByteBuffer.allocate((int) (size - end));
+                    read(channel, tail, end);
+                    tail.flip();
+                    write(target, tail.duplicate(), position);
+                    final MutableLong tailGarbage = new MutableLong();
+                    scan(tail, position, newIndex, tailGarbage);
+                    target.force(false);
+                    target.close();
+
+                    // Release the current log before replacing it
+                    channel.close();
+                    unmap(mapped);
+                    mapped = null;
+                    try {
+                        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        // Re-open the log (the old one if the move failed)
+                        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    }
+                    LOGGER.debug("Compacted %s from %d to %d bytes", path, size, position + tail.limit());
+
+                    index = newIndex;
+                    size = position + tail.limit();
+                    garbage = tailGarbage.longValue();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error(e, "Could not compact %s", path);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            LOGGER.warn("Interrupted while waiting for the compaction of %s", path);
+        }
+
+        synchronized (this) {
+            channel.force(false);
+            channel.close();
+            unmap(mapped);
+            mapped = null;
+        }
+    }
+}
@@ -165,12 +165,7 @@ $().ready(function () {
     // Tabs
     $(".tab").tabs();
 
-    // Resource counts
-    $("#resources").children("div").each(function () {
-        var n = $(this).children("ul").children("li").size();
-        var tabid = $(this).attr("id");
-        $("#" + tabid + "-count").text(n);
-    });
+    // Resource counts are given by the server (only the first resources of each state are listed)
 
     // --- Now, listen to XPM events with a web socket
     websocket_protocol = window.location.protocol == "https" ? "wss" : "ws";
@@ -180,8 +175,11 @@ $().ready(function () {
         console.debug("WebSocket: Connecting to " + websocket_url);
         var websocket = new WebSocket(websocket_url);
         websocket.onmessage = function (e) {
-            var decrement = function (e) {
-                var old_counter_id = e.parents(".xpm-resource-list").attr("id") + "-count";
+            // Decrement the counter of the old state (given by the server, since
+            // the resource might not be listed)
+            var decrement = function (state, e) {
+                var old_counter_id = state ? "state-" + state + "-count"
+                    : e.parents(".xpm-resource-list").attr("id") + "-count";
                 var c = $("#" + old_counter_id);
                 c.text(Number(c.text()) - 1);
             }
@@ -201,7 +199,8 @@ $().ready(function () {
                     var e = $("#R" + r.resource);
 
                     // Decrement old
-                    decrement(e);
+                    if (r.old_state || e.length > 0)
+                        decrement(r.old_state, e);
 
                     // Increment new state
                     var c = $("#state-" + r.state + "-count");
@@ -215,26 +214,30 @@ $().ready(function () {
                 case "RESOURCE_REMOVED":
                     // Get the resource
                     var e = $("#R" + r.resource);
-                    if (e.length > 0) {
-                        decrement(e);
-                        e.remove();
-                    }
+                    if (r.state || e.length > 0)
+                        decrement(r.state, e);
+                    e.remove();
                     break;
 
                 case "PROGRESS":
-                    var e = $("#R" + r.resource);
-                    if (e.length < 1) {
-                        console.warn("Resource " + r.resource + " does not exist (progress reported)!");
-                    } else {
-                        var pb = e.find("div.progressbar");
-                        if (pb.length == 0) {
-                            pb = $e("div");
-                            pb.addClass("progressbar");
-                            pb.progressbar({ value: r.progress * 100. });
-                            pb.progressbar("option", "max", 100);
-                            e.append(pb);
+                    // Progress is coalesced: one event for several jobs
+                    var jobs = r.jobs ? r.jobs : [r];
+                    for (var i = 0; i < jobs.length; i++) {
+                        var j = jobs[i];
+                        var e = $("#R" + j.resource);
+                        if (e.length < 1) {
+                            console.warn("Resource " + j.resource + " does not exist (progress reported)!");
                         } else {
-                            pb.progressbar( "option", "value", r.progress * 100 );
+                            var pb = e.find("div.progressbar");
+                            if (pb.length == 0) {
+                                pb = $e("div");
+                                pb.addClass("progressbar");
+                                pb.progressbar({ value: j.progress * 100. });
+                                pb.progressbar("option", "max", 100);
+                                e.append(pb);
+                            } else {
+                                pb.progressbar( "option", "value", j.progress * 100 );
+                            }
                         }
                     }
                     break;
@@ -0,0 +1,262 @@
+package sf.net.experimaestro.manager.plans;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import sf.net.experimaestro.manager.json.JsonInteger;
+import sf.net.experimaestro.manager.scripting.ScriptContext;
+
+import java.util.*;
+
+/**
+ * Tests for the join strategies
+ */
+public class JoinTest {
+    /**
+     * Number of joined operators (the first contexts of the values)
+     */
+    static final int JOINS = 2;
+
+    @Test(description = "Merge and hash joins produce the same values")
+    public void testStrategies() {
+        final Random random = new Random(0);
+        for (int trial = 0; trial < 50; trial++) {
+            final int streams = 2 + random.nextInt(2);
+            final ArrayList<List<Value>> inputs = new ArrayList<>();
+            for (int i = 0; i < streams; i++) {
+                inputs.add(values(random, i, 5 + random.nextInt(20)));
+            }
+
+            final List<String> expected = expected(inputs);
+            Assert.assertEquals(join(Join.Strategy.MERGE, inputs), expected);
+            Assert.assertEquals(join(Join.Strategy.HASH, inputs), expected);
+        }
+    }
+
+    @Test(description = "Jokers are joined with their -1 contexts resolved")
+    public void testJokers() {
+        final ArrayList<List<Value>> inputs = new ArrayList<>();
+        inputs.add(sorted(Arrays.asList(value(0, -1, 0, 0), value(0, 1, 1, 1), value(0, 2, 0, 2))));
+        inputs.add(sorted(Arrays.asList(value(1, 1, 1, 0), value(1, 2, -1, 1), value(1, 2, 0, 2))));
+
+        final List<String> expected = Arrays.asList(
+                "[1, 1, 1]:1 [1, 1, 0]:10",
+                "[2, 0, 0]:0 [2, 0, 1]:11",
+                "[2, 0, 0]:0 [2, 0, 2]:12",
+                "[2, 0, 2]:2 [2, 0, 1]:11",
+                "[2, 0, 2]:2 [2, 0, 2]:12"
+        );
+        Assert.assertEquals(expected(inputs), expected);
+        Assert.assertEquals(join(Join.Strategy.MERGE, inputs), expected);
+        Assert.assertEquals(join(Join.Strategy.HASH, inputs), expected);
+    }
+
+    @Test(description = "Inputs of unknown cardinality are not stored in hash tables")
+    public void testUnknownCardinality() {
+        final Input small = new Input(Collections.emptyList(), 10);
+        final Input unknown = new Input(Collections.emptyList(), Operator.UNKNOWN_CARDINALITY);
+        Assert.assertEquals(Join.strategy(Arrays.asList(small, unknown)), Join.Strategy.HASH);
+        Assert.assertEquals(Join.strategy(Arrays.asList(unknown, small, unknown)), Join.Strategy.MERGE);
+    }
+
+    /**
+     * Random values of a stream, ordered on the joined contexts
+     */
+    static List<Value> values(Random random, int stream, int size) {
+        final ArrayList<Value> values = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            final long[] context = new long[JOINS + 1];
+            for (int j = 0; j < JOINS; j++) {
+                context[j] = random.nextInt(6) == 0 ? -1 : random.nextInt(3);
+            }
+            context[JOINS] = i;
+            final Value value = new Value(context, new JsonInteger(10 * stream + i));
+            value.id = i;
+            values.add(value);
+        }
+        return sorted(values);
+    }
+
+    static Value value(int stream, long... context) {
+        final Value value = new Value(context, new JsonInteger(10 * stream + (int) context[JOINS]));
+        value.id = context[JOINS];
+        return value;
+    }
+
+    static List<Value> sorted(List<Value> values) {
+        final ArrayList<Value> sorted = new ArrayList<>(values);
+        sorted.sort((a, b) -> {
+            for (int j = 0; j < JOINS; j++) {
+                final int z = Long.compare(a.context[j], b.context[j]);
+                if (z != 0)
+                    return z;
+            }
+            return Long.compare(a.id, b.id);
+        });
+        return sorted;
+    }
+
+    /**
+     * Joins the inputs with a given strategy and returns the sorted output
+     */
+    static List<String> join(Join.Strategy strategy, List<List<Value>> inputs) {
+        final Join join = new Join(strategy);
+        for (int i = 0; i < inputs.size(); i++) {
+            // The probing input of the hash join is the first one
+            join.addParent(new Input(inputs.get(i), i == 0 ? 1000 : 10));
+        }
+        join.outputSize = inputs.size();
+
+        for (int j = 0; j < JOINS; j++) {
+            final Join.JoinReference reference = new Join.JoinReference(null);
+            reference.rank = j;
+            reference.contextIndices = new int[inputs.size()];
+            Arrays.fill(reference.contextIndices, j);
+            join.joins.add(reference);
+        }
+
+        final ArrayList<String> output = new ArrayList<>();
+        final Iterator<Operator.ReturnValue> iterator = join._iterator(null);
+        while (iterator.hasNext()) {
+            final Operator.ReturnValue value = iterator.next();
+            final StringBuilder sb = new StringBuilder();
+            final long[][] contexts = ((Operator.DefaultContexts) value.contexts).contexts;
+            for (int i = 0; i < contexts.length; i++) {
+                if (i > 0)
+                    sb.append(' ');
+                sb.append(Arrays.toString(contexts[i])).append(':').append(value.nodes[i]);
+            }
+            output.add(sb.toString());
+        }
+        Collections.sort(output);
+        return output;
+    }
+
+    /**
+     * Computes the expected output: at each position where all the inputs have a value
+     * which is not a joker, the product of these values and of the compatible jokers
+     */
+    static List<String> expected(List<List<Value>> inputs) {
+        final TreeSet<List<Long>> positions = new TreeSet<>((a, b) -> {
+            for (int j = 0; j < JOINS; j++) {
+                final int z = Long.compare(a.get(j), b.get(j));
+                if (z != 0)
+                    return z;
+            }
+            return 0;
+        });
+        for (Value value : inputs.get(0)) {
+            positions.add(key(value));
+        }
+
+        final ArrayList<String> output = new ArrayList<>();
+        for (List<Long> position : positions) {
+            if (position.contains(-1L))
+                continue;
+
+            List<String> product = Collections.singletonList("");
+            for (List<Value> input : inputs) {
+                final ArrayList<String> matches = new ArrayList<>();
+                boolean found = false;
+                for (Value value : input) {
+                    final List<Long> key = key(value);
+                    boolean compatible = true;
+                    for (int j = 0; j < JOINS; j++) {
+                        compatible &= key.get(j) == -1 || key.get(j).equals(position.get(j));
+                    }
+                    if (compatible) {
+                        found |= !key.contains(-1L);
+                        final long[] context = value.context.clone();
+                        for (int j = 0; j < JOINS; j++) {
+                            context[j] = position.get(j);
+                        }
+                        matches.add(Arrays.toString(context) + ":" + value.nodes[0]);
+                    }
+                }
+
+                if (!found) {
+                    product = Collections.emptyList();
+                    break;
+                }
+
+                final ArrayList<String> newProduct = new ArrayList<>();
+                for (String prefix : product) {
+                    for (String match : matches) {
+                        newProduct.add(prefix.isEmpty() ? match : prefix + " " + match);
+                    }
+                }
+                product = newProduct;
+            }
+            output.addAll(product);
+        }
+
+        Collections.sort(output);
+        return output;
+    }
+
+    static List<Long> key(Value value) {
+        final ArrayList<Long> key = new ArrayList<>();
+        for (int j = 0; j < JOINS; j++) {
+            key.add(value.context[j]);
+        }
+        return key;
+    }
+
+    /**
+     * An input with fixed values
+     */
+    static class Input extends Operator {
+        final List<Value> values;
+        final long cardinality;
+
+        Input(List<Value> values, long cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+            for (int j = 0; j <= JOINS; j++) {
+                contextMappings.put(new StreamReference(0, j), j);
+            }
+        }
+
+        @Override
+        public List<Operator> getParents() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Iterator<Value> iterator(ScriptContext scriptContext) {
+            return values.iterator();
+        }
+
+        @Override
+        protected Iterator<ReturnValue> _iterator(ScriptContext scriptContext) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected Operator doCopy(boolean deep, Map<Object, Object> map) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long estimatedCardinality() {
+            return cardinality;
+        }
+    }
+}
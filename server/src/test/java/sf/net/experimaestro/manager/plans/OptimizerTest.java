@@ -0,0 +1,205 @@
+package sf.net.experimaestro.manager.plans;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import sf.net.experimaestro.manager.QName;
+import sf.net.experimaestro.manager.json.Json;
+import sf.net.experimaestro.manager.json.JsonArray;
+import sf.net.experimaestro.manager.json.JsonInteger;
+import sf.net.experimaestro.manager.plans.functions.Function;
+import sf.net.experimaestro.manager.scripting.ScriptContext;
+import sf.net.experimaestro.manager.scripting.StaticContext;
+import sf.net.experimaestro.utils.log.Logger;
+
+import javax.xml.xpath.XPathExpressionException;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Tests that optimized plans produce the same values as the original ones
+ */
+public class OptimizerTest {
+    final static public Logger LOGGER = Logger.getLogger();
+
+    /**
+     * Outputs x * factor and x * factor + 1 for an integer x
+     */
+    static class Multiply implements Function {
+        final long factor;
+
+        Multiply(long factor) {
+            this.factor = factor;
+        }
+
+        @Override
+        public Iterator<? extends Json> apply(Json[] input) {
+            final long x = Long.parseLong(input[0].toString());
+            return Arrays.asList(new JsonInteger(x * factor), new JsonInteger(x * factor + 1)).iterator();
+        }
+    }
+
+    /**
+     * Outputs the sum of a group of integers
+     */
+    static class Sum implements Function {
+        @Override
+        public Iterator<? extends Json> apply(Json[] input) {
+            long sum = 0;
+            for (Json json : (JsonArray) input[0]) {
+                sum += Long.parseLong(json.toString());
+            }
+            return Collections.singletonList(new JsonInteger(sum)).iterator();
+        }
+    }
+
+    static Constant constant(int size) {
+        final Constant constant = new Constant();
+        for (int i = 1; i <= size; i++) {
+            constant.add(new JsonInteger(i));
+        }
+        return constant;
+    }
+
+    static Operator function(Function function, Operator input) {
+        final FunctionOperator operator = new FunctionOperator(function);
+        operator.addParent(input);
+        return operator;
+    }
+
+    /**
+     * Groups the values of an operator by one of its ancestors (as group_by in scripts)
+     */
+    static Operator groupBy(Operator input, Operator key) {
+        final GroupBy groupBy = new GroupBy(new QName(null, "group"));
+        groupBy.add(key);
+
+        final Order<Operator> order = new Order<>();
+        order.add(key, false);
+        final OrderBy orderBy = new OrderBy(order, null);
+        orderBy.addParent(input);
+
+        groupBy.addParent(orderBy);
+        return groupBy;
+    }
+
+    static Operator product(Operator... inputs) {
+        final ProductReference product = new ProductReference();
+        for (Operator input : inputs) {
+            product.addParent(input);
+        }
+        return product;
+    }
+
+    /**
+     * Prepares a plan (and optimizes it if required)
+     */
+    static Operator prepare(Supplier<Operator> plan, boolean optimize) throws XPathExpressionException {
+        Operator operator = Operator.simplify(plan.get().prepare());
+        if (optimize)
+            operator = Optimizer.optimize(operator);
+        operator.init();
+        return operator;
+    }
+
+    /**
+     * Runs a plan and returns its (sorted) output
+     */
+    static List<String> run(Operator operator) {
+        final ArrayList<String> output = new ArrayList<>();
+        try (final ScriptContext sc = new StaticContext(null, LOGGER.getLoggerRepository()).scriptContext()) {
+            final Iterator<Value> iterator = operator.iterator(sc);
+            while (iterator.hasNext()) {
+                output.add(Arrays.toString(iterator.next().nodes));
+            }
+        }
+        Collections.sort(output);
+        return output;
+    }
+
+    static int size(Operator operator) {
+        final HashSet<Operator> ancestors = new HashSet<>();
+        operator.getAncestors(ancestors);
+        return ancestors.size();
+    }
+
+    /**
+     * Checks that the optimized plan has fewer operators and produces the same values
+     */
+    static void check(Supplier<Operator> plan) throws XPathExpressionException {
+        final Operator original = prepare(plan, false);
+        final Operator optimized = prepare(plan, true);
+
+        Assert.assertTrue(size(optimized) < size(original),
+                String.format("The plan was not optimized (%d operators)", size(original)));
+
+        final List<String> expected = run(original);
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertEquals(run(optimized), expected);
+    }
+
+    @Test(description = "Functions shared by joined inputs are computed once")
+    public void testSharedFunction() throws XPathExpressionException {
+        check(() -> {
+            final Constant constant = constant(5);
+            final Multiply multiply = new Multiply(10);
+            return product(function(multiply, constant), function(multiply, constant));
+        });
+    }
+
+    @Test(description = "Sorting an input that is already sorted is skipped")
+    public void testSortedInput() throws XPathExpressionException {
+        check(() -> {
+            final Constant constant = constant(5);
+            final Operator grouped = groupBy(function(new Multiply(10), constant), constant);
+            return groupBy(function(new Sum(), grouped), constant);
+        });
+    }
+
+    @Test(description = "Identical group-by operators over the same input sort it once")
+    public void testSharedSort() throws XPathExpressionException {
+        check(() -> {
+            final Constant constant = constant(5);
+            final Operator input = function(new Multiply(10), constant);
+            return product(groupBy(input, constant), groupBy(input, constant));
+        });
+    }
+
+    @Test(description = "Merge joins over small inputs become hash joins")
+    public void testHashJoin() throws XPathExpressionException {
+        final Supplier<Operator> plan = () -> {
+            final Constant constant = constant(5);
+            final Order<Operator> order = new Order<>();
+            order.add(constant);
+
+            final Join join = new Join(Join.Strategy.MERGE);
+            join.addJoin(constant);
+            for (Operator input : Arrays.asList(function(new Multiply(10), constant), function(new Multiply(100), constant))) {
+                final OrderBy orderBy = new OrderBy(order, null);
+                orderBy.addParent(input);
+                join.addParent(orderBy);
+            }
+            return join;
+        };
+
+        Assert.assertEquals(((Join) prepare(plan, true)).getStrategy(), Join.Strategy.HASH);
+        check(plan);
+    }
+}
@@ -0,0 +1,65 @@
+package sf.net.experimaestro.manager.plans;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import sf.net.experimaestro.manager.json.*;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Tests for the external sort of values
+ */
+public class ValueSorterTest {
+    @Test(description = "Values spilled to disk are merged in a stable order")
+    public void testSpill() {
+        final Random random = new Random(0);
+        final Comparator<Value> comparator = (a, b) -> Long.compare(a.context[0], b.context[0]);
+
+        final ArrayList<Value> values = new ArrayList<>();
+        try (ValueSorter sorter = new ValueSorter(comparator, 7)) {
+            for (int i = 0; i < 100; i++) {
+                final JsonObject object = new JsonObject();
+                object.put("i", new JsonInteger(i));
+                object.put("path", new JsonPath(Paths.get("/tmp", "x" + i)));
+                object.put("list", new JsonArray(new JsonString("a"), new JsonReal(i / 2.), JsonNull.getSingleton()));
+                final Value value = new Value(new long[]{random.nextInt(10), i}, object);
+                values.add(value);
+                sorter.add(value);
+            }
+            Assert.assertTrue(sorter.getRunCount() > 0);
+
+            values.sort(comparator);
+            final Iterator<Value> iterator = sorter.iterator();
+            for (Value expected : values) {
+                Assert.assertTrue(iterator.hasNext());
+                final Value value = iterator.next();
+                Assert.assertEquals(value.context, expected.context);
+                Assert.assertEquals(value.nodes.length, 1);
+                Assert.assertEquals(value.nodes[0].toString(), expected.nodes[0].toString());
+            }
+            Assert.assertFalse(iterator.hasNext());
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package sf.net.experimaestro.scheduler;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import net.bpiwowar.experimaestro.tasks.AbstractTask;
+import net.bpiwowar.experimaestro.tasks.JsonArgument;
+import net.bpiwowar.experimaestro.tasks.TaskDescription;
+
+/**
+ * A Java task whose input can be the output of another task
+ */
+@TaskDescription(id = "xpmtest:chained", output = "xpmtest:chained")
+public class ChainedJavaTask extends AbstractTask {
+    @JsonArgument(help = "The output of another chained task")
+    JsonObject input;
+
+    @Override
+    public JsonElement execute(JsonObject r) throws Throwable {
+        return r;
+    }
+}
@@ -0,0 +1,51 @@
+package sf.net.experimaestro.scheduler;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+/**
+ * Test for LocatorIndex
+ */
+public class LocatorIndexTest {
+    @Test
+    public void add_remove() {
+        final LocatorIndex index = new LocatorIndex();
+        index.add("/a", 1);
+        index.add("/a", 1);
+        index.add("/b", 4);
+
+        check(index.candidates("/a"), 1);
+        check(index.candidates("/b"), 4);
+        check(index.candidates("/c"));
+
+        index.remove("/a", 1);
+        check(index.candidates("/a"));
+        Assert.assertEquals(index.size(), 1);
+    }
+
+    @Test(description = "Several IDs with the same hash (as for a collision)")
+    public void collisions() {
+        final LocatorIndex index = new LocatorIndex();
+        index.add("/a", 1);
+        index.add("/a", 2);
+        index.add("/a", 3);
+        check(index.candidates("/a"), 1, 2, 3);
+
+        index.remove("/a", 1);
+        check(index.candidates("/a"), 2, 3);
+
+        index.remove("/a", 3);
+        check(index.candidates("/a"), 2);
+
+        // Removing an unknown ID does nothing
+        index.remove("/a", 5);
+        check(index.candidates("/a"), 2);
+    }
+
+    private static void check(long[] candidates, long... expected) {
+        Assert.assertTrue(Arrays.equals(candidates, expected),
+                String.format("Expected %s, got %s", Arrays.toString(expected), Arrays.toString(candidates)));
+    }
+}
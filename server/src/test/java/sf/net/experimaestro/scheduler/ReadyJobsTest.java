@@ -0,0 +1,82 @@
+package sf.net.experimaestro.scheduler;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Test for ReadyJobs
+ */
+public class ReadyJobsTest {
+    @Test(description = "Jobs are ordered by priority, then by timestamp")
+    public void order() {
+        final ReadyJobs jobs = new ReadyJobs();
+        jobs.add(1, 0, 10);
+        jobs.add(2, 5, 20);
+        jobs.add(3, 0, 5);
+        jobs.add(4, 5, 10);
+
+        Assert.assertEquals(jobs.snapshot(), new LongArrayList(new long[]{4, 2, 3, 1}));
+
+        // Changing the priority moves the job
+        jobs.add(1, 10, 10);
+        Assert.assertEquals(jobs.snapshot(), new LongArrayList(new long[]{1, 4, 2, 3}));
+
+        jobs.remove(4);
+        Assert.assertEquals(jobs.snapshot(), new LongArrayList(new long[]{1, 2, 3}));
+        Assert.assertFalse(jobs.contains(4));
+    }
+
+    @Test(description = "Jobs parked on a token are released in order")
+    public void tokens() {
+        final ReadyJobs jobs = new ReadyJobs();
+        for (long id = 1; id <= 4; id++) {
+            jobs.add(id, 0, id);
+        }
+
+        final long generation = jobs.tokenGeneration();
+        for (long id = 1; id <= 3; id++) {
+            Assert.assertTrue(jobs.park(id, 100, generation));
+        }
+
+        Assert.assertEquals(jobs.snapshot(), new LongArrayList(new long[]{4}));
+        Assert.assertEquals(jobs.parkedSize(), 3);
+
+        // Releasing one token only gives back the first job
+        Assert.assertEquals(jobs.release(100, 1), 1);
+        Assert.assertEquals(jobs.snapshot(), new LongArrayList(new long[]{1, 4}));
+
+        // A job cannot be parked if a token was released in the meantime
+        Assert.assertFalse(jobs.park(4, 100, generation));
+
+        // Removing a parked job
+        jobs.remove(2);
+        Assert.assertEquals(jobs.release(100, 10), 1);
+        Assert.assertEquals(jobs.snapshot(), new LongArrayList(new long[]{1, 3, 4}));
+        Assert.assertEquals(jobs.parkedSize(), 0);
+    }
+
+    @Test(description = "Jobs parked on a connector are woken up one by one")
+    public void connectors() {
+        final ReadyJobs jobs = new ReadyJobs();
+        for (long id = 1; id <= 3; id++) {
+            jobs.add(id, 0, id);
+        }
+
+        jobs.park(1, "local");
+        jobs.park(2, "local");
+        Assert.assertEquals(jobs.snapshot(), new LongArrayList(new long[]{3}));
+        Assert.assertEquals(jobs.parkedSize(), 2);
+
+        // Waking up gives the permit to the first job
+        Assert.assertEquals(jobs.wakeUp("local", 1), 1);
+        Assert.assertEquals(jobs.snapshot(), new LongArrayList(new long[]{1, 3}));
+        Assert.assertEquals(jobs.takeWakeUp(1), "local");
+        Assert.assertNull(jobs.takeWakeUp(1));
+
+        // Removing a parked job
+        jobs.remove(2);
+        Assert.assertEquals(jobs.wakeUp("local", 1), 0);
+        Assert.assertEquals(jobs.parkedSize(), 0);
+    }
+}
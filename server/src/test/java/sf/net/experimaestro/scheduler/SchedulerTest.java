@@ -19,12 +19,22 @@ package sf.net.experimaestro.scheduler;
  */
 
 import bpiwowar.argparser.utils.Output;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.apache.commons.lang.mutable.MutableLong;
 import org.testng.Assert;
 import org.testng.annotations.BeforeSuite;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
+import sf.net.experimaestro.connectors.LocalhostConnector;
 import sf.net.experimaestro.exceptions.ExperimaestroCannotOverwrite;
+import sf.net.experimaestro.exceptions.XPMRuntimeException;
+import sf.net.experimaestro.manager.Manager;
+import sf.net.experimaestro.manager.Repository;
+import sf.net.experimaestro.manager.java.JavaTaskFactory;
+import sf.net.experimaestro.manager.java.JavaTasksIntrospection;
+import sf.net.experimaestro.manager.json.JsonObject;
+import sf.net.experimaestro.server.JsonRPCMethods;
+import sf.net.experimaestro.utils.introspection.ClassInfoLoader;
 import sf.net.experimaestro.utils.RandomSampler;
 import sf.net.experimaestro.utils.ThreadCount;
 import sf.net.experimaestro.utils.XPMEnvironment;
@@ -32,6 +42,8 @@ import sf.net.experimaestro.utils.log.Logger;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 
 import static java.lang.Math.*;
@@ -175,6 +187,205 @@ public class SchedulerTest extends XPMEnvironment {
 
     }
 
+    @Test(description = "Submit a chain of jobs in bulk, with dependencies within and across chunks")
+    public void test_bulk_submission() throws IOException {
+        File jobDirectory = mkTestDir();
+        ThreadCount counter = new ThreadCount();
+
+        WaitingJob[] jobs = new WaitingJob[3];
+        BulkSubmission submission = new BulkSubmission(2);
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = new WaitingJob(counter, jobDirectory, "job" + i, new Action(250, 0, 0));
+            if (i > 0) {
+                jobs[i].addDependency(jobs[i - 1].createDependency(null));
+            }
+            submission.add(jobs[i]);
+        }
+
+        // Submitted twice
+        submission.add(new WaitingJob(counter, jobDirectory, "job0", new Action(250, 0, 0)));
+
+        final List<BulkSubmission.Outcome> outcomes = submission.submit();
+        for (int i = 0; i < jobs.length; i++) {
+            Assert.assertEquals(outcomes.get(i).getStatus(), BulkSubmission.Status.SUBMITTED, outcomes.get(i).toString());
+        }
+        Assert.assertEquals(outcomes.get(jobs.length).getStatus(), BulkSubmission.Status.UNCHANGED);
+
+        int errors = 0;
+        waitToFinish(0, counter, jobs, 2500, 5);
+
+        errors += checkSequence(false, true, jobs);
+        errors += checkState(EnumSet.of(ResourceState.DONE), jobs);
+        Assert.assertTrue(errors == 0, "Detected " + errors + " errors after running jobs");
+    }
+
+    @Test(description = "Submit two chained Java tasks in one bulk submission")
+    public void test_bulk_java_tasks() throws Exception {
+        File jobDirectory = mkTestDir();
+
+        final Path[] classpath = {Paths.get(ChainedJavaTask.class.getProtectionDomain().getCodeSource().getLocation().toURI())};
+        final HashMap<String, String> namespaces = new HashMap<>();
+        namespaces.put("xpmtest", "urn:experimaestro:test");
+        final JavaTaskFactory factory = new JavaTaskFactory(new JavaTasksIntrospection(classpath),
+                LocalhostConnector.getInstance(), new Repository(classpath[0]),
+                new ClassInfoLoader(classpath, getClass().getClassLoader()).get(ChainedJavaTask.class.getName()),
+                namespaces);
+
+        BulkSubmission submission = new BulkSubmission();
+
+        final String first = new File(jobDirectory, "first").getAbsolutePath();
+        final Job firstJob = new Job(LocalhostConnector.getInstance(), first);
+        firstJob.setJobRunner(new CommandLineTask(factory.commands(new JsonObject(), false, submission)));
+        submission.add(firstJob);
+
+        // The second task takes the output of the first one, which is not stored yet
+        final JsonObject input = new JsonObject();
+        input.put(Manager.XP_RESOURCE.toString(), first);
+        final JsonObject json = new JsonObject();
+        json.put("input", input);
+        final Job secondJob = new Job(LocalhostConnector.getInstance(), new File(jobDirectory, "second").getAbsolutePath());
+        secondJob.setJobRunner(new CommandLineTask(factory.commands(json, false, submission)));
+        submission.add(secondJob);
+
+        final List<BulkSubmission.Outcome> outcomes = submission.submit();
+        for (BulkSubmission.Outcome outcome : outcomes) {
+            Assert.assertEquals(outcome.getStatus(), BulkSubmission.Status.SUBMITTED, outcome.toString());
+        }
+
+        // The second job depends on the stored first job
+        final long firstId = outcomes.get(0).resource().getId();
+        final long secondId = outcomes.get(1).resource().getId();
+        Transaction.run(em -> {
+            final Collection<Dependency> dependencies = em.find(Resource.class, secondId).getDependencies();
+            Assert.assertEquals(dependencies.size(), 1);
+            Assert.assertEquals(dependencies.iterator().next().getFrom().getId().longValue(), firstId);
+        });
+    }
+
+    @Test(description = "The locator index forgets resources whose insertion is rolled back")
+    public void test_rollback_locator_index() throws IOException {
+        File jobDirectory = mkTestDir();
+        final WaitingJob job = new WaitingJob(new ThreadCount(), jobDirectory, "rolledback", new Action(250, 0, 0));
+
+        try (Transaction t = Transaction.create()) {
+            job.save(t);
+            t.em().flush();
+            Assert.assertTrue(Scheduler.get().getLocatorIndex().candidates(job.getLocator()).length > 0);
+            // No commit: the transaction is rolled back when closed
+        }
+
+        Assert.assertEquals(Scheduler.get().getLocatorIndex().candidates(job.getLocator()).length, 0);
+        Transaction.run(em -> Assert.assertNull(Resource.getByLocator(em, job.getLocator())));
+    }
+
+    /**
+     * Creates a chain of jobs, each job depending on the previous one
+     */
+    private WaitingJob[] chain(ThreadCount counter, File jobDirectory, Action... actions) {
+        WaitingJob[] jobs = new WaitingJob[actions.length];
+        for (int i = 0; i < jobs.length; i++) {
+            final int finalI = i;
+            Transaction.run((em, t) -> {
+                jobs[finalI] = new WaitingJob(counter, jobDirectory, "job" + finalI, actions[finalI]);
+                if (finalI > 0) {
+                    jobs[finalI].addDependency(jobs[finalI - 1].createDependency(null));
+                }
+                jobs[finalI].save(t);
+            });
+        }
+        return jobs;
+    }
+
+    /**
+     * Waits until a job reaches a given state
+     */
+    private void waitForState(WaitingJob job, ResourceState state, long timeout) throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeout;
+        while (Transaction.evaluate(em -> em.find(Job.class, job.getId()).getState()) != state) {
+            Assert.assertTrue(System.currentTimeMillis() < end, format("Job %s did not reach state %s", job, state));
+            Thread.sleep(50);
+        }
+    }
+
+    @Test(description = "Recursively removing a job removes its dependents first")
+    public void test_recursive_remove() throws IOException {
+        File jobDirectory = mkTestDir();
+        ThreadCount counter = new ThreadCount();
+        WaitingJob[] jobs = chain(counter, jobDirectory, new Action(250, 0, 0), new Action(250, 0, 0), new Action(250, 0, 0));
+        waitToFinish(0, counter, jobs, 1500, 5);
+
+        final DependencyGraph graph = Transaction.evaluate(em -> DependencyGraph.dependents(em, jobs[0].getId()));
+        Assert.assertEquals(graph.size(), jobs.length);
+        Assert.assertTrue(graph.hasDependents());
+
+        final LongArrayList order = graph.removalOrder();
+        Assert.assertTrue(order.indexOf(jobs[2].getId()) < order.indexOf(jobs[1].getId()));
+        Assert.assertTrue(order.indexOf(jobs[1].getId()) < order.indexOf(jobs[0].getId()));
+
+        Assert.assertEquals(graph.delete(), jobs.length);
+
+        final List<Long> ids = new ArrayList<>();
+        for (WaitingJob job : jobs) {
+            ids.add(job.getId());
+        }
+        Transaction.run(em -> {
+            for (long id : ids) {
+                Assert.assertNull(em.find(Resource.class, id), format("Resource %d was not removed", id));
+            }
+            final long dependencies = em.createQuery("SELECT COUNT(d) FROM dependencies d " +
+                    "WHERE d.from.resourceID IN :ids OR d.to.resourceID IN :ids", Long.class)
+                    .setParameter("ids", ids)
+                    .getSingleResult();
+            Assert.assertEquals(dependencies, 0);
+        });
+    }
+
+    @Test(description = "Nothing is removed when one of the dependent jobs is running")
+    public void test_remove_running() throws IOException, InterruptedException {
+        File jobDirectory = mkTestDir();
+        ThreadCount counter = new ThreadCount();
+        WaitingJob[] jobs = chain(counter, jobDirectory, new Action(250, 0, 0), new Action(2000, 0, 0), new Action(250, 0, 0));
+        waitForState(jobs[1], ResourceState.RUNNING, 2500);
+
+        final DependencyGraph graph = Transaction.evaluate(em -> DependencyGraph.dependents(em, jobs[0].getId()));
+        try {
+            graph.delete();
+            Assert.fail("A running job was removed");
+        } catch (XPMRuntimeException e) {
+            LOGGER.debug("Removal refused: %s", e.getMessage());
+        }
+
+        Transaction.run(em -> {
+            for (WaitingJob job : jobs) {
+                Assert.assertNotNull(em.find(Resource.class, job.getId()), format("Job %s was removed", job));
+            }
+        });
+
+        waitToFinish(0, counter, jobs, 3000, 5);
+        Assert.assertEquals(checkState(EnumSet.of(ResourceState.DONE), jobs), 0);
+    }
+
+    @Test(description = "Restarting a done job invalidates the jobs that depend on it")
+    public void test_restart_recursive() throws Exception {
+        File jobDirectory = mkTestDir();
+        ThreadCount counter = new ThreadCount();
+        WaitingJob[] jobs = chain(counter, jobDirectory, new Action(500, 0, 0), new Action(250, 0, 0), new Action(250, 0, 0));
+        waitToFinish(0, counter, jobs, 2500, 5);
+
+        int errors = checkState(EnumSet.of(ResourceState.DONE), jobs);
+
+        final JsonRPCMethods methods = new JsonRPCMethods(null, Scheduler.get(), null, null);
+        Assert.assertEquals(methods.restartJob(jobs[0].getLocator(), true, true), jobs.length);
+
+        // The dependent jobs wait for the first one (which runs for 500ms)
+        errors += checkState(EnumSet.of(ResourceState.WAITING), jobs[1], jobs[2]);
+
+        waitToFinish(0, counter, jobs, 2500, 5);
+        errors += checkSequence(false, true, jobs);
+        errors += checkState(EnumSet.of(ResourceState.DONE), jobs);
+        Assert.assertTrue(errors == 0, "Detected " + errors + " errors after restarting jobs");
+    }
+
     @Test(description = "Run two jobs - one depend on the other status start, the first fails")
     public void test_failed_dependency() throws
             IOException, InterruptedException, ExperimaestroCannotOverwrite {
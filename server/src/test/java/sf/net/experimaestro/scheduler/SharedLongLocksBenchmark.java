@@ -0,0 +1,94 @@
+package sf.net.experimaestro.scheduler;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@linkplain SharedLongLocks} with the previous single monitor implementation
+ * under contention.
+ * <p>
+ * Run with <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=sf.net.experimaestro.scheduler.SharedLongLocksBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class SharedLongLocksBenchmark {
+    interface Locks {
+        EntityLock lock(long id, boolean exclusive);
+    }
+
+    @Param({"striped", "monitor"})
+    public String implementation;
+
+    /**
+     * Number of distinct IDs that are locked
+     */
+    @Param({"1", "16", "1024"})
+    public int ids;
+
+    /**
+     * Percentage of exclusive locks
+     */
+    @Param({"10", "50"})
+    public int exclusive;
+
+    private Locks locks;
+
+    @Setup
+    public void setup() {
+        switch (implementation) {
+            case "striped":
+                final SharedLongLocks striped = new SharedLongLocks();
+                locks = (id, exclusive) -> striped.lock(id, exclusive, 0);
+                break;
+            case "monitor":
+                final MonitorSharedLongLocks monitor = new MonitorSharedLongLocks();
+                locks = (id, exclusive) -> monitor.lock(id, exclusive, 0);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown implementation " + implementation);
+        }
+    }
+
+    @Benchmark
+    public long lockUnlock() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final long id = random.nextInt(ids);
+        try (EntityLock ignored = locks.lock(id, random.nextInt(100) < exclusive)) {
+            // Simulates some work while holding the lock
+            return random.nextLong();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SharedLongLocksBenchmark.class.getSimpleName()).build()).run();
+    }
+}
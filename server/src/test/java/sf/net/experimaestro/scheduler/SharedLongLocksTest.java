@@ -101,6 +101,66 @@ public class SharedLongLocksTest {
     }
 
 
+    @Test(timeOut = 1000, description = "Timeouts and non blocking locks")
+    public void timeout() {
+        final SharedLongLocks locks = new SharedLongLocks();
+
+        try (EntityLock ignored = locks.exclusiveLock(1, 0)) {
+            final long start = System.currentTimeMillis();
+            Assert.assertNull(locks.sharedLock(1, 100));
+            Assert.assertTrue(System.currentTimeMillis() - start >= 100, "Should have waited for the timeout");
+            Assert.assertNull(locks.tryLock(1, false));
+
+            // Another ID is not locked
+            try (EntityLock other = locks.tryLock(2, true)) {
+                Assert.assertNotNull(other);
+            }
+        }
+
+        try (EntityLock lock = locks.tryLock(1, false)) {
+            Assert.assertNotNull(lock);
+            Assert.assertNull(locks.tryLock(1, true));
+        }
+
+        Assert.assertEquals(locks.getLockValue(1), 0, "The lock value should be 0 when no locks are taken");
+        Assert.assertEquals(locks.getStatistics().timeouts, 1);
+    }
+
+    @Test(timeOut = 2000, description = "With writer preference, shared locks wait for a waiting exclusive lock")
+    public void writer_preference() throws InterruptedException {
+        final IntList list = IntLists.synchronize(new IntArrayList());
+        final SharedLongLocks locks = new SharedLongLocks(true);
+        final CountDownLatch latch = new CountDownLatch(2);
+
+        final EntityLock first = locks.sharedLock(1, 0);
+
+        new Thread(() -> {
+            try (EntityLock ignored = locks.exclusiveLock(1, 0)) {
+                list.add(1);
+            }
+            latch.countDown();
+        }).start();
+
+        // Wait until the writer is waiting
+        pause(200);
+
+        new Thread(() -> {
+            try (EntityLock ignored = locks.sharedLock(1, 0)) {
+                list.add(2);
+            }
+            latch.countDown();
+        }).start();
+
+        pause(200);
+        first.close();
+
+        latch.await();
+        Assert.assertEquals(list.size(), 2);
+        assertOrdered(list);
+        Assert.assertEquals(locks.getLockValue(1), 0, "The lock value should be 0 when no locks are taken");
+    }
+
+
     private void pause(int timeout) {
         synchronized (this) {
             try {
@@ -0,0 +1,81 @@
+package sf.net.experimaestro.server;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the dispatch of JSON-RPC requests (method resolution, argument conversion
+ * and invocation) for methods that do not need the scheduler.
+ * <p>
+ * Run with <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=sf.net.experimaestro.server.JsonRPCDispatchBenchmark</code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonRPCDispatchBenchmark {
+    /**
+     * The JSON request
+     */
+    @Param({
+            "{\"id\": 1, \"method\": \"ping\", \"params\": []}",
+            "{\"id\": 1, \"method\": \"cancel\", \"params\": {\"request\": \"2\"}}",
+            "{\"id\": 1, \"method\": \"cancel\", \"params\": [\"2\"]}"
+    })
+    public String request;
+
+    private JSONObject object;
+
+    private JsonRPCMethods methods;
+
+    private long sent;
+
+    @Setup
+    public void setup() {
+        JsonRPCMethods.initMethods();
+        object = (JSONObject) JSONValue.parse(request);
+        methods = new JsonRPCMethods(null, null, null, new JSONRPCRequest() {
+            @Override
+            protected void sendJSONString(String message) {
+                sent += message.length();
+            }
+        });
+    }
+
+    @Benchmark
+    public long dispatch() {
+        methods.handleJSON(object);
+        return sent;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(JsonRPCDispatchBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,149 @@
+package sf.net.experimaestro.utils;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import sf.net.experimaestro.manager.json.JsonInteger;
+import sf.net.experimaestro.manager.plans.Value;
+import sf.net.experimaestro.manager.plans.ValueSerializer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Tests for the cache of iterators
+ */
+public class CachedIterableTest {
+    static final List<Integer> VALUES = IntStream.range(0, 100).boxed().collect(Collectors.toList());
+
+    /**
+     * Serializes integers and counts the number of written values
+     */
+    static class IntegerSerializer implements CachedIterable.Serializer<Integer> {
+        int written;
+
+        @Override
+        public void write(DataOutput out, Integer value) throws IOException {
+            ++written;
+            out.writeInt(value);
+        }
+
+        @Override
+        public Integer read(DataInput in) throws IOException {
+            return in.readInt();
+        }
+    }
+
+    static List<Integer> read(Iterator<Integer> iterator) {
+        final ArrayList<Integer> values = new ArrayList<>();
+        iterator.forEachRemaining(values::add);
+        return values;
+    }
+
+    @Test(description = "Values are written to disk when a reader is late, and read back in order")
+    public void testSpill() {
+        final IntegerSerializer serializer = new IntegerSerializer();
+        final AtomicBoolean released = new AtomicBoolean();
+        try (CachedIterable<Integer> cache = new CachedIterable<>(VALUES.iterator(), 2, 4, serializer)) {
+            cache.onRelease(() -> released.set(true));
+            final Iterator<Integer> first = cache.iterator();
+            final Iterator<Integer> second = cache.iterator();
+
+            Assert.assertEquals(read(first), VALUES);
+            Assert.assertTrue(serializer.written > 0);
+            Assert.assertFalse(released.get());
+
+            Assert.assertEquals(read(second), VALUES);
+            Assert.assertTrue(released.get());
+        }
+    }
+
+    @Test(description = "Values written to disk are read back with their ID")
+    public void testSpillValues() {
+        final ArrayList<Value> values = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            // Pairs of values share the same context
+            values.add(new Value(i, new long[]{i / 2, -1}, new JsonInteger(i)));
+        }
+
+        try (CachedIterable<Value> cache = new CachedIterable<>(values.iterator(), 2, 4, new ValueSerializer())) {
+            final Iterator<Value> first = cache.iterator();
+            final Iterator<Value> second = cache.iterator();
+            while (first.hasNext()) {
+                first.next();
+            }
+
+            for (Value expected : values) {
+                Assert.assertTrue(second.hasNext());
+                final Value value = second.next();
+                Assert.assertEquals(value.getId(), expected.getId());
+                Assert.assertEquals(value.getContext(), expected.getContext());
+                Assert.assertEquals(value.getNodes()[0].toString(), expected.getNodes()[0].toString());
+            }
+            Assert.assertFalse(second.hasNext());
+        }
+    }
+
+    @Test(description = "Values are released once the last reader has finished")
+    public void testRelease() {
+        final AtomicBoolean released = new AtomicBoolean();
+        try (CachedIterable<Integer> cache = new CachedIterable<>(VALUES.iterator(), 2, Integer.MAX_VALUE, null)) {
+            cache.onRelease(() -> released.set(true));
+
+            Assert.assertEquals(read(cache.iterator()), VALUES);
+            Assert.assertFalse(released.get());
+
+            Assert.assertEquals(read(cache.iterator()), VALUES);
+            Assert.assertTrue(released.get());
+        }
+    }
+
+    @Test(description = "A reader dropped before the end does not hold values")
+    public void testAbandonedReader() {
+        final IntegerSerializer serializer = new IntegerSerializer();
+        final AtomicBoolean released = new AtomicBoolean();
+        try (CachedIterable<Integer> cache = new CachedIterable<>(VALUES.iterator(), 2, 4, serializer)) {
+            cache.onRelease(() -> released.set(true));
+            final Iterator<Integer> first = cache.iterator();
+            Iterator<Integer> second = cache.iterator();
+            Assert.assertEquals(second.next(), VALUES.get(0));
+
+            // Drop the second reader
+            final WeakReference<Iterator<Integer>> reference = new WeakReference<>(second);
+            second = null;
+            for (int i = 0; i < 100 && reference.get() != null; i++) {
+                System.gc();
+            }
+            Assert.assertNull(reference.get(), "The reader was not garbage collected");
+
+            Assert.assertEquals(read(first), VALUES);
+            Assert.assertEquals(serializer.written, 0);
+            Assert.assertTrue(released.get());
+        }
+    }
+}
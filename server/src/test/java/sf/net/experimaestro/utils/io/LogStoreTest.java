@@ -0,0 +1,78 @@
+package sf.net.experimaestro.utils.io;
+
+/*
+ * This file is part of experimaestro.
+ * Copyright (c) 2014 B. Piwowarski <benjamin@bpiwowar.net>
+ *
+ * experimaestro is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * experimaestro is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with experimaestro.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import sf.net.experimaestro.utils.TemporaryDirectory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Test for the log-structured key-value store
+ */
+public class LogStoreTest {
+    @Test(description = "Random updates and removals, with compactions and a partially written record")
+    public void random() throws IOException {
+        try (TemporaryDirectory directory = new TemporaryDirectory("xpm", "logstore")) {
+            final File file = new File(directory.getFile(), "test.log");
+            final HashMap<Long, byte[]> expected = new HashMap<>();
+            final Random random = new Random(1);
+
+            try (LogStore store = new LogStore(file)) {
+                for (int i = 0; i < 100_000; i++) {
+                    final long key = random.nextInt(500);
+                    if (random.nextInt(10) == 0) {
+                        store.remove(key);
+                        expected.remove(key);
+                    } else {
+                        final byte[] value = new byte[random.nextInt(40)];
+                        random.nextBytes(value);
+                        store.put(key, value);
+                        expected.put(key, value);
+                    }
+                }
+                check(store, expected);
+            }
+
+            // Simulates a crash while writing
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17});
+            }
+
+            try (LogStore store = new LogStore(file)) {
+                check(store, expected);
+            }
+        }
+    }
+
+    private static void check(LogStore store, Map<Long, byte[]> expected) throws IOException {
+        Assert.assertEquals(store.size(), expected.size());
+        for (Map.Entry<Long, byte[]> entry : expected.entrySet()) {
+            Assert.assertTrue(Arrays.equals(store.get(entry.getKey()), entry.getValue()),
+                    String.format("Wrong value for key %d", entry.getKey()));
+        }
+    }
+}